@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.ApgContract.Certs;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRingData;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.provider.ApgContract.Keys;
+import org.thialfihar.android.apg.provider.ApgContract.UserIds;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Populates an isolated database through ApgProvider with synthetic key rings and times the key
+ * list, find by subkey and find by email queries of the provider with and without the secondary
+ * indexes. The email lookup is also timed the way it was done before the email column existed,
+ * with a LIKE on the user id.
+ *
+ * Runs on the device against its SQLite, results go to the log:
+ * adb shell am instrument -w -e class org.thialfihar.android.apg.provider.ApgDatabaseBenchmark \
+ *     org.sufficientlysecure.keychain.test/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class ApgDatabaseBenchmark extends ProviderTestCase2<ApgProvider> {
+
+    private static final int KEY_RINGS = 50000;
+    private static final int RUNS = 20;
+    private static final int BATCH_SIZE = 500;
+
+    private static final String[] PROJECTION = new String[]{
+            KeyRings._ID,
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.USER_ID,
+            KeyRings.VERIFIED,
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.HAS_ENCRYPT,
+            KeyRings.HAS_SIGN
+    };
+
+    private Random mRandom = new Random(42);
+    private long[] mSubkeyIds;
+
+    public ApgDatabaseBenchmark() {
+        super(ApgProvider.class, ApgContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        populate();
+    }
+
+    private void populate() throws Exception {
+        ContentResolver resolver = getMockContentResolver();
+        mSubkeyIds = new long[KEY_RINGS];
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < KEY_RINGS; ++i) {
+            long masterKeyId = mRandom.nextLong();
+            long subkeyId = mRandom.nextLong();
+            mSubkeyIds[i] = subkeyId;
+            String masterKeyIdString = Long.toString(masterKeyId);
+
+            operations.add(ContentProviderOperation.newInsert(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyIdString))
+                    .withValue(KeyRingData.MASTER_KEY_ID, masterKeyId)
+                    .withValue(KeyRingData.KEY_RING_DATA, new byte[]{0})
+                    .build());
+
+            for (int rank = 0; rank < 2; ++rank) {
+                operations.add(ContentProviderOperation.newInsert(
+                        Keys.buildKeysUri(masterKeyIdString))
+                        .withValue(Keys.MASTER_KEY_ID, masterKeyId)
+                        .withValue(Keys.RANK, rank)
+                        .withValue(Keys.KEY_ID, rank == 0 ? masterKeyId : subkeyId)
+                        .withValue(Keys.CAN_CERTIFY, rank == 0)
+                        .withValue(Keys.CAN_SIGN, rank == 0)
+                        .withValue(Keys.CAN_ENCRYPT, rank == 1)
+                        .withValue(Keys.IS_REVOKED, false)
+                        .withValue(Keys.HAS_SECRET, false)
+                        .withValue(Keys.CREATION, 0)
+                        .build());
+            }
+
+            operations.add(ContentProviderOperation.newInsert(
+                    UserIds.buildUserIdsUri(masterKeyIdString))
+                    .withValue(UserIds.MASTER_KEY_ID, masterKeyId)
+                    .withValue(UserIds.USER_ID, "User " + i + " <user" + i + "@example.com>")
+                    .withValue(UserIds.EMAIL, "user" + i + "@example.com")
+                    .withValue(UserIds.IS_PRIMARY, true)
+                    .withValue(UserIds.IS_REVOKED, false)
+                    .withValue(UserIds.RANK, 0)
+                    .build());
+
+            if (i % 10 == 0) {
+                operations.add(ContentProviderOperation.newInsert(
+                        Certs.buildCertsUri(masterKeyIdString))
+                        .withValue(Certs.MASTER_KEY_ID, masterKeyId)
+                        .withValue(Certs.RANK, 0)
+                        .withValue(Certs.KEY_ID_CERTIFIER, mRandom.nextLong())
+                        .withValue(Certs.VERIFIED, 1)
+                        .build());
+            }
+
+            if ((i + 1) % BATCH_SIZE == 0) {
+                resolver.applyBatch(ApgContract.CONTENT_AUTHORITY, operations);
+                operations.clear();
+            }
+        }
+        if (!operations.isEmpty()) {
+            resolver.applyBatch(ApgContract.CONTENT_AUTHORITY, operations);
+        }
+    }
+
+    public void testQueries() {
+        SQLiteDatabase db = getProvider().getDb().getWritableDatabase();
+        ApgDatabase.dropIndexes(db);
+        run("without indexes");
+        ApgDatabase.createIndexes(db);
+        run("with indexes");
+        runLegacyEmailLookup(db);
+    }
+
+    private void run(String label) {
+        ContentResolver resolver = getMockContentResolver();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i) {
+            consume(resolver.query(KeyRings.buildUnifiedKeyRingsUri(), PROJECTION,
+                    null, null, null));
+        }
+        long keyList = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i) {
+            long subkeyId = mSubkeyIds[mRandom.nextInt(KEY_RINGS)];
+            consume(resolver.query(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(
+                    Long.toString(subkeyId)), PROJECTION, null, null, null));
+        }
+        long subkeyLookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i) {
+            String email = "user" + mRandom.nextInt(KEY_RINGS) + "@example.com";
+            consume(resolver.query(KeyRings.buildUnifiedKeyRingsFindByEmailUri(email),
+                    PROJECTION, null, null, null));
+        }
+        long emailLookup = System.nanoTime() - start;
+
+        Log.i(Constants.TAG, KEY_RINGS + " key rings, " + label + ": "
+                + "key list " + keyList / RUNS / 1000 + "µs, "
+                + "subkey lookup " + subkeyLookup / RUNS / 1000 + "µs, "
+                + "email lookup " + emailLookup / RUNS / 1000 + "µs");
+    }
+
+    /**
+     * The find by email condition as it was before the email column, on user_ids only
+     */
+    private void runLegacyEmailLookup(SQLiteDatabase db) {
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i) {
+            String email = "user" + mRandom.nextInt(KEY_RINGS) + "@example.com";
+            consume(db.rawQuery("SELECT master_key_id FROM user_ids WHERE user_id LIKE ?",
+                    new String[]{"%<" + email + ">"}));
+        }
+        long emailLookup = System.nanoTime() - start;
+
+        Log.i(Constants.TAG, KEY_RINGS + " key rings, user_id LIKE '%<email>': "
+                + emailLookup / RUNS / 1000 + "µs");
+    }
+
+    private static void consume(Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
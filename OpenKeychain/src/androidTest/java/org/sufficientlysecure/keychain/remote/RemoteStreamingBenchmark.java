@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.remote;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.openintents.openpgp.IOpenPgpService;
+import org.openintents.openpgp.OpenPgpError;
+import org.openintents.openpgp.util.OpenPgpApi;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.ApgContract.ApiAccounts;
+import org.thialfihar.android.apg.provider.ApgContract.ApiApps;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds OpenPgpService and pushes data through ParcelFileDescriptor pipes the way a remote API
+ * client does, without telling the length. Reports the throughput of a plain copy through the
+ * same pipes and of encryption by the service.
+ *
+ * Encrypts to the first secret key on the device that can encrypt, using an API account of
+ * its own that is removed afterwards. Results go to the log:
+ * adb shell am instrument -w -e class org.thialfihar.android.apg.remote.RemoteStreamingBenchmark \
+ *     org.sufficientlysecure.keychain.test/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class RemoteStreamingBenchmark extends InstrumentationTestCase {
+
+    private static final long BYTES = 256L << 20;
+    private static final String ACCOUNT_NAME = "streaming_benchmark";
+
+    private Context mContext;
+    private ProviderHelper mProviderHelper;
+    private boolean mRegisteredApp;
+    private long mMasterKeyId;
+    private IOpenPgpService mService;
+
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = IOpenPgpService.Stub.asInterface(service);
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    private interface Service {
+        void process(ParcelFileDescriptor input, ParcelFileDescriptor output) throws Exception;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mProviderHelper = new ProviderHelper(mContext);
+
+        mMasterKeyId = findEncryptionSecretKey();
+        if (mMasterKeyId == Constants.key.none) {
+            return;
+        }
+
+        // calls from our own process are always allowed, but they need an account like any app
+        String packageName = mContext.getPackageName();
+        if (!mProviderHelper.getRegisteredApiApps().contains(packageName)) {
+            byte[] signature = mContext.getPackageManager().getPackageInfo(packageName,
+                    PackageManager.GET_SIGNATURES).signatures[0].toByteArray();
+            mProviderHelper.insertApiApp(new AppSettings(packageName, signature));
+            mRegisteredApp = true;
+        }
+        AccountSettings account = new AccountSettings(ACCOUNT_NAME);
+        account.setKeyId(mMasterKeyId);
+        account.setCompression(Constants.choice.compression.none);
+        mProviderHelper.insertApiAccount(ApiAccounts.buildBaseUri(packageName), account);
+
+        assertTrue(mContext.bindService(new Intent(mContext, OpenPgpService.class), mConnection,
+                Context.BIND_AUTO_CREATE));
+        assertTrue(mConnected.await(10, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mMasterKeyId != Constants.key.none) {
+            mContext.unbindService(mConnection);
+            String packageName = mContext.getPackageName();
+            if (mRegisteredApp) {
+                // removes the account as well
+                mContext.getContentResolver().delete(
+                        ApiApps.buildByPackageNameUri(packageName), null, null);
+            } else {
+                mContext.getContentResolver().delete(
+                        ApiAccounts.buildByPackageAndAccountUri(packageName, ACCOUNT_NAME),
+                        null, null);
+            }
+        }
+        super.tearDown();
+    }
+
+    private long findEncryptionSecretKey() {
+        Cursor cursor = mContext.getContentResolver().query(KeyRings.buildUnifiedKeyRingsUri(),
+                new String[]{KeyRings.MASTER_KEY_ID, KeyRings.HAS_ANY_SECRET,
+                        KeyRings.HAS_ENCRYPT}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(1) != 0 && cursor.getInt(2) != 0) {
+                    return cursor.getLong(0);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return Constants.key.none;
+    }
+
+    public void testStreaming() throws Exception {
+        if (mMasterKeyId == Constants.key.none) {
+            Log.w(Constants.TAG, "No secret key that can encrypt, nothing to benchmark");
+            return;
+        }
+
+        run("copy", new Service() {
+            @Override
+            public void process(ParcelFileDescriptor input, ParcelFileDescriptor output)
+                    throws Exception {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+                byte[] buffer = BufferPool.acquire();
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                    in.close();
+                    out.close();
+                }
+            }
+        });
+
+        run("OpenPgpService encryption", new Service() {
+            @Override
+            public void process(ParcelFileDescriptor input, ParcelFileDescriptor output)
+                    throws Exception {
+                Intent data = new Intent(OpenPgpApi.ACTION_ENCRYPT);
+                data.putExtra(OpenPgpApi.EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+                data.putExtra(OpenPgpApi.EXTRA_ACCOUNT_NAME, ACCOUNT_NAME);
+                data.putExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, false);
+                // the key of the account is added by the service
+                data.putExtra(OpenPgpApi.EXTRA_KEY_IDS, new long[0]);
+
+                Intent result = mService.execute(data, input, output);
+                if (result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
+                        != OpenPgpApi.RESULT_CODE_SUCCESS) {
+                    OpenPgpError error = result.getParcelableExtra(OpenPgpApi.RESULT_ERROR);
+                    fail("encryption failed: " + (error != null ? error.getMessage() : result));
+                }
+            }
+        });
+    }
+
+    private void run(String label, Service service) throws Exception {
+        ParcelFileDescriptor[] input = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] output = ParcelFileDescriptor.createPipe();
+
+        final OutputStream client = new ParcelFileDescriptor.AutoCloseOutputStream(input[1]);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[1 << 16];
+                try {
+                    for (long left = BYTES; left > 0; left -= chunk.length) {
+                        client.write(chunk, 0, (int) Math.min(left, chunk.length));
+                    }
+                    client.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "writing to the pipe failed", e);
+                }
+            }
+        };
+
+        final InputStream result = new ParcelFileDescriptor.AutoCloseInputStream(output[0]);
+        final long[] received = new long[1];
+        Thread drain = new Thread() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[1 << 16];
+                int n;
+                try {
+                    while ((n = result.read(chunk)) > 0) {
+                        received[0] += n;
+                    }
+                    result.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "reading from the pipe failed", e);
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        writer.start();
+        drain.start();
+
+        try {
+            service.process(input[0], output[1]);
+        } finally {
+            // our ends of the descriptors handed over, like OpenPgpApi.executeApi does
+            input[0].close();
+            output[1].close();
+        }
+
+        writer.join();
+        drain.join();
+        long time = System.nanoTime() - start;
+
+        Log.i(Constants.TAG, label + ": " + BYTES + " bytes in, " + received[0] + " bytes out, "
+                + (BYTES * 1000 / time) + " MB/s");
+    }
+}
@@ -61,6 +61,7 @@ public final class Constants {
         public static final String PASSPHRASE_CACHE_TTL = "passphraseCacheTtl";
         public static final String LANGUAGE = "language";
         public static final String FORCE_V3_SIGNATURES = "forceV3Signatures";
+        public static final String CACHE_UNLOCKED_KEYS = "cacheUnlockedKeys";
         public static final String KEY_SERVERS = "keyServers";
     }
 
@@ -60,6 +60,16 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getCacheUnlockedKeys() {
+        return mSharedPreferences.getBoolean(Constants.Pref.CACHE_UNLOCKED_KEYS, true);
+    }
+
+    public void setCacheUnlockedKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.Pref.CACHE_UNLOCKED_KEYS, value);
+        editor.commit();
+    }
+
     public long getPassphraseCacheTtl() {
         int ttl = mSharedPreferences.getInt(Constants.Pref.PASSPHRASE_CACHE_TTL, 180);
         // fix the value if it was set to "never" in previous versions, which currently is not
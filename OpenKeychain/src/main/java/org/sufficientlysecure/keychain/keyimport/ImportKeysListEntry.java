@@ -56,6 +56,8 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
     private boolean mSelected;
 
     private byte[] mBytes = new byte[]{};
+    // position of the key ring in its key file, if mBytes are not kept
+    private int mPosition = -1;
 
     public int describeContents() {
         return 0;
@@ -76,6 +78,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         dest.writeByte((byte) (mSelected ? 1 : 0));
         dest.writeInt(mBytes.length);
         dest.writeByteArray(mBytes);
+        dest.writeInt(mPosition);
         dest.writeString(mExtraData);
     }
 
@@ -96,6 +99,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
             vr.mSelected = source.readByte() == 1;
             vr.mBytes = new byte[source.readInt()];
             source.readByteArray(vr.mBytes);
+            vr.mPosition = source.readInt();
             vr.mExtraData = source.readString();
 
             return vr;
@@ -118,6 +122,13 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.mBytes = bytes;
     }
 
+    /**
+     * @return position of the key ring in its key file, or -1 if it is kept in getBytes()
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
     public boolean isSelected() {
         return mSelected;
     }
@@ -232,14 +243,24 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
     /**
      * Constructor based on key object, used for import from NFC, QR Codes, files
      */
-    @SuppressWarnings("unchecked")
     public ImportKeysListEntry(Context context, PGPKeyRing pgpKeyRing) {
+        this(context, pgpKeyRing, -1);
+
         // save actual key object into entry, used to import it later
         try {
             this.mBytes = pgpKeyRing.getEncoded();
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on pgpKeyRing.getEncoded()", e);
         }
+    }
+
+    /**
+     * Constructor based on key object, used for import from large files. The key ring itself
+     * is not kept, but read from the file again at the given position when importing.
+     */
+    @SuppressWarnings("unchecked")
+    public ImportKeysListEntry(Context context, PGPKeyRing pgpKeyRing, int position) {
+        this.mPosition = position;
 
         // selected is default
         this.mSelected = true;
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.VerifiedSignatureCache;
+import org.thialfihar.android.apg.util.Log;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies user id certifications, for one session of saving key rings (e.g. an import).
+ *
+ * The master keys of our own key rings are loaded once per session, certifications by them are
+ * considered trusted. Outcomes known from the VerifiedSignatureCache are not checked again, the
+ * remaining checks of a key ring are spread over a small shared pool of threads, the calling
+ * thread takes part as well.
+ */
+public class PgpCertificationVerifier {
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    /** Below this number of checks, spreading them over threads is not worth it */
+    private static final int MIN_PARALLEL_CHECKS = 4;
+
+    // the provider has no state besides the security provider, so it can be shared
+    private static final JcaPGPContentVerifierBuilderProvider sVerifierBuilderProvider =
+            new JcaPGPContentVerifierBuilderProvider().setProvider(
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final LongSparseArray<PGPPublicKey> mOwnedKeys = new LongSparseArray<PGPPublicKey>();
+    private final VerifiedSignatureCache mCache;
+
+    /**
+     * A certification of userId by signer, which is to be checked
+     */
+    public static class Check {
+        final String userId;
+        final PGPSignature cert;
+        final PGPPublicKey signer;
+
+        public Check(String userId, PGPSignature cert, PGPPublicKey signer) {
+            this.userId = userId;
+            this.cert = cert;
+            this.signer = signer;
+        }
+    }
+
+    /**
+     * @param ownedKeyRings our own (i.e. secret) key rings, by master key id
+     * @param cache         may be null
+     */
+    public PgpCertificationVerifier(LongSparseArray<? extends PGPKeyRing> ownedKeyRings,
+                                    VerifiedSignatureCache cache) {
+        mCache = cache;
+        for (int i = 0; i < ownedKeyRings.size(); ++i) {
+            mOwnedKeys.put(ownedKeyRings.keyAt(i), ownedKeyRings.valueAt(i).getPublicKey());
+        }
+    }
+
+    /**
+     * Adds a key ring which has become our own during this session
+     */
+    public synchronized void addOwnedKeyRing(PGPKeyRing keyRing) {
+        mOwnedKeys.put(keyRing.getPublicKey().getKeyID(), keyRing.getPublicKey());
+    }
+
+    /**
+     * @return master key of our own key ring with the given id, or null
+     */
+    public synchronized PGPPublicKey getOwnedKey(long masterKeyId) {
+        return mOwnedKeys.get(masterKeyId);
+    }
+
+    /**
+     * Verifies the given certifications of user ids of masterKey. Each PGPSignature object may
+     * only be part of one check, since checks are run in parallel. All signers must be master
+     * keys.
+     *
+     * @return for each check, whether the certification is valid
+     */
+    public boolean[] verify(PGPPublicKey masterKey, List<Check> checks) {
+        boolean[] results = new boolean[checks.size()];
+        // whether a check was actually run, only those outcomes are cached
+        boolean[] done = new boolean[checks.size()];
+
+        // look up outcomes of earlier verifications first
+        String[] digests = new String[checks.size()];
+        List<Integer> todo = new ArrayList<Integer>();
+        if (mCache != null) {
+            PGPPublicKey[] signers = new PGPPublicKey[checks.size()];
+            for (int i = 0; i < checks.size(); ++i) {
+                Check check = checks.get(i);
+                digests[i] = VerifiedSignatureCache.digestCertification(
+                        check.cert, check.userId, masterKey);
+                signers[i] = check.signer;
+            }
+            Boolean[] cached = mCache.get(digests, signers);
+            for (int i = 0; i < checks.size(); ++i) {
+                if (cached[i] != null) {
+                    results[i] = cached[i];
+                } else {
+                    todo.add(i);
+                }
+            }
+        } else {
+            for (int i = 0; i < checks.size(); ++i) {
+                todo.add(i);
+            }
+        }
+
+        verify(masterKey, checks, todo, results, done);
+
+        if (mCache != null) {
+            for (int i : todo) {
+                if (done[i]) {
+                    Check check = checks.get(i);
+                    mCache.put(digests[i], check.signer, check.signer.getKeyID(), results[i]);
+                }
+            }
+            mCache.flush();
+        }
+        return results;
+    }
+
+    private static void verify(final PGPPublicKey masterKey, final List<Check> checks,
+                               final List<Integer> todo, final boolean[] results,
+                               final boolean[] done) {
+        if (todo.size() < MIN_PARALLEL_CHECKS) {
+            verify(masterKey, checks, todo, results, done, 0, 1);
+            return;
+        }
+
+        // every task takes every numTasks-th check, the last one is run by this thread
+        final int numTasks = Math.min(NUM_THREADS, todo.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(numTasks - 1);
+        for (int i = 0; i < numTasks - 1; ++i) {
+            final int offset = i;
+            futures.add(getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    verify(masterKey, checks, todo, results, done, offset, numTasks);
+                }
+            }));
+        }
+        verify(masterKey, checks, todo, results, done, numTasks - 1, numTasks);
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "Interrupted while verifying certifications", e);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(Constants.TAG, "Verifying certifications failed", e.getCause());
+            }
+        }
+    }
+
+    private static void verify(PGPPublicKey masterKey, List<Check> checks, List<Integer> todo,
+                               boolean[] results, boolean[] done, int offset, int step) {
+        for (int j = offset; j < todo.size(); j += step) {
+            int i = todo.get(j);
+            Check check = checks.get(i);
+            try {
+                // the key ring may be shared through the KeyRingCache, don't let other
+                // threads re-init this signature while we are verifying it
+                synchronized (check.cert) {
+                    check.cert.init(sVerifierBuilderProvider, check.signer);
+                    results[i] = check.cert.verifyCertification(check.userId, masterKey);
+                }
+                done[i] = true;
+            } catch (SignatureException e) {
+                Log.e(Constants.TAG, "Signature verification failed! "
+                        + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
+                        + " from "
+                        + PgpKeyHelper.convertKeyIdToHex(check.cert.getKeyID()), e);
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "Signature verification failed! "
+                        + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
+                        + " from "
+                        + PgpKeyHelper.convertKeyIdToHex(check.cert.getKeyID()), e);
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            // if the queue is full, the caller verifies on its own rather than waiting
+            sExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(4 * NUM_THREADS),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+}
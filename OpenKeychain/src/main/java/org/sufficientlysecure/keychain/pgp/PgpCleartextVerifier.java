@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Signer;
+import org.spongycastle.crypto.digests.MD5Digest;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+import org.spongycastle.crypto.digests.SHA1Digest;
+import org.spongycastle.crypto.digests.SHA224Digest;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.digests.SHA384Digest;
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.signers.DSADigestSigner;
+import org.spongycastle.crypto.signers.DSASigner;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.RSADigestSigner;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.PGPContentVerifier;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.bc.BcPGPKeyConverter;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Reads the text of a cleartext signed message (http://tools.ietf.org/html/rfc4880#section-7)
+ * in a single pass: the text is written out block by block with line endings converted to the
+ * platform's, and at the same time its canonical form (CRLF line endings, no trailing
+ * whitespace) is hashed with every algorithm announced in the armor's Hash headers.
+ *
+ * The signer isn't known before the signature block following the text has been read, so the
+ * signature is checked afterwards: pass getContentVerifierBuilderProvider() to PGPSignature.init
+ * and call PGPSignature.verify without any update calls. The signature itself is checked by
+ * BouncyCastle's RSADigestSigner/DSADigestSigner, on a copy of the text's digest.
+ */
+public class PgpCleartextVerifier {
+
+    private final OutputStream mOut;
+    private final byte[] mLineSeparator;
+    private final HashMap<Integer, Digest> mDigests = new HashMap<Integer, Digest>();
+
+    // trailing whitespace of the current line, only hashed if something else follows it
+    private final ByteArrayOutputStream mPendingWhiteSpace = new ByteArrayOutputStream();
+    private boolean mAtLineStart = true;
+    private boolean mLastWasCr = false;
+    private int mLines = 0;
+
+    /**
+     * @param armorHeaders headers of the cleartext armor, as returned by
+     *                     ArmoredInputStream.getArmorHeaders()
+     * @param out          receives the text
+     */
+    public PgpCleartextVerifier(String[] armorHeaders, OutputStream out) {
+        mOut = out;
+        mLineSeparator = getLineSeparator();
+
+        if (armorHeaders != null) {
+            for (String header : armorHeaders) {
+                if (!header.startsWith("Hash:")) {
+                    continue;
+                }
+                for (String name : header.substring("Hash:".length()).split(",")) {
+                    addDigest(name.trim());
+                }
+            }
+        }
+        if (mDigests.isEmpty()) {
+            // without a Hash header, MD5 is to be assumed
+            addDigest("MD5");
+        }
+    }
+
+    private void addDigest(String name) {
+        int hashAlgorithm = getHashAlgorithm(name);
+        if (hashAlgorithm < 0) {
+            Log.e(Constants.TAG, "Unknown hash algorithm in armor header: " + name);
+            return;
+        }
+        if (!mDigests.containsKey(hashAlgorithm)) {
+            mDigests.put(hashAlgorithm, createDigest(hashAlgorithm, null));
+        }
+    }
+
+    private static int getHashAlgorithm(String name) {
+        if ("MD5".equals(name)) {
+            return HashAlgorithmTags.MD5;
+        } else if ("SHA1".equals(name)) {
+            return HashAlgorithmTags.SHA1;
+        } else if ("RIPEMD160".equals(name)) {
+            return HashAlgorithmTags.RIPEMD160;
+        } else if ("SHA224".equals(name)) {
+            return HashAlgorithmTags.SHA224;
+        } else if ("SHA256".equals(name)) {
+            return HashAlgorithmTags.SHA256;
+        } else if ("SHA384".equals(name)) {
+            return HashAlgorithmTags.SHA384;
+        } else if ("SHA512".equals(name)) {
+            return HashAlgorithmTags.SHA512;
+        }
+        return -1;
+    }
+
+    /**
+     * @param original digest to copy the state of, null for a new digest
+     */
+    private static Digest createDigest(int hashAlgorithm, Digest original) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.MD5:
+                return original == null ? new MD5Digest() : new MD5Digest((MD5Digest) original);
+            case HashAlgorithmTags.SHA1:
+                return original == null ? new SHA1Digest() : new SHA1Digest((SHA1Digest) original);
+            case HashAlgorithmTags.RIPEMD160:
+                return original == null ? new RIPEMD160Digest()
+                        : new RIPEMD160Digest((RIPEMD160Digest) original);
+            case HashAlgorithmTags.SHA224:
+                return original == null ? new SHA224Digest()
+                        : new SHA224Digest((SHA224Digest) original);
+            case HashAlgorithmTags.SHA256:
+                return original == null ? new SHA256Digest()
+                        : new SHA256Digest((SHA256Digest) original);
+            case HashAlgorithmTags.SHA384:
+                return original == null ? new SHA384Digest()
+                        : new SHA384Digest((SHA384Digest) original);
+            case HashAlgorithmTags.SHA512:
+                return original == null ? new SHA512Digest()
+                        : new SHA512Digest((SHA512Digest) original);
+            default:
+                throw new IllegalArgumentException("unknown hash algorithm " + hashAlgorithm);
+        }
+    }
+
+    /**
+     * Reads the text up to the signature block, afterwards aIn is positioned at the signature.
+     */
+    public void process(ArmoredInputStream aIn) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        int length = 0;
+
+        // the armored stream has to be read byte by byte, it leaves clear text mode on the start
+        // of the signature block, which mustn't be consumed by a bulk read. The text is written
+        // out and hashed whenever the block is full
+        int ch;
+        while ((ch = aIn.read()) >= 0 && aIn.isClearText()) {
+            buffer[length++] = (byte) ch;
+            if (length == buffer.length) {
+                update(buffer, 0, length);
+                length = 0;
+            }
+        }
+        update(buffer, 0, length);
+        BufferPool.release(buffer);
+
+        // like before, the text written out always ends with a line separator
+        if (!mAtLineStart || mLines == 0) {
+            mOut.write(mLineSeparator);
+        }
+        mOut.flush();
+    }
+
+    /**
+     * Processes a block of text
+     */
+    private void update(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; ++i) {
+            byte b = buffer[i];
+            if (b != '\r' && b != '\n') {
+                mLastWasCr = false;
+                continue;
+            }
+
+            if (b == '\n' && mLastWasCr) {
+                // second half of a CRLF
+                mLastWasCr = false;
+            } else {
+                updateLine(buffer, start, i - start);
+                endLine();
+                mLastWasCr = (b == '\r');
+            }
+            start = i + 1;
+        }
+        updateLine(buffer, start, end - start);
+    }
+
+    /**
+     * Processes a piece of a line, without line endings
+     */
+    private void updateLine(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        startLine();
+        mOut.write(buffer, offset, length);
+
+        int last = offset + length - 1;
+        while (last >= offset && isWhiteSpace(buffer[last])) {
+            --last;
+        }
+        if (last >= offset) {
+            if (mPendingWhiteSpace.size() > 0) {
+                updateDigests(mPendingWhiteSpace.toByteArray(), 0, mPendingWhiteSpace.size());
+                mPendingWhiteSpace.reset();
+            }
+            updateDigests(buffer, offset, last + 1 - offset);
+        }
+        mPendingWhiteSpace.write(buffer, last + 1, offset + length - (last + 1));
+    }
+
+    private void startLine() {
+        if (!mAtLineStart) {
+            return;
+        }
+        // lines are separated by CRLF, the line ending before the signature isn't signed
+        if (mLines > 0) {
+            updateDigests(new byte[]{'\r', '\n'}, 0, 2);
+        }
+        ++mLines;
+        mAtLineStart = false;
+    }
+
+    private void endLine() throws IOException {
+        startLine();
+        mPendingWhiteSpace.reset();
+        mOut.write(mLineSeparator);
+        mAtLineStart = true;
+    }
+
+    private void updateDigests(byte[] buffer, int offset, int length) {
+        for (Digest digest : mDigests.values()) {
+            digest.update(buffer, offset, length);
+        }
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == '\t' || b == ' ';
+    }
+
+    private static byte[] getLineSeparator() {
+        String nl = System.getProperty("line.separator");
+        byte[] nlBytes = new byte[nl.length()];
+
+        for (int i = 0; i != nlBytes.length; i++) {
+            nlBytes[i] = (byte) nl.charAt(i);
+        }
+
+        return nlBytes;
+    }
+
+    /**
+     * @return provider of verifiers which check signatures against the text processed so far,
+     * a signature made with a hash algorithm not announced in the armor header fails in
+     * PGPSignature.init
+     */
+    public PGPContentVerifierBuilderProvider getContentVerifierBuilderProvider() {
+        return new PGPContentVerifierBuilderProvider() {
+            @Override
+            public PGPContentVerifierBuilder get(final int keyAlgorithm, final int hashAlgorithm)
+                    throws PGPException {
+                final Digest textDigest = mDigests.get(hashAlgorithm);
+                if (textDigest == null) {
+                    throw new PGPException("hash algorithm " + hashAlgorithm
+                            + " not announced in armor header");
+                }
+
+                return new PGPContentVerifierBuilder() {
+                    @Override
+                    public PGPContentVerifier build(final PGPPublicKey publicKey)
+                            throws PGPException {
+                        // each verifier continues on its own copy of the text's digest
+                        final Signer signer = createSigner(keyAlgorithm,
+                                new ContinuedDigest(createDigest(hashAlgorithm, textDigest)));
+                        signer.init(false, new BcPGPKeyConverter().getPublicKey(publicKey));
+
+                        return new PGPContentVerifier() {
+                            @Override
+                            public OutputStream getOutputStream() {
+                                return new OutputStream() {
+                                    @Override
+                                    public void write(int b) {
+                                        signer.update((byte) b);
+                                    }
+
+                                    @Override
+                                    public void write(byte[] b, int off, int len) {
+                                        signer.update(b, off, len);
+                                    }
+                                };
+                            }
+
+                            @Override
+                            public int getHashAlgorithm() {
+                                return hashAlgorithm;
+                            }
+
+                            @Override
+                            public int getKeyAlgorithm() {
+                                return keyAlgorithm;
+                            }
+
+                            @Override
+                            public long getKeyID() {
+                                return publicKey.getKeyID();
+                            }
+
+                            @Override
+                            public boolean verify(byte[] expected) {
+                                return signer.verifySignature(expected);
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The same signers BcPGPContentVerifierBuilderProvider uses
+     */
+    private static Signer createSigner(int keyAlgorithm, Digest digest) throws PGPException {
+        switch (keyAlgorithm) {
+            case PublicKeyAlgorithmTags.RSA_GENERAL:
+            case PublicKeyAlgorithmTags.RSA_SIGN:
+                return new RSADigestSigner(digest);
+            case PublicKeyAlgorithmTags.DSA:
+                return new DSADigestSigner(new DSASigner(), digest);
+            case PublicKeyAlgorithmTags.ECDSA:
+                return new DSADigestSigner(new ECDSASigner(), digest);
+            default:
+                throw new PGPException("cannot recognise keyAlgorithm: " + keyAlgorithm);
+        }
+    }
+
+    /**
+     * A digest which already contains the text: the signers reset their digest on init, that
+     * reset is ignored, so the signature trailer is appended to the text instead. Only good for
+     * a single verification.
+     */
+    private static class ContinuedDigest implements Digest {
+        private final Digest mDigest;
+
+        public ContinuedDigest(Digest digest) {
+            mDigest = digest;
+        }
+
+        @Override
+        public String getAlgorithmName() {
+            // RSADigestSigner picks the DigestInfo algorithm by this name
+            return mDigest.getAlgorithmName();
+        }
+
+        @Override
+        public int getDigestSize() {
+            return mDigest.getDigestSize();
+        }
+
+        @Override
+        public void update(byte in) {
+            mDigest.update(in);
+        }
+
+        @Override
+        public void update(byte[] in, int inOff, int len) {
+            mDigest.update(in, inOff, len);
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) {
+            return mDigest.doFinal(out, outOff);
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+}
@@ -18,7 +18,8 @@
 
 package org.thialfihar.android.apg.pgp;
 
-import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
 
 import org.spongycastle.bcpg.ArmoredInputStream;
 import org.spongycastle.bcpg.SignatureSubpacketTags;
@@ -36,44 +37,56 @@ import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
-import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.spongycastle.util.encoders.Hex;
+import org.spongycastle.util.io.Streams;
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.pgp.Progressable;
 import org.thialfihar.android.apg.provider.ApgContract;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.provider.VerifiedSignatureCache;
+import org.thialfihar.android.apg.util.BufferPool;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.StreamProgress;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 /**
  * This class uses a Builder pattern!
  */
 public class PgpDecryptVerify {
+    // the provider has no state besides the security provider, so it can be shared
+    private static final JcaPGPContentVerifierBuilderProvider sVerifierBuilderProvider =
+            new JcaPGPContentVerifierBuilderProvider().setProvider(
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+    private static final int MAX_KEY_BINDING_RESULTS = 256;
+    // outcomes of key binding verifications by digestKeyBinding and issuer fingerprint, the
+    // same few signing keys are used over and over, so they are kept in memory only
+    private static final LruCache<String, Boolean> sKeyBindingResults =
+            new LruCache<String, Boolean>(MAX_KEY_BINDING_RESULTS);
+
     private ProviderHelper mProviderHelper;
     private PassphraseCache mPassphraseCache;
     private InputData mData;
@@ -84,6 +97,9 @@ public class PgpDecryptVerify {
     private String mPassphrase;
     private Set<Long> mAllowedKeyIds;
 
+    // decryptors of the keys unlocked so far, only kept during executeMulti
+    private LongSparseArray<PublicKeyDataDecryptorFactory> mDecryptorFactories;
+
     private PgpDecryptVerify(Builder builder) {
         // private Constructor can only be called from Builder
         this.mProviderHelper = builder.mProviderHelper;
@@ -166,6 +182,17 @@ public class PgpDecryptVerify {
         public String getCachedPassphrase(long masterKeyId);
     }
 
+    /**
+     * Output of executeMulti, one stream per message
+     */
+    public interface MessageSink {
+        /**
+         * @return stream for the content of the message with the given index, it is closed by
+         * executeMulti when the message is done
+         */
+        OutputStream open(int index) throws IOException;
+    }
+
     public static class InvalidDataException extends Exception {
         public InvalidDataException() {
         }
@@ -198,18 +225,102 @@ public class PgpDecryptVerify {
             throws IOException, PGPException, SignatureException,
             WrongPassphraseException, NoSecretKeyException, KeyExtractionException,
             InvalidDataException, IntegrityCheckFailedException {
+        return executeMessage(mData.getInputStream(), false);
+    }
+
+    /**
+     * Decrypts and/or verifies all consecutive messages in the data, armored or binary, each
+     * into its own stream of the sink. The output stream given to the Builder isn't used.
+     *
+     * Keys unlocked for one message are used for the following ones as well. If a passphrase is
+     * missing for a message, the messages after it can't be reached, so it is the last result
+     * returned. An exception aborts the whole operation.
+     *
+     * @return the result of every message, in order
+     */
+    public List<PgpDecryptVerifyResult> executeMulti(MessageSink sink)
+            throws IOException, PGPException, SignatureException,
+            WrongPassphraseException, NoSecretKeyException, KeyExtractionException,
+            InvalidDataException, IntegrityCheckFailedException {
+        List<PgpDecryptVerifyResult> results = new ArrayList<PgpDecryptVerifyResult>();
+
+        // getDecoderStream peeks at the input with mark/reset, with this buffer every message
+        // starts right where the one before ended
+        BufferedInputStream in = new BufferedInputStream(mData.getInputStream(), 1 << 16);
+        String passphrase = mPassphrase;
+        mDecryptorFactories = new LongSparseArray<PublicKeyDataDecryptorFactory>();
+        try {
+            while (skipWhiteSpace(in)) {
+                // a passphrase taken from the cache for one message may not fit the next one
+                mPassphrase = passphrase;
+
+                mOutStream = sink.open(results.size());
+                PgpDecryptVerifyResult result;
+                try {
+                    result = executeMessage(in, true);
+                } finally {
+                    mOutStream.close();
+                }
+                results.add(result);
+
+                if (result.getStatus() == PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED
+                        || result.getStatus() == PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED) {
+                    break;
+                }
+            }
+        } finally {
+            mDecryptorFactories = null;
+            mPassphrase = passphrase;
+        }
+        return results;
+    }
+
+    /**
+     * Skips the whitespace between messages
+     *
+     * @return false if the end of the stream was reached
+     */
+    private static boolean skipWhiteSpace(InputStream in) throws IOException {
+        while (true) {
+            in.mark(1);
+            int c = in.read();
+            if (c < 0) {
+                return false;
+            }
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                in.reset();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param multi true if more messages may follow in input
+     */
+    private PgpDecryptVerifyResult executeMessage(InputStream input, boolean multi)
+            throws IOException, PGPException, SignatureException,
+            WrongPassphraseException, NoSecretKeyException, KeyExtractionException,
+            InvalidDataException, IntegrityCheckFailedException {
         // automatically works with ascii armor input and binary
-        InputStream in = PGPUtil.getDecoderStream(mData.getInputStream());
+        InputStream in = PGPUtil.getDecoderStream(input);
         if (in instanceof ArmoredInputStream) {
             ArmoredInputStream aIn = (ArmoredInputStream) in;
             // it is ascii armored
             Log.d(Constants.TAG, "ASCII Armor Header Line: " + aIn.getArmorHeaderLine());
 
+            PgpDecryptVerifyResult result;
             if (aIn.isClearText()) {
                 // a cleartext signature, verify it with the other method
-                return verifyCleartextSignature(aIn);
+                result = verifyCleartextSignature(aIn);
+            } else {
+                // else: ascii armored encryption! go on...
+                result = decryptVerify(aIn);
             }
-            // else: ascii armored encryption! go on...
+            if (multi) {
+                // the checksum and END line are still unread, the next message starts after them
+                Streams.drain(aIn);
+            }
+            return result;
         }
 
         return decryptVerify(in);
@@ -248,98 +359,98 @@ public class PgpDecryptVerify {
 
         PGPPublicKeyEncryptedData encryptedDataAsymmetric = null;
         PGPPBEEncryptedData encryptedDataSymmetric = null;
-        PGPSecretKey secretEncryptionKey = null;
-        Iterator<?> it = enc.getEncryptedDataObjects();
+        long secretEncryptionKeyId = Constants.key.none;
+        long secretEncryptionMasterKeyId = Constants.key.none;
         boolean asymmetricPacketFound = false;
         boolean symmetricPacketFound = false;
-        // go through all objects and find one we can decrypt
+
+        // collect the packets first, so all recipients can be matched against our keys at once
+        List<PGPPublicKeyEncryptedData> asymmetricPackets =
+                new ArrayList<PGPPublicKeyEncryptedData>();
+        // number of asymmetric packets before the first symmetric one
+        int symmetricPosition = -1;
+        Iterator<?> it = enc.getEncryptedDataObjects();
         while (it.hasNext()) {
             Object obj = it.next();
             if (obj instanceof PGPPublicKeyEncryptedData) {
-                updateProgress(R.string.progress_finding_key, currentProgress, 100);
+                asymmetricPackets.add((PGPPublicKeyEncryptedData) obj);
+            } else if (mAllowSymmetricDecryption && obj instanceof PGPPBEEncryptedData
+                    && encryptedDataSymmetric == null) {
+                encryptedDataSymmetric = (PGPPBEEncryptedData) obj;
+                symmetricPosition = asymmetricPackets.size();
+            }
+        }
 
-                PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
+        updateProgress(R.string.progress_finding_key, currentProgress, 100);
 
-                long masterKeyId;
-                PGPSecretKeyRing secretKeyRing;
-                try {
-                    // get master key id for this encryption key id
-                    masterKeyId = mProviderHelper.getMasterKeyId(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(encData.getKeyID()))
-                    );
-                    // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getPGPSecretKeyRing(masterKeyId);
-                } catch (ProviderHelper.NotFoundException e) {
-                    // continue with the next packet in the while loop
-                    continue;
-                }
-                if (secretKeyRing == null) {
-                    // continue with the next packet in the while loop
-                    continue;
-                }
-                // get subkey which has been used for this encryption packet
-                secretEncryptionKey = secretKeyRing.getSecretKey(encData.getKeyID());
-                if (secretEncryptionKey == null) {
-                    // continue with the next packet in the while loop
-                    continue;
-                }
-
-                /* secret key exists in database! */
+        long[] recipientKeyIds = new long[asymmetricPackets.size()];
+        for (int i = 0; i < recipientKeyIds.length; ++i) {
+            recipientKeyIds[i] = asymmetricPackets.get(i).getKeyID();
+        }
+        long[] masterKeyIds = mProviderHelper.getSecretMasterKeyIds(recipientKeyIds);
 
-                // allow only specific keys for decryption?
-                if (mAllowedKeyIds != null) {
-                    Log.d(Constants.TAG, "encData.getKeyID():" + encData.getKeyID());
-                    Log.d(Constants.TAG, "allowedKeyIds: " + mAllowedKeyIds);
-                    Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
+        // packets we have an allowed secret key for, in the order of the message. As before,
+        // a symmetric packet (if allowed) wins over the asymmetric packets following it. Only
+        // ids are looked at here, the secret key ring of the chosen packet is the only one loaded
+        List<Integer> candidates = new ArrayList<Integer>();
+        int limit = symmetricPosition >= 0 ? symmetricPosition : asymmetricPackets.size();
+        for (int i = 0; i < limit; ++i) {
+            if (masterKeyIds[i] == Constants.key.none) {
+                continue;
+            }
 
-                    if (!mAllowedKeyIds.contains(masterKeyId)) {
-                        // this key is in our db, but NOT allowed!
-                        // continue with the next packet in the while loop
-                        continue;
-                    }
-                }
+            // allow only specific keys for decryption?
+            if (mAllowedKeyIds != null && !mAllowedKeyIds.contains(masterKeyIds[i])) {
+                // this key is in our db, but NOT allowed!
+                Log.d(Constants.TAG, "key " + PgpKeyHelper.convertKeyIdToHex(recipientKeyIds[i])
+                        + " not allowed, allowedKeyIds: " + mAllowedKeyIds);
+                continue;
+            }
 
-                /* secret key exists in database and is allowed! */
-                asymmetricPacketFound = true;
+            candidates.add(i);
+        }
 
-                encryptedDataAsymmetric = encData;
+        if (!candidates.isEmpty()) {
+            /* secret key exists in database and is allowed! */
+            asymmetricPacketFound = true;
 
-                // if no passphrase was explicitly set try to get it from the cache service
-                if (mPassphrase == null) {
+            // if no passphrase was explicitly set, prefer a key whose passphrase is cached
+            int chosen = 0;
+            if (mPassphrase == null) {
+                for (chosen = 0; chosen < candidates.size(); ++chosen) {
                     // returns "" if key has no passphrase
-                    mPassphrase = mPassphraseCache.getCachedPassphrase(masterKeyId);
-
-                    // if passphrase was not cached, return here
-                    // indicating that a passphrase is missing!
-                    if (mPassphrase == null) {
-                        result.setKeyIdPassphraseNeeded(masterKeyId);
-                        result.setStatus(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED);
-                        return result;
+                    mPassphrase = mPassphraseCache.getCachedPassphrase(
+                            masterKeyIds[candidates.get(chosen)]);
+                    if (mPassphrase != null) {
+                        break;
                     }
                 }
 
-                // break out of while, only decrypt the first packet where we have a key
-                // TODO???: There could be more pgp objects, which are not decrypted!
-                break;
-            } else if (mAllowSymmetricDecryption && obj instanceof PGPPBEEncryptedData) {
-                /*
-                 * When mAllowSymmetricDecryption == true and we find a data packet here,
-                 * we do not search for other available asymmetric packets!
-                 */
-                symmetricPacketFound = true;
-
-                encryptedDataSymmetric = (PGPPBEEncryptedData) obj;
-
-                // if no passphrase is given, return here
+                // if no passphrase was cached, return here
                 // indicating that a passphrase is missing!
                 if (mPassphrase == null) {
-                    result.setStatus(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED);
+                    result.setKeyIdPassphraseNeeded(masterKeyIds[candidates.get(0)]);
+                    result.setStatus(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED);
                     return result;
                 }
+            }
 
-                // break out of while, only decrypt the first packet
-                // TODO???: There could be more pgp objects, which are not decrypted!
-                break;
+            int index = candidates.get(chosen);
+            encryptedDataAsymmetric = asymmetricPackets.get(index);
+            secretEncryptionKeyId = recipientKeyIds[index];
+            secretEncryptionMasterKeyId = masterKeyIds[index];
+        } else if (encryptedDataSymmetric != null) {
+            /*
+             * When mAllowSymmetricDecryption == true and we find a data packet here,
+             * we do not search for other available asymmetric packets!
+             */
+            symmetricPacketFound = true;
+
+            // if no passphrase is given, return here
+            // indicating that a passphrase is missing!
+            if (mPassphrase == null) {
+                result.setStatus(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED);
+                return result;
             }
         }
 
@@ -359,24 +470,46 @@ public class PgpDecryptVerify {
         } else if (asymmetricPacketFound) {
             currentProgress += 5;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
-            PGPPrivateKey privateKey;
-            try {
-                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                                mPassphrase.toCharArray());
-                privateKey = secretEncryptionKey.extractPrivateKey(keyDecryptor);
-            } catch (PGPException e) {
-                throw new WrongPassphraseException();
+            PublicKeyDataDecryptorFactory decryptorFactory = null;
+            if (mDecryptorFactories != null) {
+                decryptorFactory = mDecryptorFactories.get(secretEncryptionKeyId);
             }
-            if (privateKey == null) {
-                throw new KeyExtractionException();
+            if (decryptorFactory == null) {
+                // the only secret key ring loaded
+                PGPSecretKey secretEncryptionKey;
+                try {
+                    secretEncryptionKey = mProviderHelper.getPGPSecretKeyRing(
+                            secretEncryptionMasterKeyId).getSecretKey(secretEncryptionKeyId);
+                } catch (ProviderHelper.NotFoundException e) {
+                    // the key ring was deleted in the meantime
+                    throw new NoSecretKeyException();
+                }
+                if (secretEncryptionKey == null) {
+                    throw new NoSecretKeyException();
+                }
+
+                PGPPrivateKey privateKey;
+                try {
+                    // unlocked keys are kept for a while, as unlocking them is slow
+                    privateKey = PrivateKeyCache.getInstance().extractPrivateKey(
+                            mProviderHelper.getContext(), secretEncryptionMasterKeyId,
+                            secretEncryptionKey, mPassphrase);
+                } catch (PGPException e) {
+                    throw new WrongPassphraseException();
+                }
+                if (privateKey == null) {
+                    throw new KeyExtractionException();
+                }
+
+                decryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
+                if (mDecryptorFactories != null) {
+                    mDecryptorFactories.put(secretEncryptionKeyId, decryptorFactory);
+                }
             }
             currentProgress += 5;
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
-            PublicKeyDataDecryptorFactory decryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
-
             clear = encryptedDataAsymmetric.getDataStream(decryptorFactory);
 
             encryptedData = encryptedDataAsymmetric;
@@ -414,15 +547,7 @@ public class PgpDecryptVerify {
             String primaryUserId = null;
             for (int i = 0; i < sigList.size(); ++i) {
                 try {
-                    Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(
-                            Long.toString(sigList.get(i).getKeyID()));
-                    Map<String, Object> data = mProviderHelper.getGenericData(uri,
-                            new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID },
-                            new int[] { ProviderHelper.FIELD_TYPE_INTEGER,
-                                        ProviderHelper.FIELD_TYPE_STRING }
-                    );
-                    masterKeyId = (Long) data.get(KeyRings.MASTER_KEY_ID);
-                    primaryUserId = (String) data.get(KeyRings.USER_ID);
+                    masterKeyId = mProviderHelper.getMasterKeyIdBySubkey(sigList.get(i).getKeyID());
                     signatureIndex = i;
                 } catch (ProviderHelper.NotFoundException e) {
                     Log.d(Constants.TAG, "key not found!");
@@ -432,6 +557,13 @@ public class PgpDecryptVerify {
 
             if (masterKeyId != null) {
                 // key found in our database!
+                try {
+                    primaryUserId = (String) mProviderHelper.getUnifiedData(masterKeyId,
+                            KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING);
+                } catch (ProviderHelper.NotFoundException e) {
+                    Log.d(Constants.TAG, "key not found!");
+                }
+
                 signature = sigList.get(signatureIndex);
 
                 PGPPublicKeyRing publicKeyRing = null;
@@ -450,10 +582,7 @@ public class PgpDecryptVerify {
                 signatureResultBuilder.userId(primaryUserId);
                 signatureResultBuilder.keyId(masterKeyId);
 
-                JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                        new JcaPGPContentVerifierBuilderProvider()
-                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                signature.init(contentVerifierBuilderProvider, signatureKey);
+                signature.init(sVerifierBuilderProvider, signatureKey);
 
                 // get certification status of this key
                 boolean isSignatureKeyCertified;
@@ -489,7 +618,7 @@ public class PgpDecryptVerify {
 
             PGPLiteralData literalData = (PGPLiteralData) dataChunk;
 
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = BufferPool.acquire();
             InputStream dataIn = literalData.getInputStream();
 
             int startProgress = currentProgress;
@@ -501,12 +630,14 @@ public class PgpDecryptVerify {
             }
 
             int n;
-            // TODO: progress calculation is broken here! Try to rework it based on commented code!
-//            int progress = 0;
+            // progress is based on the position in the input, the size of the decrypted and
+            // decompressed data isn't known
             long startPos = mData.getStreamPosition();
+            StreamProgress progress = new StreamProgress(mProgressable, "decrypt",
+                    startProgress, endProgress, mData.getSize() != InputData.UNKNOWN_SIZE
+                    ? mData.getSize() - startPos : InputData.UNKNOWN_SIZE);
             while ((n = dataIn.read(buffer)) > 0) {
                 mOutStream.write(buffer, 0, n);
-//                progress += n;
                 if (signature != null) {
                     try {
                         signature.update(buffer, 0, n);
@@ -516,18 +647,10 @@ public class PgpDecryptVerify {
                         signature = null;
                     }
                 }
-                // TODO: dead code?!
-                // unknown size, but try to at least have a moving, slowing down progress bar
-//                currentProgress = startProgress + (endProgress - startProgress) * progress
-//                        / (progress + 100000);
-                if (mData.getSize() - startPos == 0) {
-                    currentProgress = endProgress;
-                } else {
-                    currentProgress = (int) (startProgress + (endProgress - startProgress)
-                            * (mData.getStreamPosition() - startPos) / (mData.getSize() - startPos));
-                }
-                updateProgress(currentProgress, 100);
+                progress.update(mData.getStreamPosition() - startPos);
             }
+            BufferPool.release(buffer);
+            progress.finish(mData.getStreamPosition() - startPos);
 
             if (signature != null) {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
@@ -563,6 +686,10 @@ public class PgpDecryptVerify {
             // no integrity check
             Log.e(Constants.TAG, "Encrypted data was not integrity protected!");
             // TODO: inform user?
+
+            // verify() reads the encrypted data to its end, here that has to be done by hand
+            // so a message following this one can be read
+            Streams.drain(clear);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -575,8 +702,8 @@ public class PgpDecryptVerify {
      * This method verifies cleartext signatures
      * as defined in http://tools.ietf.org/html/rfc4880#section-7
      * <p/>
-     * The method is heavily based on
-     * pg/src/main/java/org/spongycastle/openpgp/examples/ClearSignedFileProcessor.java
+     * The text is written out and hashed in one pass by PgpCleartextVerifier, the signer is only
+     * looked up once the signature block following it has been read.
      */
     private PgpDecryptVerifyResult verifyCleartextSignature(ArmoredInputStream aIn)
             throws IOException, PGPException, SignatureException, InvalidDataException {
@@ -585,29 +712,11 @@ public class PgpDecryptVerify {
         // cleartext signatures are never encrypted ;)
         signatureResultBuilder.signatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
         updateProgress(R.string.progress_done, 0, 100);
 
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
-        byte[] lineSep = getLineSeparator();
-
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
-
-        while (lookAhead != -1 && aIn.isClearText()) {
-            lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
-        }
-
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        mOutStream.write(clearText);
+        PgpCleartextVerifier cleartextVerifier =
+                new PgpCleartextVerifier(aIn.getArmorHeaders(), mOutStream);
+        cleartextVerifier.process(aIn);
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
         PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
@@ -624,15 +733,7 @@ public class PgpDecryptVerify {
         int signatureIndex = 0;
         for (int i = 0; i < sigList.size(); ++i) {
             try {
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(
-                        Long.toString(sigList.get(i).getKeyID()));
-                Map<String, Object> data = mProviderHelper.getGenericData(uri,
-                        new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID },
-                        new int[] { ProviderHelper.FIELD_TYPE_INTEGER,
-                                ProviderHelper.FIELD_TYPE_STRING }
-                );
-                masterKeyId = (Long) data.get(KeyRings.MASTER_KEY_ID);
-                primaryUserId = (String) data.get(KeyRings.USER_ID);
+                masterKeyId = mProviderHelper.getMasterKeyIdBySubkey(sigList.get(i).getKeyID());
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
                 Log.d(Constants.TAG, "key not found!");
@@ -644,6 +745,13 @@ public class PgpDecryptVerify {
         PGPPublicKey signatureKey = null;
         if (masterKeyId != null) {
             // key found in our database!
+            try {
+                primaryUserId = (String) mProviderHelper.getUnifiedData(masterKeyId,
+                        KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING);
+            } catch (ProviderHelper.NotFoundException e) {
+                Log.d(Constants.TAG, "key not found!");
+            }
+
             signature = sigList.get(signatureIndex);
 
             PGPPublicKeyRing publicKeyRing = null;
@@ -662,11 +770,6 @@ public class PgpDecryptVerify {
             signatureResultBuilder.userId(primaryUserId);
             signatureResultBuilder.keyId(masterKeyId);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            signature.init(contentVerifierBuilderProvider, signatureKey);
-
             // get certification status of this key
             boolean isSignatureKeyCertified;
             try {
@@ -691,25 +794,17 @@ public class PgpDecryptVerify {
         if (signature != null) {
             updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-            InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-            lookAhead = readInputLine(lineOut, sigIn);
-
-            processLine(signature, lineOut.toByteArray());
-
-            if (lookAhead != -1) {
-                do {
-                    lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                    signature.update((byte) '\r');
-                    signature.update((byte) '\n');
-
-                    processLine(signature, lineOut.toByteArray());
-                } while (lookAhead != -1);
+            // the text has been hashed already, only the signature trailer is left to add
+            boolean validSignature;
+            try {
+                signature.init(cleartextVerifier.getContentVerifierBuilderProvider(),
+                        signatureKey);
+                validSignature = signature.verify();
+            } catch (PGPException e) {
+                // e.g. the hash algorithm wasn't announced in the armor header
+                Log.e(Constants.TAG, "Cleartext signature verification failed!", e);
+                validSignature = false;
             }
-
-            // Verify signature and check binding signatures
-            boolean validSignature = signature.verify();
             boolean validKeyBinding = verifyKeyBinding(signature, signatureKey);
 
             signatureResultBuilder.validSignature(validSignature);
@@ -748,10 +843,6 @@ public class PgpDecryptVerify {
         boolean validTempSubkeyBinding = false;
         boolean validPrimaryKeyBinding = false;
 
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-
         Iterator<PGPSignature> itr = signingPublicKey.getSignatures();
 
         while (itr.hasNext()) { //what does gpg do if the subkey binding is wrong?
@@ -763,8 +854,8 @@ public class PgpDecryptVerify {
                     sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
                 //check and if ok, check primary key binding.
                 try {
-                    sig.init(contentVerifierBuilderProvider, masterPublicKey);
-                    validTempSubkeyBinding = sig.verifyCertification(masterPublicKey, signingPublicKey);
+                    validTempSubkeyBinding = verifyKeyBindingSignature(sig, masterPublicKey,
+                            masterPublicKey, signingPublicKey, sVerifierBuilderProvider);
                 } catch (PGPException e) {
                     continue;
                 } catch (SignatureException e) {
@@ -795,9 +886,6 @@ public class PgpDecryptVerify {
                                             PGPPublicKey masterPublicKey,
                                             PGPPublicKey signingPublicKey) {
         boolean validPrimaryKeyBinding = false;
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
         PGPSignatureList eSigList;
 
         if (pkts.hasSubpacket(SignatureSubpacketTags.EMBEDDED_SIGNATURE)) {
@@ -812,8 +900,8 @@ public class PgpDecryptVerify {
                 PGPSignature emSig = eSigList.get(j);
                 if (emSig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
                     try {
-                        emSig.init(contentVerifierBuilderProvider, signingPublicKey);
-                        validPrimaryKeyBinding = emSig.verifyCertification(masterPublicKey, signingPublicKey);
+                        validPrimaryKeyBinding = verifyKeyBindingSignature(emSig, signingPublicKey,
+                                masterPublicKey, signingPublicKey, sVerifierBuilderProvider);
                         if (validPrimaryKeyBinding) {
                             break;
                         }
@@ -830,107 +918,35 @@ public class PgpDecryptVerify {
     }
 
     /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
+     * Verifies a subkey or primary key binding signature, unless its outcome is known from an
+     * earlier verification in this process already.
      *
-     * @param sig
-     * @param line
-     * @throws SignatureException
+     * @param issuer the key which made sig, either masterPublicKey or signingPublicKey
      */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPassedEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPassedEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPassedEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
-    }
-
-    private static byte[] getLineSeparator() {
-        String nl = System.getProperty("line.separator");
-        byte[] nlBytes = new byte[nl.length()];
-
-        for (int i = 0; i != nlBytes.length; i++) {
-            nlBytes[i] = (byte) nl.charAt(i);
-        }
-
-        return nlBytes;
+    private boolean verifyKeyBindingSignature(PGPSignature sig, PGPPublicKey issuer,
+                                              PGPPublicKey masterPublicKey,
+                                              PGPPublicKey signingPublicKey,
+                                              JcaPGPContentVerifierBuilderProvider provider)
+            throws PGPException, SignatureException {
+        String digest = VerifiedSignatureCache.digestKeyBinding(sig, masterPublicKey,
+                signingPublicKey);
+        String key = digest != null
+                ? digest + "/" + new String(Hex.encode(issuer.getFingerprint())) : null;
+        Boolean cached = key != null ? sKeyBindingResults.get(key) : null;
+        if (cached != null) {
+            return cached;
+        }
+
+        boolean valid;
+        // the key ring may be shared through the KeyRingCache, don't let other
+        // threads re-init this signature while we are verifying it
+        synchronized (sig) {
+            sig.init(provider, issuer);
+            valid = sig.verifyCertification(masterPublicKey, signingPublicKey);
+        }
+        if (key != null) {
+            sKeyBindingResults.put(key, valid);
+        }
+        return valid;
     }
 }
@@ -38,6 +38,7 @@ import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.service.ApgIntentService;
 import org.thialfihar.android.apg.keyimport.ImportKeysListEntry;
 import org.thialfihar.android.apg.keyimport.Keyserver;
+import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.IterableIterator;
 import org.thialfihar.android.apg.keyimport.Keyserver.AddKeyException;
 import org.thialfihar.android.apg.util.Log;
@@ -46,7 +47,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PgpImportExport {
 
@@ -67,6 +75,9 @@ public class PgpImportExport {
     public static final int RETURN_BAD = -2;
     public static final int RETURN_UPDATED = 1;
 
+    /** Number of key rings importKeyRings writes per transaction */
+    public static final int IMPORT_BATCH_SIZE = 100;
+
     public PgpImportExport(Context context, Progressable progressable) {
         super();
         this.mContext = context;
@@ -116,7 +127,109 @@ public class PgpImportExport {
     /**
      * Imports keys from given data. If keyIds is given only those are imported
      */
-    public Bundle importKeyRings(List<ImportKeysListEntry> entries)
+    public Bundle importKeyRings(final List<ImportKeysListEntry> entries)
+            throws PgpGeneralException, PGPException, IOException {
+        final Iterator<ImportKeysListEntry> it = entries.iterator();
+        return importKeyRings(new KeyRingSource() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Callable<KeyRing> next() {
+                final byte[] bytes = it.next().getBytes();
+                return new Callable<KeyRing>() {
+                    @Override
+                    public KeyRing call() {
+                        return KeyRing.decode(bytes);
+                    }
+                };
+            }
+
+            @Override
+            public int getProgress(int imported) {
+                return imported * 100 / entries.size();
+            }
+        });
+    }
+
+    /**
+     * Imports key rings while streaming them from a key file, so the file is never held in
+     * memory as a whole.
+     *
+     * @param selection bit set of the positions of the key rings to import (see
+     *                  PgpKeyRingReader.getPosition), bit i of selection[i / 64] for position i
+     */
+    public Bundle importKeyRings(final InputData inputData, final long[] selection)
+            throws PgpGeneralException, PGPException, IOException {
+        final PgpKeyRingReader reader = new PgpKeyRingReader(inputData.getInputStream());
+        return importKeyRings(new KeyRingSource() {
+            private PGPKeyRing mNext;
+
+            @Override
+            public boolean hasNext() throws IOException {
+                // skip key rings which are not selected
+                while (mNext == null && reader.hasNext()) {
+                    int position = reader.getPosition();
+                    PGPKeyRing keyRing = reader.next();
+                    if ((position >> 6) < selection.length
+                            && (selection[position >> 6] & (1L << position)) != 0) {
+                        mNext = keyRing;
+                    }
+                }
+                return mNext != null;
+            }
+
+            @Override
+            public Callable<KeyRing> next() throws IOException {
+                final PGPKeyRing keyRing = mNext;
+                mNext = null;
+                return new Callable<KeyRing>() {
+                    @Override
+                    public KeyRing call() {
+                        if (keyRing instanceof PGPSecretKeyRing) {
+                            return new SecretKeyRing((PGPSecretKeyRing) keyRing);
+                        }
+                        return new PublicKeyRing((PGPPublicKeyRing) keyRing);
+                    }
+                };
+            }
+
+            @Override
+            public int getProgress(int imported) {
+                // the reader is ahead of the import by at most two batches
+                if (inputData.getSize() <= 0) {
+                    return 0;
+                }
+                return (int) (inputData.getStreamPosition() * 100 / inputData.getSize());
+            }
+        });
+    }
+
+    /**
+     * Source of the key rings to import
+     */
+    private interface KeyRingSource {
+        boolean hasNext() throws IOException;
+
+        /**
+         * @return a task decoding the next key ring, called on a worker thread
+         */
+        Callable<KeyRing> next() throws IOException;
+
+        /**
+         * @param imported number of key rings taken from this source which have been imported
+         * @return progress in percent
+         */
+        int getProgress(int imported);
+    }
+
+    /**
+     * Key rings are decoded and their certifications verified on worker threads, while the
+     * results are written in order, IMPORT_BATCH_SIZE key rings per transaction.
+     */
+    private Bundle importKeyRings(KeyRingSource source)
             throws PgpGeneralException, PGPException, IOException {
         Bundle returnData = new Bundle();
 
@@ -127,40 +240,61 @@ public class PgpImportExport {
         int badKeys = 0;
 
         int position = 0;
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         try {
-            for (ImportKeysListEntry entry : entries) {
-                KeyRing keyRing = KeyRing.decode(entry.getBytes());
+            // our own keys are loaded once for the whole import
+            final PgpCertificationVerifier verifier = mProviderHelper.createCertificationVerifier();
+
+            // work ahead at most two batches, so memory use doesn't depend on the number of entries
+            LinkedList<Future<ProviderHelper.VerifiedKeyRing>> queue =
+                    new LinkedList<Future<ProviderHelper.VerifiedKeyRing>>();
+            List<ProviderHelper.VerifiedKeyRing> batch =
+                    new ArrayList<ProviderHelper.VerifiedKeyRing>(IMPORT_BATCH_SIZE);
+            while (source.hasNext() || !queue.isEmpty()) {
+                while (queue.size() < 2 * IMPORT_BATCH_SIZE && source.hasNext()) {
+                    final Callable<KeyRing> decoder = source.next();
+                    queue.add(executor.submit(new Callable<ProviderHelper.VerifiedKeyRing>() {
+                        @Override
+                        public ProviderHelper.VerifiedKeyRing call() throws Exception {
+                            return verifyKeyRing(decoder.call(), verifier);
+                        }
+                    }));
+                }
 
-                if (keyRing != null) {
-                    int status;
-                    if (keyRing.isPublic()) {
-                        status = storeKeyRingInCache(keyRing.getPublicKeyRing());
+                try {
+                    ProviderHelper.VerifiedKeyRing keyRing = queue.removeFirst().get();
+                    if (keyRing != null) {
+                        batch.add(keyRing);
                     } else {
-                        status = storeKeyRingInCache(keyRing.getSecretKeyRing());
+                        Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!", new Exception());
                     }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof PgpGeneralException) {
+                        Log.e(Constants.TAG, "Bad key ring", e.getCause());
+                        ++badKeys;
+                    } else {
+                        Log.e(Constants.TAG, "Exception on parsing key ring!", e.getCause());
+                    }
+                }
+                position++;
 
-                    if (status == RETURN_ERROR) {
+                if (batch.size() == IMPORT_BATCH_SIZE || (queue.isEmpty() && !source.hasNext())) {
+                    if (!mProviderHelper.saveKeyRings(batch)) {
                         throw new PgpGeneralException(
                                 mContext.getString(R.string.error_saving_keys));
                     }
-
                     // update the counts to display to the user at the end
-                    if (status == RETURN_UPDATED) {
-                        ++oldKeys;
-                    } else if (status == RETURN_OK) {
-                        ++newKeys;
-                    } else if (status == RETURN_BAD) {
-                        ++badKeys;
-                    }
-                } else {
-                    Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!", new Exception());
-                }
+                    newKeys += batch.size();
+                    batch.clear();
 
-                position++;
-                updateProgress(position / entries.size() * 100, 100);
+                    updateProgress(source.getProgress(position), 100);
+                }
             }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
+        } finally {
+            executor.shutdownNow();
         }
 
         returnData.putInt(ApgIntentService.RESULT_IMPORT_ADDED, newKeys);
@@ -170,6 +304,40 @@ public class PgpImportExport {
         return returnData;
     }
 
+    /**
+     * Verifies the certifications of a decoded key ring, called on worker threads.
+     *
+     * @return the key ring ready to be saved, or null if there is no key ring
+     * @throws PgpGeneralException if this is a secret key ring which can't be imported
+     */
+    private ProviderHelper.VerifiedKeyRing verifyKeyRing(KeyRing keyRing,
+                                                        PgpCertificationVerifier verifier)
+            throws PgpGeneralException, IOException {
+        if (keyRing == null) {
+            return null;
+        }
+
+        if (keyRing.isPublic()) {
+            PGPPublicKeyRing publicKeyRing = keyRing.getPublicKeyRing();
+            // IF there is a secret key, preserve it!
+            PGPSecretKeyRing secretKeyRing = null;
+            try {
+                secretKeyRing = mProviderHelper.getPGPSecretKeyRing(
+                        publicKeyRing.getPublicKey().getKeyID());
+            } catch (ProviderHelper.NotFoundException e) {
+                // no secret key ring
+            }
+            return mProviderHelper.verifyKeyRing(publicKeyRing, secretKeyRing, false, verifier);
+        }
+
+        PGPSecretKeyRing secretKeyRing = keyRing.getSecretKeyRing();
+        if (!isValidSecretKeyRing(secretKeyRing)) {
+            throw new PgpGeneralException("Secret key ring with empty sub keys");
+        }
+        return mProviderHelper.verifyKeyRing(getPublicKeyRing(secretKeyRing), secretKeyRing, true,
+                verifier);
+    }
+
     public Bundle exportKeyRings(ArrayList<Long> publicKeyRingMasterIds,
                                  ArrayList<Long> secretKeyRingMasterIds,
                                  OutputStream outStream) throws PgpGeneralException,
@@ -245,41 +413,16 @@ public class PgpImportExport {
         return returnData;
     }
 
-    @SuppressWarnings("unchecked")
     public int storeKeyRingInCache(PGPKeyRing keyRing) {
         int status = RETURN_ERROR;
         try {
             if (keyRing instanceof PGPSecretKeyRing) {
                 PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyRing;
-                boolean save = true;
-
-                for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
-                        secretKeyRing.getSecretKeys())) {
-                    if (!testSecretKey.isMasterKey()) {
-                        if (testSecretKey.isPrivateKeyEmpty()) {
-                            // this is bad, something is very wrong...
-                            save = false;
-                            status = RETURN_BAD;
-                        }
-                    }
-                }
-
-                if (save) {
-                    // TODO: preserve certifications
-                    // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
-                    PGPPublicKeyRing newPubRing = null;
-                    for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
-                            secretKeyRing.getPublicKeys())) {
-                        if (newPubRing == null) {
-                            newPubRing = new PGPPublicKeyRing(key.getEncoded(),
-                                    new JcaKeyFingerprintCalculator());
-                        }
-                        newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
-                    }
-                    if (newPubRing != null) {
-                        mProviderHelper.saveKeyRing(newPubRing);
-                    }
-                    mProviderHelper.saveKeyRing(secretKeyRing);
+                if (!isValidSecretKeyRing(secretKeyRing)) {
+                    // this is bad, something is very wrong...
+                    status = RETURN_BAD;
+                } else {
+                    mProviderHelper.saveKeyRing(getPublicKeyRing(secretKeyRing), secretKeyRing);
                     status = RETURN_OK;
                 }
             } else if (keyRing instanceof PGPPublicKeyRing) {
@@ -294,4 +437,35 @@ public class PgpImportExport {
         return status;
     }
 
+    /**
+     * @return false if any of the sub keys has no private key
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean isValidSecretKeyRing(PGPSecretKeyRing secretKeyRing) {
+        for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
+                secretKeyRing.getSecretKeys())) {
+            if (!testSecretKey.isMasterKey() && testSecretKey.isPrivateKeyEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKeyRing getPublicKeyRing(PGPSecretKeyRing secretKeyRing)
+            throws IOException {
+        // TODO: preserve certifications
+        // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
+        PGPPublicKeyRing newPubRing = null;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                secretKeyRing.getPublicKeys())) {
+            if (newPubRing == null) {
+                newPubRing = new PGPPublicKeyRing(key.getEncoded(),
+                        new JcaKeyFingerprintCalculator());
+            }
+            newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
+        }
+        return newPubRing;
+    }
+
 }
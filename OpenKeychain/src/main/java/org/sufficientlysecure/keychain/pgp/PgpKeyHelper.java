@@ -626,4 +626,22 @@ public class PgpKeyHelper {
         return result;
     }
 
+    /**
+     * Extracts the email address of a user id of the form "... <email>", this is what
+     * the find by email query matches on.
+     *
+     * @param userId
+     * @return lower case email, or null if the user id doesn't end with one
+     */
+    public static String getEmail(String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start < 0) {
+            return null;
+        }
+        return userId.substring(start + 1, userId.length() - 1).toLowerCase(Locale.US);
+    }
+
 }
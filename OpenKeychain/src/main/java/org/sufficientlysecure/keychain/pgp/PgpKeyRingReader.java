@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPUtil;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads PGPKeyRing objects one at a time from a stream, so key files of any size can be
+ * processed without holding all of their key rings in memory.
+ *
+ * The stream may contain several consecutive blocks, e.g. asc files with many BEGIN/END
+ * blocks. Objects which are no key rings are skipped and counted.
+ */
+public class PgpKeyRingReader {
+    // need to have access to the bufferedInput, so we can reuse it for the possible
+    // PGPObject chunks after the first one
+    private final BufferedInputStream mBufferedInput;
+    private PGPObjectFactory mObjectFactory;
+
+    private PGPKeyRing mNext;
+    private int mPosition = 0;
+    private boolean mEmpty = true;
+    private int mNonPgpCount = 0;
+
+    public PgpKeyRingReader(InputStream in) {
+        mBufferedInput = new BufferedInputStream(in);
+    }
+
+    public boolean hasNext() throws IOException {
+        while (mNext == null) {
+            if (mObjectFactory == null) {
+                if (mBufferedInput.available() <= 0) {
+                    return false;
+                }
+                mEmpty = false;
+                InputStream in = PGPUtil.getDecoderStream(mBufferedInput);
+                mObjectFactory = new PGPObjectFactory(in);
+            }
+
+            // go through all objects in this block
+            Object obj = mObjectFactory.nextObject();
+            if (obj == null) {
+                mObjectFactory = null;
+                continue;
+            }
+            Log.d(Constants.TAG, "Found class: " + obj.getClass());
+
+            if (obj instanceof PGPKeyRing) {
+                mNext = (PGPKeyRing) obj;
+            } else {
+                Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!", new Exception());
+                mNonPgpCount++;
+            }
+        }
+        return true;
+    }
+
+    public PGPKeyRing next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PGPKeyRing next = mNext;
+        mNext = null;
+        mPosition++;
+        return next;
+    }
+
+    /**
+     * @return the number of key rings read so far, i.e. the position of the next one
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return true if the stream turned out to have no content at all
+     */
+    public boolean isEmpty() {
+        return mEmpty;
+    }
+
+    public int getNonPgpCount() {
+        return mNonPgpCount;
+    }
+}
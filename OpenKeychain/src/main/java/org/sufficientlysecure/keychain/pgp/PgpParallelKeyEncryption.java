@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.bcpg.ContainedPacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypts the session key for many recipients in parallel.
+ *
+ * PGPEncryptedDataGenerator.open asks its key encryption methods for their packets one after
+ * the other, with the same session info for all of them. The methods returned by wrap() start
+ * all public key operations as soon as the first packet is asked for, and then hand out the
+ * results in order.
+ */
+public class PgpParallelKeyEncryption {
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    /** Below this number of recipients, the public key operations are done one by one */
+    public static final int MIN_PARALLEL_RECIPIENTS = 4;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final List<PGPKeyEncryptionMethodGenerator> mMethods;
+    private List<Future<ContainedPacket>> mPackets;
+    private byte[] mSessionInfo;
+    private int mEncAlgorithm;
+
+    private PgpParallelKeyEncryption(List<PGPKeyEncryptionMethodGenerator> methods) {
+        mMethods = methods;
+    }
+
+    /**
+     * @return methods to add to a PGPEncryptedDataGenerator instead of the given ones
+     */
+    public static List<PGPKeyEncryptionMethodGenerator> wrap(
+            List<PGPKeyEncryptionMethodGenerator> methods) {
+        if (methods.size() < MIN_PARALLEL_RECIPIENTS || NUM_THREADS < 2) {
+            return methods;
+        }
+
+        PgpParallelKeyEncryption parallel = new PgpParallelKeyEncryption(methods);
+        List<PGPKeyEncryptionMethodGenerator> result =
+                new ArrayList<PGPKeyEncryptionMethodGenerator>(methods.size());
+        for (int i = 0; i < methods.size(); ++i) {
+            result.add(parallel.new Method(i));
+        }
+        return result;
+    }
+
+    private synchronized ContainedPacket generate(int index, final int encAlgorithm,
+                                                  final byte[] sessionInfo)
+            throws PGPException {
+        if (mPackets == null || mSessionInfo != sessionInfo || mEncAlgorithm != encAlgorithm) {
+            // first packet for this session key, start all of them
+            mSessionInfo = sessionInfo;
+            mEncAlgorithm = encAlgorithm;
+            mPackets = new ArrayList<Future<ContainedPacket>>(mMethods.size());
+            for (final PGPKeyEncryptionMethodGenerator method : mMethods) {
+                mPackets.add(getExecutor().submit(new Callable<ContainedPacket>() {
+                    @Override
+                    public ContainedPacket call() throws PGPException {
+                        return method.generate(encAlgorithm, sessionInfo);
+                    }
+                }));
+            }
+        }
+
+        try {
+            return mPackets.get(index).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PGPException("interrupted while encrypting session key");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PGPException) {
+                throw (PGPException) cause;
+            }
+            throw new PGPException("encrypting session key failed",
+                    cause instanceof Exception ? (Exception) cause : null);
+        }
+    }
+
+    private class Method extends PGPKeyEncryptionMethodGenerator {
+        private final int mIndex;
+
+        Method(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo)
+                throws PGPException {
+            return PgpParallelKeyEncryption.this.generate(mIndex, encAlgorithm, sessionInfo);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            // if the queue is full, the caller encrypts on its own rather than waiting
+            sExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(16 * NUM_THREADS),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+}
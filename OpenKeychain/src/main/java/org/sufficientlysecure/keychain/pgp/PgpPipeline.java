@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.StreamProgress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds a stream to several independent stages at once, e.g. the encryption and the signature
+ * hashing of sign+encrypt, each of which runs on its own thread.
+ *
+ * The calling thread reads ahead into a fixed set of chunks and hands every chunk to all stages,
+ * a chunk is reused once all stages are done with it. Stages must not modify the chunks.
+ */
+public class PgpPipeline {
+    private static final int CHUNK_SIZE = BufferPool.BUFFER_SIZE;
+    private static final int NUM_CHUNKS = 8;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    public interface Stage {
+        void process(byte[] buffer, int length) throws IOException, SignatureException;
+    }
+
+    private static class Chunk {
+        final byte[] buffer;
+        int length;
+        final AtomicInteger pending = new AtomicInteger();
+
+        Chunk(byte[] buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // marks the end of the stream
+    private static final Chunk END = new Chunk(new byte[0]);
+
+    /**
+     * @return true if it is worth running the stages of a stream with the given size in parallel
+     */
+    public static boolean isWorthwhile(long size) {
+        return Runtime.getRuntime().availableProcessors() > 1 && size >= NUM_CHUNKS * CHUNK_SIZE;
+    }
+
+    /**
+     * Reads in until its end and passes everything to all stages
+     *
+     * @param progress may be null
+     * @return number of bytes read
+     */
+    public static long run(InputStream in, StreamProgress progress, final Stage... stages)
+            throws IOException, SignatureException {
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+        List<Chunk> chunks = new ArrayList<Chunk>(NUM_CHUNKS);
+        for (int i = 0; i < NUM_CHUNKS; ++i) {
+            Chunk chunk = new Chunk(BufferPool.acquire());
+            chunks.add(chunk);
+            free.add(chunk);
+        }
+
+        // set on failure, the remaining stages then only hand their chunks back
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        List<BlockingQueue<Chunk>> queues = new ArrayList<BlockingQueue<Chunk>>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        boolean ended = false;
+        boolean success = false;
+        long done = 0;
+        try {
+            for (final Stage stage : stages) {
+                // there are never more than NUM_CHUNKS chunks, so END always fits in
+                final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS + 1);
+                queues.add(queue);
+                futures.add(getExecutor().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Chunk chunk;
+                        while ((chunk = queue.take()) != END) {
+                            if (!cancelled.get()) {
+                                stage.process(chunk.buffer, chunk.length);
+                            }
+                            if (chunk.pending.decrementAndGet() == 0) {
+                                free.add(chunk);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            while (true) {
+                Chunk chunk = free.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    // a failed stage never gives its chunks back
+                    if (hasFailed(futures)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                int n = in.read(chunk.buffer);
+                if (n <= 0) {
+                    break;
+                }
+                chunk.length = n;
+                chunk.pending.set(stages.length);
+                for (BlockingQueue<Chunk> queue : queues) {
+                    queue.add(chunk);
+                }
+
+                done += n;
+                if (progress != null) {
+                    progress.update(done);
+                }
+            }
+
+            end(queues);
+            ended = true;
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            success = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for pipeline");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SignatureException) {
+                throw (SignatureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("pipeline stage failed", cause);
+        } finally {
+            if (!success) {
+                // the stages mustn't go on writing to their outputs, which the caller closes
+                // once this returns, nor hold on to the chunks
+                cancelled.set(true);
+                if (!ended) {
+                    end(queues);
+                }
+                awaitStages(futures);
+            }
+            // only now no stage touches the chunks anymore
+            for (Chunk chunk : chunks) {
+                BufferPool.release(chunk.buffer);
+            }
+        }
+
+        return done;
+    }
+
+    private static void end(List<BlockingQueue<Chunk>> queues) {
+        for (BlockingQueue<Chunk> queue : queues) {
+            queue.add(END);
+        }
+    }
+
+    /**
+     * Waits for all stages to return, whatever they return, the failure which is propagated
+     * has already happened
+     */
+    private static void awaitStages(List<Future<Void>> futures) {
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean hasFailed(List<Future<Void>> futures) {
+        for (Future<Void> future : futures) {
+            if (future.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            // stages block until the stream ends, so each one needs a thread of its own, a
+            // bounded pool could leave stages of concurrent pipelines waiting for each other
+            sExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>());
+        }
+        return sExecutor;
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.thialfihar.android.apg.pgp;
 
+import android.support.v4.util.LongSparseArray;
+
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.BCPGOutputStream;
 import org.spongycastle.openpgp.PGPCompressedDataGenerator;
@@ -27,17 +29,15 @@ import org.spongycastle.openpgp.PGPLiteralData;
 import org.spongycastle.openpgp.PGPLiteralDataGenerator;
 import org.spongycastle.openpgp.PGPPrivateKey;
 import org.spongycastle.openpgp.PGPPublicKey;
-import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.spongycastle.openpgp.PGPV3SignatureGenerator;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.thialfihar.android.apg.Constants;
@@ -45,20 +45,24 @@ import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.pgp.Progressable;
 import org.thialfihar.android.apg.provider.ApgContract;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.BufferPool;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.StreamProgress;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 /**
  * This class uses a Builder pattern!
@@ -243,6 +247,11 @@ public class PgpSignEncrypt {
         }
     }
 
+    public static class BatchTooLargeException extends Exception {
+        public BatchTooLargeException() {
+        }
+    }
+
     /**
      * Signs and/or encrypts data based on parameters of class
      */
@@ -300,9 +309,10 @@ public class PgpSignEncrypt {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
-            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
-            signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
+            // unlocked keys are kept for a while, as unlocking them is slow
+            signaturePrivateKey = PrivateKeyCache.getInstance().extractPrivateKey(
+                    mProviderHelper.getContext(), mSignatureMasterKeyId, signingKey,
+                    mSignaturePassphrase);
             if (signaturePrivateKey == null) {
                 throw new KeyExtractionException();
             }
@@ -328,20 +338,25 @@ public class PgpSignEncrypt {
                         new JcePBEKeyEncryptionMethodGenerator(mSymmetricPassphrase.toCharArray());
                 cPk.addMethod(symmetricEncryptionGenerator);
             } else {
-                // Asymmetric encryption
+                // Asymmetric encryption, resolve all recipients at once
+                LongSparseArray<PGPPublicKey> keys =
+                        mProviderHelper.getEncryptSubkeys(mEncryptionMasterKeyIds);
+                List<PGPKeyEncryptionMethodGenerator> methods =
+                        new ArrayList<PGPKeyEncryptionMethodGenerator>();
                 for (long id : mEncryptionMasterKeyIds) {
-                    try {
-                        PGPPublicKeyRing keyRing = mProviderHelper.getPGPPublicKeyRing(id);
-                        PGPPublicKey key = PgpKeyHelper.getFirstEncryptSubkey(keyRing);
-                        if (key != null) {
-                            JcePublicKeyKeyEncryptionMethodGenerator pubKeyEncryptionGenerator =
-                                    new JcePublicKeyKeyEncryptionMethodGenerator(key);
-                            cPk.addMethod(pubKeyEncryptionGenerator);
-                        }
-                    } catch (ProviderHelper.NotFoundException e) {
-                        Log.e(Constants.TAG, "key not found!", e);
+                    PGPPublicKey key = keys.get(id);
+                    if (key != null) {
+                        methods.add(new JcePublicKeyKeyEncryptionMethodGenerator(key));
+                    } else {
+                        Log.e(Constants.TAG, "no encryption key found for "
+                                + PgpKeyHelper.convertKeyIdToHex(id));
                     }
                 }
+                // the session key is wrapped for many recipients in parallel
+                for (PGPKeyEncryptionMethodGenerator method :
+                        PgpParallelKeyEncryption.wrap(methods)) {
+                    cPk.addMethod(method);
+                }
             }
         }
 
@@ -380,11 +395,13 @@ public class PgpSignEncrypt {
         PGPCompressedDataGenerator compressGen = null;
         OutputStream pOut;
         OutputStream encryptionOut = null;
+        byte[] encryptionBuffer = null;
         BCPGOutputStream bcpgOut;
         if (enableEncryption) {
             /* actual encryption */
 
-            encryptionOut = cPk.open(out, new byte[1 << 16]);
+            encryptionBuffer = BufferPool.acquire();
+            encryptionOut = cPk.open(out, encryptionBuffer);
 
             if (enableCompression) {
                 compressGen = new PGPCompressedDataGenerator(mCompressionId);
@@ -402,34 +419,74 @@ public class PgpSignEncrypt {
             }
 
             PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            byte[] literalBuffer = null;
             // file name not needed, so empty string
-            pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                    new byte[1 << 16]);
+            if (mData.isSizeExact()) {
+                // a literal packet of known length is written straight through, rather than
+                // being copied into partial packets
+                pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", mData.getSize(),
+                        new Date());
+            } else {
+                literalBuffer = BufferPool.acquire();
+                pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
+                        literalBuffer);
+            }
             updateProgress(R.string.progress_encrypting, 20, 100);
 
-            long progress = 0;
-            int n;
-            byte[] buffer = new byte[1 << 16];
+            StreamProgress progress = new StreamProgress(mProgressable, "encrypt", 20, 95,
+                    mData.getSize());
+            long done = 0;
             InputStream in = mData.getInputStream();
-            while ((n = in.read(buffer)) > 0) {
-                pOut.write(buffer, 0, n);
-
-                // update signature buffer if signature is requested
-                if (enableSignature) {
-                    if (mSignatureForceV3) {
-                        signatureV3Generator.update(buffer, 0, n);
-                    } else {
-                        signatureGenerator.update(buffer, 0, n);
+            if (enableSignature && PgpPipeline.isWorthwhile(mData.getSize())) {
+                // hashing for the signature and compression/encryption don't depend on each
+                // other, so they can run on separate cores
+                final OutputStream literalOut = pOut;
+                final PGPSignatureGenerator finalSignatureGenerator = signatureGenerator;
+                final PGPV3SignatureGenerator finalSignatureV3Generator = signatureV3Generator;
+                done = PgpPipeline.run(in, progress, new PgpPipeline.Stage() {
+                    @Override
+                    public void process(byte[] buffer, int length) throws IOException {
+                        literalOut.write(buffer, 0, length);
+                    }
+                }, new PgpPipeline.Stage() {
+                    @Override
+                    public void process(byte[] buffer, int length) throws SignatureException {
+                        if (finalSignatureV3Generator != null) {
+                            finalSignatureV3Generator.update(buffer, 0, length);
+                        } else {
+                            finalSignatureGenerator.update(buffer, 0, length);
+                        }
+                    }
+                });
+            } else {
+                int n;
+                byte[] buffer = BufferPool.acquire();
+                while ((n = in.read(buffer)) > 0) {
+                    pOut.write(buffer, 0, n);
+
+                    // update signature buffer if signature is requested
+                    if (enableSignature) {
+                        if (mSignatureForceV3) {
+                            signatureV3Generator.update(buffer, 0, n);
+                        } else {
+                            signatureGenerator.update(buffer, 0, n);
+                        }
                     }
-                }
 
-                progress += n;
-                if (mData.getSize() != 0) {
-                    updateProgress((int) (20 + (95 - 20) * progress / mData.getSize()), 100);
+                    done += n;
+                    progress.update(done);
                 }
+                BufferPool.release(buffer);
+            }
+            progress.finish(done);
+
+            if (mData.isSizeExact() && done != mData.getSize()) {
+                // the literal packet's length is wrong, the output is useless
+                throw new IOException("input size changed while encrypting");
             }
 
             literalGen.close();
+            BufferPool.release(literalBuffer);
         } else if (enableSignature && mCleartextInput && mEnableAsciiArmorOutput) {
             /* cleartext signature: sign-only of ascii text */
 
@@ -438,36 +495,28 @@ public class PgpSignEncrypt {
             // write -----BEGIN PGP SIGNED MESSAGE-----
             armorOut.beginClearText(mSignatureHashAlgorithm);
 
-            InputStream in = mData.getInputStream();
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-            // update signature buffer with first line
-            if (mSignatureForceV3) {
-                processLineV3(reader.readLine(), armorOut, signatureV3Generator);
-            } else {
-                processLine(reader.readLine(), armorOut, signatureGenerator);
-            }
-
-            while (true) {
-                String line = reader.readLine();
+            // the text goes straight to the stream below the armor, ClearTextWriter does the
+            // dash-escaping itself
+            BufferedOutputStream clearTextOut = new BufferedOutputStream(mOutStream, 1 << 16);
+            ClearTextWriter writer = new ClearTextWriter(clearTextOut,
+                    mSignatureForceV3 ? null : signatureGenerator,
+                    mSignatureForceV3 ? signatureV3Generator : null);
 
-                // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                if (line == null) {
-                    armorOut.write(NEW_LINE);
-                    break;
-                }
-
-                armorOut.write(NEW_LINE);
-
-                // update signature buffer with input line
-                if (mSignatureForceV3) {
-                    signatureV3Generator.update(NEW_LINE);
-                    processLineV3(line, armorOut, signatureV3Generator);
-                } else {
-                    signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
-                }
+            StreamProgress progress = new StreamProgress(mProgressable, "sign", 40, 95,
+                    mData.getSize());
+            long done = 0;
+            InputStream in = mData.getInputStream();
+            byte[] buffer = BufferPool.acquire();
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                writer.update(buffer, 0, n);
+                done += n;
+                progress.update(done);
             }
+            BufferPool.release(buffer);
+            writer.finish();
+            progress.finish(done);
+            clearTextOut.flush();
 
             armorOut.endClearText();
 
@@ -493,11 +542,15 @@ public class PgpSignEncrypt {
             }
 
             PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            byte[] literalBuffer = BufferPool.acquire();
             // file name not needed, so empty string
             pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                    new byte[1 << 16]);
+                    literalBuffer);
 
-            byte[] buffer = new byte[1 << 16];
+            StreamProgress progress = new StreamProgress(mProgressable, "sign", 40, 95,
+                    mData.getSize());
+            long done = 0;
+            byte[] buffer = BufferPool.acquire();
             int n;
             while ((n = in.read(buffer)) > 0) {
                 pOut.write(buffer, 0, n);
@@ -507,9 +560,15 @@ public class PgpSignEncrypt {
                 } else {
                     signatureGenerator.update(buffer, 0, n);
                 }
+
+                done += n;
+                progress.update(done);
             }
+            BufferPool.release(buffer);
+            progress.finish(done);
 
             literalGen.close();
+            BufferPool.release(literalBuffer);
         } else {
             pOut = null;
             Log.e(Constants.TAG, "not supported!");
@@ -527,12 +586,13 @@ public class PgpSignEncrypt {
         // closing outputs
         // NOTE: closing needs to be done in the correct order!
         // TODO: closing bcpgOut and pOut???
+        if (compressGen != null) {
+            // also for sign-only, else the end of the compressed data is lost
+            compressGen.close();
+        }
         if (enableEncryption) {
-            if (enableCompression) {
-                compressGen.close();
-            }
-
             encryptionOut.close();
+            BufferPool.release(encryptionBuffer);
         }
         if (mEnableAsciiArmorOutput) {
             armorOut.close();
@@ -544,56 +604,356 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_done, 100, 100);
     }
 
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
+    /**
+     * Most bytes of signed and compressed data executeBatch keeps in memory
+     */
+    public static final int MAX_BATCH_SIZE = 32 << 20;
 
-        if (pLine == null) {
-            return;
+    /**
+     * Holds the packets of executeBatch, refusing to grow beyond MAX_BATCH_SIZE
+     */
+    private static class BatchBuffer extends ByteArrayOutputStream {
+        BatchBuffer(long size) {
+            super((int) Math.min(Math.max(size, 0) + 1024, MAX_BATCH_SIZE));
         }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
+        @Override
+        public synchronized void write(int b) {
+            ensureSpace(1);
+            super.write(b);
+        }
 
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) {
+            ensureSpace(length);
+            super.write(buffer, offset, length);
         }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+        private void ensureSpace(int length) {
+            if (length > MAX_BATCH_SIZE - count) {
+                throw new BatchBufferFullException();
+            }
+        }
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+        byte[] getBuffer() {
+            return buf;
         }
-        pSignatureGenerator.update(data);
     }
 
-    private static void processLineV3(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                      final PGPV3SignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
+    /**
+     * Thrown through the streams writing to a BatchBuffer, which only throw IOExceptions they
+     * get themselves
+     */
+    private static class BatchBufferFullException extends RuntimeException {
+    }
 
-        if (pLine == null) {
-            return;
+    /**
+     * Output of executeBatch, one stream per recipient
+     */
+    public interface BatchOutput {
+        /**
+         * @param index       position of masterKeyId in the encryption master key ids
+         * @return stream for the message to masterKeyId, it is closed by executeBatch
+         */
+        OutputStream open(int index, long masterKeyId) throws IOException;
+    }
+
+    /**
+     * Signs and compresses the data once, then encrypts it separately for every one of the
+     * encryption master key ids, so no recipient learns who else got the message.
+     *
+     * The output stream given to the Builder isn't used, symmetric encryption and
+     * encrypt-to-signer are ignored. The signed and compressed data is kept in memory until all
+     * messages are written, so it must not be larger than MAX_BATCH_SIZE. It isn't spooled to a
+     * file instead, as that would leave the plaintext on storage.
+     *
+     * @return master key ids without a usable encryption key, nothing is written for them
+     * @throws BatchTooLargeException if the signed and compressed data exceeds MAX_BATCH_SIZE
+     */
+    public long[] executeBatch(BatchOutput output)
+            throws IOException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException, KeyExtractionException,
+            NoSigningKeyException, NoPassphraseException, BatchTooLargeException {
+        if (mEncryptionMasterKeyIds == null || mEncryptionMasterKeyIds.length == 0) {
+            throw new PGPException("no recipients given");
         }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
+        boolean enableSignature = mSignatureMasterKeyId != Constants.key.none;
+        boolean enableCompression = (mCompressionId != Constants.choice.compression.none);
+        if (!enableCompression && mData.isSizeExact() && mData.getSize() > MAX_BATCH_SIZE) {
+            // fail before the work of signing, the packets can only be larger than the data
+            throw new BatchTooLargeException();
+        }
 
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
+        /* the signed and compressed packets, which are the same for everyone */
+        BatchBuffer plain = new BatchBuffer(mData.getSize());
+        try {
+            writeBatchPackets(plain, enableSignature, enableCompression);
+        } catch (BatchBufferFullException e) {
+            throw new BatchTooLargeException();
+        }
+        byte[] plainBytes = plain.getBuffer();
+        int plainLength = plain.size();
+
+        /* one message per recipient */
+        JcePGPDataEncryptorBuilder encryptorBuilder =
+                new JcePGPDataEncryptorBuilder(mSymmetricEncryptionAlgorithm)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .setWithIntegrityPacket(true);
+        LongSparseArray<PGPPublicKey> keys =
+                mProviderHelper.getEncryptSubkeys(mEncryptionMasterKeyIds);
+        List<Long> skipped = new ArrayList<Long>();
+        for (int i = 0; i < mEncryptionMasterKeyIds.length; ++i) {
+            long id = mEncryptionMasterKeyIds[i];
+            PGPPublicKey key = keys.get(id);
+            if (key == null) {
+                Log.e(Constants.TAG, "no encryption key found for "
+                        + PgpKeyHelper.convertKeyIdToHex(id));
+                skipped.add(id);
+                continue;
+            }
+
+            updateProgress(R.string.progress_encrypting,
+                    50 + 50 * i / mEncryptionMasterKeyIds.length, 100);
+
+            // every message gets its own session key
+            PGPEncryptedDataGenerator cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
+            cPk.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(key));
+
+            OutputStream target = output.open(i, id);
+            try {
+                ArmoredOutputStream armorOut = null;
+                OutputStream out = target;
+                if (mEnableAsciiArmorOutput) {
+                    armorOut = new ArmoredOutputStream(target);
+                    armorOut.setHeader("Version", mVersionHeader);
+                    out = armorOut;
+                }
+
+                // the length is known, so no partial packets are needed
+                OutputStream encryptionOut = cPk.open(out, plainLength);
+                encryptionOut.write(plainBytes, 0, plainLength);
+                encryptionOut.close();
+                if (armorOut != null) {
+                    armorOut.close();
+                }
+            } finally {
+                target.close();
             }
-            len--;
         }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+        updateProgress(R.string.progress_done, 100, 100);
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+        long[] result = new long[skipped.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = skipped.get(i);
         }
-        pSignatureGenerator.update(data);
+        return result;
     }
 
+    /**
+     * @return a Progressable mapping all progress reported to it into the first half of that of
+     * progressable. Unlike ProgressScaler, which leaves the progress of the calls without a
+     * message as it is.
+     */
+    private static Progressable getFirstHalfProgressable(final Progressable progressable) {
+        return new Progressable() {
+            @Override
+            public void setProgress(String message, int current, int total) {
+                progressable.setProgress(message, current * 50 / total, 100);
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+                progressable.setProgress(resourceId, current * 50 / total, 100);
+            }
+
+            @Override
+            public void setProgress(int current, int total) {
+                progressable.setProgress(current * 50 / total, 100);
+            }
+        };
+    }
+
+    /**
+     * Writes the signed and compressed packets of executeBatch to plain
+     */
+    private void writeBatchPackets(OutputStream plain, boolean enableSignature,
+                                   boolean enableCompression)
+            throws IOException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException, KeyExtractionException,
+            NoSigningKeyException, NoPassphraseException {
+        if (enableSignature) {
+            // sign-only binary, without armor
+            new Builder(mProviderHelper, mVersionHeader, mData, plain)
+                    .setProgressable(mProgressable == null
+                            ? null : getFirstHalfProgressable(mProgressable))
+                    .setCompressionId(mCompressionId)
+                    .setSignatureMasterKeyId(mSignatureMasterKeyId)
+                    .setSignatureHashAlgorithm(mSignatureHashAlgorithm)
+                    .setSignatureForceV3(mSignatureForceV3)
+                    .setSignaturePassphrase(mSignaturePassphrase)
+                    .build().execute();
+        } else {
+            PGPCompressedDataGenerator compressGen = null;
+            OutputStream out = plain;
+            if (enableCompression) {
+                compressGen = new PGPCompressedDataGenerator(mCompressionId);
+                out = compressGen.open(plain);
+            }
+
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            byte[] literalBuffer = BufferPool.acquire();
+            OutputStream pOut = literalGen.open(out, PGPLiteralData.BINARY, "", new Date(),
+                    literalBuffer);
+            StreamProgress progress = new StreamProgress(mProgressable, "compress", 0, 50,
+                    mData.getSize());
+            long done = 0;
+            InputStream in = mData.getInputStream();
+            byte[] buffer = BufferPool.acquire();
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                pOut.write(buffer, 0, n);
+                done += n;
+                progress.update(done);
+            }
+            BufferPool.release(buffer);
+            progress.finish(done);
+
+            literalGen.close();
+            BufferPool.release(literalBuffer);
+            if (compressGen != null) {
+                compressGen.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the text of a cleartext signature (http://tools.ietf.org/html/rfc4880#section-7)
+     * and feeds its canonical form to the signature generator, working on the input's bytes as
+     * they are, without decoding them.
+     *
+     * Trailing whitespace is removed, line endings are written as CRLF and lines starting with a
+     * dash are dash-escaped. The signed data is the same text without dash-escapes and without
+     * the line ending after the last line.
+     */
+    private static class ClearTextWriter {
+        private static final byte[] DASH_ESCAPE = new byte[]{'-', ' '};
+
+        private final OutputStream mOut;
+        private final PGPSignatureGenerator mSignatureGenerator;
+        private final PGPV3SignatureGenerator mSignatureV3Generator;
+
+        // trailing whitespace of the current line, only kept if something else follows it
+        private final ByteArrayOutputStream mPendingWhiteSpace = new ByteArrayOutputStream();
+        private boolean mAtLineStart = true;
+        private boolean mLastWasCr = false;
+        private int mLines = 0;
+
+        /**
+         * @param signatureGenerator   may be null if signatureV3Generator is given
+         * @param signatureV3Generator may be null if signatureGenerator is given
+         */
+        public ClearTextWriter(OutputStream out, PGPSignatureGenerator signatureGenerator,
+                               PGPV3SignatureGenerator signatureV3Generator) {
+            mOut = out;
+            mSignatureGenerator = signatureGenerator;
+            mSignatureV3Generator = signatureV3Generator;
+        }
+
+        public void update(byte[] buffer, int offset, int length)
+                throws IOException, SignatureException {
+            int end = offset + length;
+            int start = offset;
+            for (int i = offset; i < end; ++i) {
+                byte b = buffer[i];
+                if (b != '\r' && b != '\n') {
+                    mLastWasCr = false;
+                    continue;
+                }
+
+                if (b == '\n' && mLastWasCr) {
+                    // second half of a CRLF
+                    mLastWasCr = false;
+                } else {
+                    updateLine(buffer, start, i - start);
+                    endLine();
+                    mLastWasCr = (b == '\r');
+                }
+                start = i + 1;
+            }
+            updateLine(buffer, start, end - start);
+        }
+
+        /**
+         * Ends the text, it always ends with a line ending, see
+         * http://tools.ietf.org/html/rfc4880#section-7
+         */
+        public void finish() throws IOException, SignatureException {
+            if (!mAtLineStart || mLines == 0) {
+                endLine();
+            }
+        }
+
+        private void updateLine(byte[] buffer, int offset, int length)
+                throws IOException, SignatureException {
+            if (length == 0) {
+                return;
+            }
+            if (startLine() && buffer[offset] == '-') {
+                mOut.write(DASH_ESCAPE);
+            }
+
+            int last = offset + length - 1;
+            while (last >= offset && (buffer[last] == ' ' || buffer[last] == '\t')) {
+                --last;
+            }
+            if (last >= offset) {
+                if (mPendingWhiteSpace.size() > 0) {
+                    write(mPendingWhiteSpace.toByteArray(), 0, mPendingWhiteSpace.size());
+                    mPendingWhiteSpace.reset();
+                }
+                write(buffer, offset, last + 1 - offset);
+            }
+            mPendingWhiteSpace.write(buffer, last + 1, offset + length - (last + 1));
+        }
+
+        /**
+         * @return true if a new line has been started
+         */
+        private boolean startLine() throws SignatureException {
+            if (!mAtLineStart) {
+                return false;
+            }
+            // lines are separated by CRLF, the line ending after the last line isn't signed
+            if (mLines > 0) {
+                updateSignature(NEW_LINE, 0, NEW_LINE.length);
+            }
+            ++mLines;
+            mAtLineStart = false;
+            return true;
+        }
+
+        private void endLine() throws IOException, SignatureException {
+            startLine();
+            mPendingWhiteSpace.reset();
+            mOut.write(NEW_LINE);
+            mAtLineStart = true;
+        }
+
+        private void write(byte[] buffer, int offset, int length)
+                throws IOException, SignatureException {
+            mOut.write(buffer, offset, length);
+            updateSignature(buffer, offset, length);
+        }
+
+        private void updateSignature(byte[] buffer, int offset, int length)
+                throws SignatureException {
+            if (mSignatureGenerator != null) {
+                mSignatureGenerator.update(buffer, offset, length);
+            } else {
+                mSignatureV3Generator.update(buffer, offset, length);
+            }
+        }
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Keeps unlocked private keys in the memory of this process, so signing or decrypting many small
+ * messages doesn't run the S2K derivation and unwrapping of the secret key every time.
+ *
+ * Entries follow the PassphraseCacheService: they live for the passphrase cache TTL, which starts
+ * again whenever an entry is used, and are dropped as soon as they expire. A key is only handed
+ * out for the passphrase it was unlocked with, and for the very secret key it was unlocked from.
+ * Entries are dropped when their passphrase leaves the PassphraseCache, and all of them when any
+ * key ring changes. The cache can be turned off in the preferences.
+ */
+public class PrivateKeyCache {
+    private static final PrivateKeyCache sInstance = new PrivateKeyCache();
+
+    private static class Entry {
+        final long masterKeyId;
+        final PGPPrivateKey key;
+        // the encoded secret key, with its S2K parameters and encrypted key material
+        final byte[] secretKey;
+        final byte[] salt;
+        final byte[] passphraseDigest;
+        long expiry;
+
+        Entry(long masterKeyId, PGPPrivateKey key, byte[] secretKey, byte[] salt,
+              byte[] passphraseDigest) {
+            this.masterKeyId = masterKeyId;
+            this.key = key;
+            this.secretKey = secretKey;
+            this.salt = salt;
+            this.passphraseDigest = passphraseDigest;
+        }
+    }
+
+    private final LongSparseArray<Entry> mKeys = new LongSparseArray<Entry>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mSweepPending = false;
+    private boolean mObserving = false;
+
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    private final ContentObserver mKeyRingObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // a secret key ring may have been deleted or changed its passphrase
+            clear();
+        }
+    };
+
+    private PrivateKeyCache() {
+    }
+
+    public static PrivateKeyCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Extracts the private key of secretKey, or takes it from the cache if the same secret key
+     * was unlocked with the same passphrase before.
+     *
+     * @param masterKeyId master key id of the key ring of secretKey
+     * @return the private key, null if secretKey has none
+     */
+    public PGPPrivateKey extractPrivateKey(Context context, long masterKeyId,
+                                           PGPSecretKey secretKey, String passphrase)
+            throws PGPException {
+        Preferences preferences = Preferences.getPreferences(context);
+        if (!preferences.getCacheUnlockedKeys()) {
+            clear();
+            return extract(secretKey, passphrase);
+        }
+        // in ms, 0 or less (the "forever" choice is -1) if the entries never expire
+        long ttl = preferences.getPassphraseCacheTtl() * 1000;
+        long keyId = secretKey.getKeyID();
+        byte[] encoded;
+        try {
+            encoded = secretKey.getEncoded();
+        } catch (IOException e) {
+            throw new PGPException("could not encode secret key", e);
+        }
+
+        synchronized (this) {
+            observeKeyRings(context);
+            Entry entry = mKeys.get(keyId);
+            if (entry != null && entry.expiry > SystemClock.elapsedRealtime()
+                    && entry.masterKeyId == masterKeyId
+                    && MessageDigest.isEqual(entry.secretKey, encoded)
+                    && MessageDigest.isEqual(entry.passphraseDigest,
+                    digest(entry.salt, passphrase))) {
+                // used again, so restart its life cycle
+                entry.expiry = getExpiry(ttl);
+                return entry.key;
+            }
+        }
+
+        // the slow part, done without holding the lock
+        PGPPrivateKey key = extract(secretKey, passphrase);
+        if (key == null) {
+            return null;
+        }
+
+        byte[] salt = new byte[16];
+        mRandom.nextBytes(salt);
+        Entry entry = new Entry(masterKeyId, key, encoded, salt, digest(salt, passphrase));
+        synchronized (this) {
+            entry.expiry = getExpiry(ttl);
+            mKeys.put(keyId, entry);
+            if (ttl > 0) {
+                scheduleSweep(ttl);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Forgets the unlocked keys of a key ring
+     */
+    public synchronized void remove(long masterKeyId) {
+        for (int i = mKeys.size() - 1; i >= 0; --i) {
+            if (mKeys.valueAt(i).masterKeyId == masterKeyId) {
+                mKeys.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Forgets all unlocked keys
+     */
+    public synchronized void clear() {
+        mKeys.clear();
+    }
+
+    private static long getExpiry(long ttl) {
+        return ttl > 0 ? SystemClock.elapsedRealtime() + ttl : Long.MAX_VALUE;
+    }
+
+    private void observeKeyRings(Context context) {
+        if (!mObserving) {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, mKeyRingObserver);
+            mObserving = true;
+        }
+    }
+
+    private static PGPPrivateKey extract(PGPSecretKey secretKey, String passphrase)
+            throws PGPException {
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                .build(passphrase.toCharArray());
+        return secretKey.extractPrivateKey(keyDecryptor);
+    }
+
+    private static byte[] digest(byte[] salt, String passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(passphrase.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void scheduleSweep(long delay) {
+        if (!mSweepPending) {
+            mSweepPending = true;
+            mHandler.postDelayed(mSweep, delay);
+        }
+    }
+
+    private synchronized void sweep() {
+        mSweepPending = false;
+        long now = SystemClock.elapsedRealtime();
+        long next = Long.MAX_VALUE;
+        for (int i = mKeys.size() - 1; i >= 0; --i) {
+            long expiry = mKeys.valueAt(i).expiry;
+            if (expiry <= now) {
+                Log.d(Constants.TAG, "Unlocked key "
+                        + PgpKeyHelper.convertKeyIdToHex(mKeys.keyAt(i)) + " timed out");
+                mKeys.removeAt(i);
+            } else if (expiry != Long.MAX_VALUE) {
+                next = Math.min(next, expiry);
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleSweep(next - now);
+        }
+    }
+}
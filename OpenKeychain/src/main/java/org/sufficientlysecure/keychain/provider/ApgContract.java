@@ -43,6 +43,8 @@ public class ApgContract {
         String CAN_CERTIFY = "can_certify";
         String IS_REVOKED = "is_revoked";
         String HAS_SECRET = "has_secret";
+        // how the secret part is protected, null if there is none
+        String SECRET_PROTECTION = "secret_protection";
 
         String CREATION = "creation";
         String EXPIRY = "expiry";
@@ -51,6 +53,7 @@ public class ApgContract {
     interface UserIdsColumns {
         String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
         String USER_ID = "user_id"; // not a database id
+        String EMAIL = "email"; // lower case email part of the user id, for indexed lookups
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
@@ -66,6 +69,13 @@ public class ApgContract {
         String DATA = "data";
     }
 
+    interface VerifiedSignaturesColumns {
+        String DIGEST = "digest"; // over the signature packet and what it signs
+        String ISSUER_FINGERPRINT = "issuer_fingerprint";
+        String ISSUER_MASTER_KEY_ID = "issuer_master_key_id";
+        String VALID = "valid";
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_SIGNATURE = "package_signature";
@@ -94,12 +104,16 @@ public class ApgContract {
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
 
+    public static final String PATH_SEARCH = "search";
+
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
 
+    public static final String BASE_VERIFIED_SIGNATURES = "verified_signatures";
+
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
 
@@ -111,6 +125,13 @@ public class ApgContract {
         public static final String HAS_ENCRYPT = "has_encrypt";
         public static final String HAS_SIGN = "has_sign";
 
+        // raw columns of the keyring_summary table, HAS_ENCRYPT and HAS_SIGN are derived from
+        // them at query time since they depend on the current time
+        static final String CAN_ENCRYPT_ANY = "can_encrypt_any";
+        static final String ENCRYPT_EXPIRY = "encrypt_expiry";
+        static final String CAN_SIGN_ANY = "can_sign_any";
+        static final String SIGN_EXPIRY = "sign_expiry";
+
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
 
@@ -147,6 +168,13 @@ public class ApgContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY).appendPath(subkey).build();
         }
 
+        /**
+         * Key rings with user ids containing words starting with each word of the query
+         */
+        public static Uri buildUnifiedKeyRingsSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -185,6 +213,15 @@ public class ApgContract {
     }
 
     public static class Keys implements KeysColumns, BaseColumns {
+        // values of SECRET_PROTECTION
+        public static final int PROTECTION_UNKNOWN = -1;
+        // not encrypted, or encrypted with an empty passphrase
+        public static final int PROTECTION_NONE = 0;
+        public static final int PROTECTION_PASSPHRASE = 1;
+        // GNU_DUMMY_S2K stubs
+        public static final int PROTECTION_NO_PRIVATE_KEY = 2;
+        public static final int PROTECTION_DIVERT_TO_CARD = 3;
+
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
 
@@ -200,6 +237,10 @@ public class ApgContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.thialfihar.android.apg.provider.keychain.keys";
 
+        public static Uri buildKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(String masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(masterKeyId).appendPath(PATH_KEYS).build();
         }
@@ -257,6 +298,14 @@ public class ApgContract {
         }
     }
 
+    public static class VerifiedSignatures implements VerifiedSignaturesColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_VERIFIED_SIGNATURES).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.thialfihar.android.apg.provider.verified_signatures";
+    }
+
     public static class ApiAccounts implements ApiAppsAccountsColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_API_APPS).build();
@@ -17,21 +17,32 @@
 
 package org.thialfihar.android.apg.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.PgpConversionHelper;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.provider.ApgContract.Certs;
+import org.thialfihar.android.apg.provider.ApgContract.VerifiedSignatures;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.IterableIterator;
 import org.thialfihar.android.apg.util.Log;
 
 import java.io.IOException;
 
 public class ApgDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
 
     static Boolean migrationHack = false;
 
@@ -43,6 +54,9 @@ public class ApgDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String USER_IDS = "user_ids";
         String CERTS = "certs";
+        String KEY_RING_SUMMARY = "keyring_summary";
+        String USER_IDS_FTS = "user_ids_fts";
+        String VERIFIED_SIGNATURES = "verified_signatures";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
     }
@@ -201,6 +215,7 @@ public class ApgDatabase extends SQLiteOpenHelper {
             "can_encrypt BOOLEAN, " +
             "is_revoked BOOLEAN, " +
             "has_secret BOOLEAN, " +
+            "secret_protection INTEGER, " +
             "creation INTEGER, " +
             "expiry INTEGER, " +
             "PRIMARY KEY(master_key_id, rank), " +
@@ -210,6 +225,7 @@ public class ApgDatabase extends SQLiteOpenHelper {
         db.execSQL("CREATE TABLE IF NOT EXISTS user_ids(" +
             "master_key_id INTEGER, " +
             "user_id TEXT, " +
+            "email TEXT, " +
             "is_primary BOOLEAN, " +
             "is_revoked BOOLEAN, " +
             "rank INTEGER, " +
@@ -247,6 +263,149 @@ public class ApgDatabase extends SQLiteOpenHelper {
                     "keyrings_public(master_key_id) ON DELETE CASCADE," +
             "FOREIGN KEY(master_key_id, rank) REFERENCES " +
                     "user_ids(master_key_id, rank) ON DELETE CASCADE)");
+
+        createKeyRingSummaryTable(db);
+        createUserIdsFtsTable(db);
+        createVerifiedSignaturesTable(db);
+        createIndexes(db);
+    }
+
+    /**
+     * Outcomes of signature verifications, see VerifiedSignatureCache. The issuer's fingerprint
+     * is part of the key, so a changed issuing key never matches old rows. They are deleted
+     * along with the issuer's key ring.
+     */
+    private static void createVerifiedSignaturesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS verified_signatures(" +
+            "digest TEXT, " +
+            "issuer_fingerprint TEXT, " +
+            "issuer_master_key_id INTEGER, " +
+            "valid BOOLEAN, " +
+            "PRIMARY KEY(digest, issuer_fingerprint))");
+        db.execSQL("CREATE INDEX IF NOT EXISTS verified_signatures_issuer " +
+            "ON verified_signatures(issuer_master_key_id)");
+    }
+
+    /**
+     * Drops all cached verification outcomes of signatures issued by a key ring
+     */
+    static void deleteVerifiedSignatures(SQLiteDatabase db, long issuerMasterKeyId) {
+        db.delete(Tables.VERIFIED_SIGNATURES, VerifiedSignatures.ISSUER_MASTER_KEY_ID + " = ?",
+                new String[]{Long.toString(issuerMasterKeyId)});
+    }
+
+    /**
+     * Full text index over all user ids of a key ring, one row per key ring with the
+     * master key id as docid. Virtual tables know nothing about foreign keys, so rows must be
+     * deleted explicitly along with their key ring.
+     */
+    private static void createUserIdsFtsTable(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS user_ids_fts USING fts4(user_ids)");
+        } catch (SQLException e) {
+            // fts4 needs sqlite 3.7.4 (api level 11), fts3 is always there
+            Log.d(Constants.TAG, "fts4 not available, using fts3 for user_ids_fts");
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS user_ids_fts USING fts3(user_ids)");
+        }
+    }
+
+    /**
+     * One row per key ring, holding everything the unified key ring query needs besides the
+     * master key itself. Expiry dependent flags can't be stored as such, so we keep the latest
+     * expiry of the usable encryption/signing keys instead (NULL if one of them never expires).
+     */
+    private static void createKeyRingSummaryTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS keyring_summary(" +
+            "master_key_id INTEGER PRIMARY KEY, " +
+            "user_id TEXT, " +
+            "verified INTEGER, " +
+            "has_any_secret BOOLEAN, " +
+            "can_encrypt_any BOOLEAN, " +
+            "encrypt_expiry INTEGER, " +
+            "can_sign_any BOOLEAN, " +
+            "sign_expiry INTEGER, " +
+            "FOREIGN KEY(master_key_id) REFERENCES " +
+                "keyrings_public(master_key_id) ON DELETE CASCADE)");
+    }
+
+    private static final String SUMMARY_USABLE_ENCRYPT = "FROM keys e " +
+        "WHERE e.master_key_id = k.master_key_id AND e.is_revoked = 0 AND e.can_encrypt = 1";
+    private static final String SUMMARY_USABLE_SIGN = "FROM keys e " +
+        "WHERE e.master_key_id = k.master_key_id AND e.is_revoked = 0 " +
+            "AND e.has_secret = 1 AND e.can_sign = 1";
+
+    private static final String SUMMARY_INSERT = "INSERT INTO keyring_summary (" +
+            "master_key_id, user_id, verified, has_any_secret, " +
+            "can_encrypt_any, encrypt_expiry, can_sign_any, sign_expiry) " +
+        "SELECT k.master_key_id, u.user_id, " +
+            "(SELECT MIN(c.verified) FROM certs c " +
+                "WHERE c.master_key_id = k.master_key_id AND c.verified = " +
+                    Certs.VERIFIED_SECRET + "), " +
+            "EXISTS (SELECT 1 FROM keyrings_secret s WHERE s.master_key_id = k.master_key_id), " +
+            "EXISTS (SELECT 1 " + SUMMARY_USABLE_ENCRYPT + "), " +
+            "(SELECT CASE WHEN COUNT(e.expiry) < COUNT(*) THEN NULL ELSE MAX(e.expiry) END " +
+                SUMMARY_USABLE_ENCRYPT + "), " +
+            "EXISTS (SELECT 1 " + SUMMARY_USABLE_SIGN + "), " +
+            "(SELECT CASE WHEN COUNT(e.expiry) < COUNT(*) THEN NULL ELSE MAX(e.expiry) END " +
+                SUMMARY_USABLE_SIGN + ") " +
+        "FROM keys k INNER JOIN user_ids u " +
+            "ON (u.master_key_id = k.master_key_id AND u.rank = 0) " +
+        "WHERE k.rank = 0";
+
+    private static final String USER_IDS_FTS_INSERT = "INSERT INTO user_ids_fts (docid, user_ids) " +
+        "SELECT master_key_id, group_concat(user_id, ' ') FROM user_ids";
+
+    /**
+     * Recomputes the keyring_summary and user_ids_fts rows of a single key ring from the keys,
+     * user_ids, certs and keyrings_secret tables. Must be called whenever one of those changes.
+     */
+    static void updateKeyRingSummary(SQLiteDatabase db, long masterKeyId) {
+        String[] args = new String[]{Long.toString(masterKeyId)};
+        db.execSQL("DELETE FROM keyring_summary WHERE master_key_id = ?", args);
+        db.execSQL(SUMMARY_INSERT + " AND k.master_key_id = ?", args);
+        db.execSQL("DELETE FROM user_ids_fts WHERE docid = ?", args);
+        db.execSQL(USER_IDS_FTS_INSERT + " WHERE master_key_id = ? GROUP BY master_key_id", args);
+    }
+
+    /**
+     * Removes the rows of a key ring which are not taken care of by ON DELETE CASCADE
+     */
+    static void deleteKeyRingSummary(SQLiteDatabase db, long masterKeyId) {
+        db.execSQL("DELETE FROM user_ids_fts WHERE docid = ?", new String[]{
+                Long.toString(masterKeyId)
+        });
+    }
+
+    private static void fillKeyRingSummaryTable(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM keyring_summary");
+        db.execSQL(SUMMARY_INSERT);
+    }
+
+    private static void fillUserIdsFtsTable(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM user_ids_fts");
+        db.execSQL(USER_IDS_FTS_INSERT + " GROUP BY master_key_id");
+    }
+
+    /**
+     * Secondary indexes for the find by subkey and find by email queries, and a covering index
+     * for the has_encrypt/has_sign subqueries of the unified key ring query. Public for the
+     * ApgDatabaseBenchmark only.
+     */
+    public static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS keys_key_id ON keys(key_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS keys_capabilities ON keys(" +
+            "master_key_id, is_revoked, can_encrypt, can_sign, has_secret, expiry)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS user_ids_user_id ON user_ids(user_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS user_ids_email ON user_ids(email)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS certs_verified ON certs(master_key_id, verified)");
+    }
+
+    public static void dropIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS keys_key_id");
+        db.execSQL("DROP INDEX IF EXISTS keys_capabilities");
+        db.execSQL("DROP INDEX IF EXISTS user_ids_user_id");
+        db.execSQL("DROP INDEX IF EXISTS user_ids_email");
+        db.execSQL("DROP INDEX IF EXISTS certs_verified");
     }
 
     @Override
@@ -261,5 +420,73 @@ public class ApgDatabase extends SQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.w(Constants.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+        // fall through, one version at a time
+        switch (oldVersion) {
+            case 1:
+                db.execSQL("ALTER TABLE user_ids ADD COLUMN email TEXT");
+                fillEmailColumn(db);
+                createIndexes(db);
+            case 2:
+                createKeyRingSummaryTable(db);
+                fillKeyRingSummaryTable(db);
+            case 3:
+                createUserIdsFtsTable(db);
+                fillUserIdsFtsTable(db);
+            case 4:
+                createVerifiedSignaturesTable(db);
+            case 5:
+                db.execSQL("ALTER TABLE keys ADD COLUMN secret_protection INTEGER");
+                fillSecretProtectionColumn(db);
+        }
+    }
+
+    private void fillEmailColumn(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT oid, user_id FROM user_ids", null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                String email = PgpKeyHelper.getEmail(cursor.getString(1));
+                if (email == null) {
+                    continue;
+                }
+                values.put("email", email);
+                db.update("user_ids", values, "oid = ?", new String[]{
+                        Long.toString(cursor.getLong(0))
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void fillSecretProtectionColumn(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT master_key_id, key_ring_data FROM keyrings_secret",
+                null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(cursor.getBlob(1));
+                if (!(keyRing instanceof PGPSecretKeyRing)) {
+                    continue;
+                }
+                String masterKeyId = Long.toString(cursor.getLong(0));
+                for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                        ((PGPSecretKeyRing) keyRing).getSecretKeys())) {
+                    values.put("secret_protection", ProviderHelper.getSecretProtection(key));
+                    db.update("keys", values, "master_key_id = ? AND key_id = ?", new String[]{
+                            masterKeyId, Long.toString(key.getKeyID())
+                    });
+                }
+            }
+        } finally {
+            cursor.close();
+        }
     }
 }
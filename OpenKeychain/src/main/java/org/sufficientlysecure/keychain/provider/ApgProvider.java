@@ -19,7 +19,10 @@
 package org.thialfihar.android.apg.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -37,18 +40,23 @@ import org.thialfihar.android.apg.provider.ApgContract.KeyRingData;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
 import org.thialfihar.android.apg.provider.ApgContract.Keys;
 import org.thialfihar.android.apg.provider.ApgContract.UserIds;
+import org.thialfihar.android.apg.provider.ApgContract.VerifiedSignatures;
 import org.thialfihar.android.apg.provider.ApgDatabase.Tables;
 import org.thialfihar.android.apg.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 
 public class ApgProvider extends ContentProvider {
 
     private static final int KEY_RINGS_UNIFIED = 101;
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
+    private static final int KEY_RINGS_KEYS = 104;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -65,6 +73,9 @@ public class ApgProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_SEARCH = 402;
+
+    private static final int VERIFIED_SIGNATURES = 500;
 
     protected UriMatcher mUriMatcher;
 
@@ -83,6 +94,8 @@ public class ApgProvider extends ContentProvider {
          * <pre>
          * key_rings/unified
          * key_rings/public
+         * key_rings/secret
+         * key_rings/keys
          * </pre>
          */
         matcher.addURI(authority, ApgContract.BASE_KEY_RINGS
@@ -94,6 +107,9 @@ public class ApgProvider extends ContentProvider {
         matcher.addURI(authority, ApgContract.BASE_KEY_RINGS
                 + "/" + ApgContract.PATH_SECRET,
                 KEY_RINGS_SECRET);
+        matcher.addURI(authority, ApgContract.BASE_KEY_RINGS
+                + "/" + ApgContract.PATH_KEYS,
+                KEY_RINGS_KEYS);
 
         /**
          * find by criteria other than master key id
@@ -109,6 +125,15 @@ public class ApgProvider extends ContentProvider {
                 + ApgContract.PATH_FIND + "/" + ApgContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
 
+        /**
+         * full text search in user ids
+         *
+         * key_rings/search/_
+         */
+        matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/"
+                + ApgContract.PATH_SEARCH + "/*",
+                KEY_RINGS_SEARCH);
+
         /**
          * legacy uri
          * key_rings/public/emails/_
@@ -169,11 +194,26 @@ public class ApgProvider extends ContentProvider {
         matcher.addURI(authority, ApgContract.BASE_API_APPS + "/*/"
                 + ApgContract.PATH_ACCOUNTS + "/*", API_ACCOUNTS_BY_ACCOUNT_NAME);
 
+        /**
+         * verified signatures
+         *
+         * <pre>
+         * verified_signatures
+         * </pre>
+         */
+        matcher.addURI(authority, ApgContract.BASE_VERIFIED_SIGNATURES, VERIFIED_SIGNATURES);
+
         return matcher;
     }
 
     private ApgDatabase mKeychainDatabase;
 
+    /**
+     * Key rings whose keyring_summary row has to be updated at the end of the current batch,
+     * null outside of applyBatch
+     */
+    private final ThreadLocal<HashSet<Long>> mDirtySummaries = new ThreadLocal<HashSet<Long>>();
+
     /**
      * {@inheritDoc}
      */
@@ -199,6 +239,7 @@ public class ApgProvider extends ContentProvider {
             case KEY_RING_PUBLIC:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS:
                 return Keys.CONTENT_TYPE;
 
@@ -220,6 +261,9 @@ public class ApgProvider extends ContentProvider {
             case API_ACCOUNTS_BY_ACCOUNT_NAME:
                 return ApiAccounts.CONTENT_ITEM_TYPE;
 
+            case VERIFIED_SIGNATURES:
+                return VerifiedSignatures.CONTENT_TYPE;
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -244,7 +288,8 @@ public class ApgProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_SEARCH: {
                 HashMap<String, String> projectionMap = new HashMap<String, String>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -258,53 +303,39 @@ public class ApgProvider extends ContentProvider {
                 projectionMap.put(KeyRings.EXPIRY, Keys.EXPIRY);
                 projectionMap.put(KeyRings.ALGORITHM, Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, UserIds.USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
-                projectionMap.put(KeyRings.HAS_SECRET, KeyRings.HAS_SECRET);
+                projectionMap.put(KeyRings.USER_ID, Tables.KEY_RING_SUMMARY + "." + KeyRings.USER_ID);
+                projectionMap.put(KeyRings.VERIFIED, Tables.KEY_RING_SUMMARY + "." + KeyRings.VERIFIED);
+                projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + Keys.HAS_SECRET);
                 projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                    "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
-                        + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + ")) AS " + KeyRings.HAS_ANY_SECRET);
+                        Tables.KEY_RING_SUMMARY + "." + KeyRings.HAS_ANY_SECRET);
+                // the summary only knows when the last usable key expires, so check that here
+                long now = new Date().getTime() / 1000;
                 projectionMap.put(KeyRings.HAS_ENCRYPT,
-                    "(EXISTS (SELECT * FROM " + Tables.KEYS + " AS k"
-                        +" WHERE k." + Keys.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + " AND k." + Keys.IS_REVOKED + " = 0"
-                        + " AND k." + Keys.CAN_ENCRYPT + " = 1"
-                        + " AND ( k." + Keys.EXPIRY + " IS NULL OR k." + Keys.EXPIRY
-                            + " >= " + new Date().getTime() / 1000 + " )"
-                        + ")) AS " + KeyRings.HAS_ENCRYPT);
+                    "(" + Tables.KEY_RING_SUMMARY + "." + KeyRings.CAN_ENCRYPT_ANY + " = 1"
+                        + " AND (" + Tables.KEY_RING_SUMMARY + "." + KeyRings.ENCRYPT_EXPIRY + " IS NULL"
+                            + " OR " + Tables.KEY_RING_SUMMARY + "." + KeyRings.ENCRYPT_EXPIRY
+                                + " >= " + now + ")"
+                        + ") AS " + KeyRings.HAS_ENCRYPT);
                 projectionMap.put(KeyRings.HAS_SIGN,
-                        "(EXISTS (SELECT * FROM " + Tables.KEYS + " AS k"
-                                +" WHERE k." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND k." + Keys.IS_REVOKED + " = 0"
-                                + " AND k." + Keys.HAS_SECRET + " = 1"
-                                + " AND k." + Keys.CAN_SIGN + " = 1"
-                                + " AND ( k." + Keys.EXPIRY + " IS NULL OR k." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")) AS " + KeyRings.HAS_SIGN);
+                    "(" + Tables.KEY_RING_SUMMARY + "." + KeyRings.CAN_SIGN_ANY + " = 1"
+                        + " AND (" + Tables.KEY_RING_SUMMARY + "." + KeyRings.SIGN_EXPIRY + " IS NULL"
+                            + " OR " + Tables.KEY_RING_SUMMARY + "." + KeyRings.SIGN_EXPIRY
+                                + " >= " + now + ")"
+                        + ") AS " + KeyRings.HAS_SIGN);
                 qb.setProjectionMap(projectionMap);
 
+                // everything but the master key itself is precomputed in keyring_summary,
+                // see ApgDatabase.updateKeyRingSummary
                 qb.setTables(
-                    Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_IDS + " ON ("
+                    Tables.KEY_RING_SUMMARY
+                        + " INNER JOIN " + Tables.KEYS + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
-                                    + Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID
-                            + " AND " + Tables.USER_IDS + "." + UserIds.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
+                                    + Tables.KEY_RING_SUMMARY + "." + KeyRings.MASTER_KEY_ID
+                            + " AND " + Tables.KEYS + "." + Keys.RANK + " = 0"
                         + ")"
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
@@ -339,9 +370,11 @@ public class ApgProvider extends ContentProvider {
                             if (i != 0) {
                                 emailWhere += " OR ";
                             }
-                            emailWhere += "tmp." + UserIds.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                            // the email column holds the lower cased bare address from the
+                            // '<email>' at the end of the user id, and is indexed (user_ids_email)
+                            emailWhere += "tmp." + UserIds.EMAIL + " = ";
+                            emailWhere += DatabaseUtils.sqlEscapeString(
+                                    chunks[i].toLowerCase(Locale.US));
                             gotCondition = true;
                         }
                         if(gotCondition) {
@@ -358,10 +391,22 @@ public class ApgProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_SEARCH: {
+                        String matchQuery = buildUserIdsMatchQuery(uri.getLastPathSegment());
+                        // nothing to search for matches everything, like LIKE '%%' did
+                        if (matchQuery != null) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                    + " IN (SELECT docid FROM " + Tables.USER_IDS_FTS
+                                    + " WHERE " + Tables.USER_IDS_FTS + " MATCH ");
+                            qb.appendWhereEscapeString(matchQuery);
+                            qb.appendWhere(")");
+                        }
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_IDS + "." + UserIds.USER_ID + " ASC";
+                    sortOrder = Tables.KEY_RING_SUMMARY + "." + KeyRings.USER_ID + " ASC";
                 }
 
                 // uri to watch is all /key_rings/
@@ -370,6 +415,7 @@ public class ApgProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<String, String>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -382,6 +428,7 @@ public class ApgProvider extends ContentProvider {
                 projectionMap.put(Keys.CAN_ENCRYPT, Keys.CAN_ENCRYPT);
                 projectionMap.put(Keys.CAN_SIGN, Keys.CAN_SIGN);
                 projectionMap.put(Keys.HAS_SECRET, Keys.HAS_SECRET);
+                projectionMap.put(Keys.SECRET_PROTECTION, Keys.SECRET_PROTECTION);
                 projectionMap.put(Keys.CREATION, Keys.CREATION);
                 projectionMap.put(Keys.EXPIRY, Keys.EXPIRY);
                 projectionMap.put(Keys.ALGORITHM, Keys.ALGORITHM);
@@ -389,8 +436,10 @@ public class ApgProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -400,6 +449,7 @@ public class ApgProvider extends ContentProvider {
                 projectionMap.put(UserIds._ID, Tables.USER_IDS + ".oid AS _id");
                 projectionMap.put(UserIds.MASTER_KEY_ID, Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID);
                 projectionMap.put(UserIds.USER_ID, Tables.USER_IDS + "." + UserIds.USER_ID);
+                projectionMap.put(UserIds.EMAIL, Tables.USER_IDS + "." + UserIds.EMAIL);
                 projectionMap.put(UserIds.RANK, Tables.USER_IDS + "." + UserIds.RANK);
                 projectionMap.put(UserIds.IS_PRIMARY, Tables.USER_IDS + "." + UserIds.IS_PRIMARY);
                 projectionMap.put(UserIds.IS_REVOKED, Tables.USER_IDS + "." + UserIds.IS_REVOKED);
@@ -532,6 +582,10 @@ public class ApgProvider extends ContentProvider {
                 qb.appendWhere(" AND " + Tables.API_ACCOUNTS + "." + ApiAccounts.ACCOUNT_NAME + " = ");
                 qb.appendWhereEscapeString(uri.getLastPathSegment());
 
+                break;
+            case VERIFIED_SIGNATURES:
+                qb.setTables(Tables.VERIFIED_SIGNATURES);
+
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + " (" + match + ")");
@@ -584,18 +638,22 @@ public class ApgProvider extends ContentProvider {
                     break;
 
                 case KEY_RING_SECRET:
-                    db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
+                    // we replace here, the secret key ring is saved on top of an existing one
+                    db.replaceOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    updateKeyRingSummary(db, keyId);
                     break;
 
                 case KEY_RING_KEYS:
                     db.insertOrThrow(Tables.KEYS, null, values);
                     keyId = values.getAsLong(Keys.MASTER_KEY_ID);
+                    updateKeyRingSummary(db, keyId);
                     break;
 
                 case KEY_RING_USER_IDS:
                     db.insertOrThrow(Tables.USER_IDS, null, values);
                     keyId = values.getAsLong(UserIds.MASTER_KEY_ID);
+                    updateKeyRingSummary(db, keyId);
                     break;
 
                 case KEY_RING_CERTS:
@@ -603,6 +661,7 @@ public class ApgProvider extends ContentProvider {
                     // TODO this would be better handled in saveKeyRing directly!
                     db.replaceOrThrow(Tables.CERTS, null, values);
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
+                    updateKeyRingSummary(db, keyId);
                     break;
 
                 case API_APPS:
@@ -618,6 +677,13 @@ public class ApgProvider extends ContentProvider {
                     db.insertOrThrow(Tables.API_ACCOUNTS, null, values);
                     break;
 
+                case VERIFIED_SIGNATURES:
+                    // a signature may be verified again by a concurrent operation
+                    db.replaceOrThrow(Tables.VERIFIED_SIGNATURES, null, values);
+                    // applyBatch fails on inserts returning null
+                    rowUri = uri;
+                    break;
+
                 default:
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -658,6 +724,9 @@ public class ApgProvider extends ContentProvider {
                 }
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                ApgDatabase.deleteKeyRingSummary(db, Long.parseLong(uri.getPathSegments().get(1)));
+                ApgDatabase.deleteVerifiedSignatures(db,
+                        Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -668,6 +737,44 @@ public class ApgProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                updateKeyRingSummary(db, Long.parseLong(uri.getPathSegments().get(1)));
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
+            case KEY_RING_KEYS: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = Keys.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                count = db.delete(Tables.KEYS, selection, selectionArgs);
+                updateKeyRingSummary(db, Long.parseLong(uri.getPathSegments().get(1)));
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
+            case KEY_RING_USER_IDS: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = UserIds.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                // corresponding certs are deleted by ON DELETE CASCADE
+                count = db.delete(Tables.USER_IDS, selection, selectionArgs);
+                updateKeyRingSummary(db, Long.parseLong(uri.getPathSegments().get(1)));
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
+            case KEY_RING_CERTS_SPECIFIC: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = Certs.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1)
+                        + " AND " + Certs.RANK + " = " + Long.parseLong(uri.getPathSegments().get(3))
+                        + " AND " + Certs.KEY_ID_CERTIFIER + " = "
+                        + Long.parseLong(uri.getPathSegments().get(4));
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                count = db.delete(Tables.CERTS, selection, selectionArgs);
+                updateKeyRingSummary(db, Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -703,10 +810,25 @@ public class ApgProvider extends ContentProvider {
         try {
             final int match = mUriMatcher.match(uri);
             switch (match) {
+                case KEY_RING_PUBLIC: {
+                    if (values.size() != 1 || !values.containsKey(KeyRingData.KEY_RING_DATA)) {
+                        throw new UnsupportedOperationException(
+                                "Only key_ring_data column may be updated!");
+                    }
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRingData.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(Tables.KEY_RINGS_PUBLIC, values, actualSelection, selectionArgs);
+                    uri = KeyRings.buildGenericKeyRingUri(mkid.toString());
+                    break;
+                }
                 case KEY_RING_KEYS: {
-                    if (values.size() != 1 || !values.containsKey(Keys.HAS_SECRET)) {
+                    if (values.containsKey(Keys.MASTER_KEY_ID) || values.containsKey(Keys.RANK)) {
                         throw new UnsupportedOperationException(
-                                "Only has_secret column may be updated!");
+                                "master_key_id and rank columns may not be updated!");
                     }
                     // make sure we get a long value here
                     Long mkid = Long.parseLong(uri.getPathSegments().get(1));
@@ -715,6 +837,7 @@ public class ApgProvider extends ContentProvider {
                         actualSelection += " AND (" + selection + ")";
                     }
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
+                    updateKeyRingSummary(db, mkid);
                     break;
                 }
                 case API_APPS_BY_PACKAGE_NAME:
@@ -739,6 +862,60 @@ public class ApgProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in a single transaction. Updates of the keyring_summary table are
+     * deferred to the end of the batch, so each key ring is summarized only once.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        HashSet<Long> dirtySummaries = new HashSet<Long>();
+        mDirtySummaries.set(dirtySummaries);
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            for (long masterKeyId : dirtySummaries) {
+                ApgDatabase.updateKeyRingSummary(db, masterKeyId);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mDirtySummaries.remove();
+        }
+    }
+
+    /**
+     * Turns a search query into an fts MATCH expression requiring a prefix match for each word.
+     * Words are split the same way the simple tokenizer splits the user ids, and lower cased so
+     * they can't be mistaken for operators.
+     *
+     * @return the expression, or null if the query contains no words
+     */
+    private static String buildUserIdsMatchQuery(String query) {
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.US).split("[^a-z0-9\\u0080-\\uffff]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(word).append('*');
+        }
+        return matchQuery.length() > 0 ? matchQuery.toString() : null;
+    }
+
+    private void updateKeyRingSummary(SQLiteDatabase db, long masterKeyId) {
+        HashSet<Long> dirtySummaries = mDirtySummaries.get();
+        if (dirtySummaries != null) {
+            dirtySummaries.add(masterKeyId);
+        } else {
+            ApgDatabase.updateKeyRingSummary(db, masterKeyId);
+        }
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
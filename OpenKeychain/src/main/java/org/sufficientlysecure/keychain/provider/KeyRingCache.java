@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.util.Log;
+
+/**
+ * Process wide cache of parsed key rings, keyed by master key id.
+ *
+ * Entries are weighed by the length of their encoded blob. Since key rings may be changed from
+ * other processes (or directly through the ContentResolver, e.g. when deleting keys), the cache
+ * observes the key_rings uri and drops every entry whose master key id is reported as changed.
+ *
+ * Invalidation happens before a key ring is written and again once the write is done. A ring read
+ * from the database before an invalidation is not put into the cache afterwards (see
+ * getGeneration), so an outdated blob can't be cached again by a concurrent reader.
+ *
+ * Cached rings are shared between callers, so they must be treated as read-only. Their signatures
+ * are stateful once initialized, so init() and verification must be done while holding the lock
+ * of the signature object.
+ *
+ * Besides the rings, the encryption subkey chosen for each key ring is kept, so encrypting to
+ * many recipients doesn't need to look through their rings each time.
+ */
+public class KeyRingCache {
+    /** Maximum accumulated size of cached blobs, for public and secret rings each */
+    public static final int MAX_SIZE = 1024 * 1024;
+    /** Maximum number of cached encryption subkeys */
+    public static final int MAX_ENCRYPT_SUBKEYS = 1024;
+
+    private static KeyRingCache sInstance;
+
+    private final LruCache<Long, Entry> mPublicRings;
+    private final LruCache<Long, Entry> mSecretRings;
+    private final LruCache<Long, PGPPublicKey> mEncryptSubkeys =
+            new LruCache<Long, PGPPublicKey>(MAX_ENCRYPT_SUBKEYS);
+    // incremented by every invalidation, guarded by this
+    private long mGeneration = 0;
+
+    private static class Entry {
+        final Object keyRing;
+        final int size;
+
+        Entry(Object keyRing, int size) {
+            this.keyRing = keyRing;
+            this.size = size;
+        }
+    }
+
+    private static class SizedLruCache extends LruCache<Long, Entry> {
+        public SizedLruCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(Long masterKeyId, Entry entry) {
+            return entry.size;
+        }
+    }
+
+    private KeyRingCache(int maxSize) {
+        mPublicRings = new SizedLruCache(maxSize);
+        mSecretRings = new SizedLruCache(maxSize);
+    }
+
+    public static synchronized KeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyRingCache(MAX_SIZE);
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, sInstance.new InvalidationObserver());
+        }
+        return sInstance;
+    }
+
+    public PGPPublicKeyRing getPublicKeyRing(long masterKeyId) {
+        Entry entry = mPublicRings.get(masterKeyId);
+        return entry == null ? null : (PGPPublicKeyRing) entry.keyRing;
+    }
+
+    public PGPSecretKeyRing getSecretKeyRing(long masterKeyId) {
+        Entry entry = mSecretRings.get(masterKeyId);
+        return entry == null ? null : (PGPSecretKeyRing) entry.keyRing;
+    }
+
+    /**
+     * @return the value to pass to the put methods, to be taken before reading from the database
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @param size       length of the encoded key ring, used to weigh the entry
+     * @param generation see getGeneration, the ring is dropped if the cache was invalidated since
+     */
+    public synchronized void putPublicKeyRing(long masterKeyId, PGPPublicKeyRing keyRing, int size,
+                                              long generation) {
+        if (generation == mGeneration) {
+            mPublicRings.put(masterKeyId, new Entry(keyRing, size));
+        }
+    }
+
+    /**
+     * @param size       length of the encoded key ring, used to weigh the entry
+     * @param generation see getGeneration, the ring is dropped if the cache was invalidated since
+     */
+    public synchronized void putSecretKeyRing(long masterKeyId, PGPSecretKeyRing keyRing, int size,
+                                              long generation) {
+        if (generation == mGeneration) {
+            mSecretRings.put(masterKeyId, new Entry(keyRing, size));
+        }
+    }
+
+    /**
+     * @return the encryption subkey chosen for the key ring with the given master key id
+     */
+    public PGPPublicKey getEncryptSubkey(long masterKeyId) {
+        return mEncryptSubkeys.get(masterKeyId);
+    }
+
+    /**
+     * @param generation see getGeneration, taken before the key ring of the subkey was read
+     */
+    public synchronized void putEncryptSubkey(long masterKeyId, PGPPublicKey key,
+                                              long generation) {
+        if (generation == mGeneration) {
+            mEncryptSubkeys.put(masterKeyId, key);
+        }
+    }
+
+    public synchronized void invalidate(long masterKeyId) {
+        ++mGeneration;
+        mPublicRings.remove(masterKeyId);
+        mSecretRings.remove(masterKeyId);
+        mEncryptSubkeys.remove(masterKeyId);
+    }
+
+    public synchronized void invalidateAll() {
+        ++mGeneration;
+        mPublicRings.evictAll();
+        mSecretRings.evictAll();
+        mEncryptSubkeys.evictAll();
+    }
+
+    public int getHitCount() {
+        return mPublicRings.hitCount() + mSecretRings.hitCount();
+    }
+
+    public int getMissCount() {
+        return mPublicRings.missCount() + mSecretRings.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mPublicRings.evictionCount() + mSecretRings.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRingCache[public=" + mPublicRings + ", secret=" + mSecretRings + "]";
+    }
+
+    /**
+     * Changes are announced by ApgProvider on key_rings/<masterKeyId>, possibly followed by
+     * more path segments. Anything we can't attribute to a single key ring flushes everything.
+     */
+    private class InvalidationObserver extends ContentObserver {
+        public InvalidationObserver() {
+            // no handler, we are called directly on the binder thread
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateAll();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || uri.getPathSegments().size() < 2) {
+                invalidateAll();
+                return;
+            }
+            try {
+                invalidate(Long.parseLong(uri.getPathSegments().get(1)));
+            } catch (NumberFormatException e) {
+                Log.d(Constants.TAG, "Unknown key ring change " + uri + ", flushing KeyRingCache");
+                invalidateAll();
+            }
+        }
+    }
+}
@@ -30,6 +30,7 @@ import android.support.v4.util.LongSparseArray;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.S2K;
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPPublicKey;
@@ -38,10 +39,11 @@ import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
-import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.PgpCertificationVerifier;
 import org.thialfihar.android.apg.pgp.PgpConversionHelper;
 import org.thialfihar.android.apg.pgp.PgpHelper;
 import org.thialfihar.android.apg.pgp.PgpKeyHelper;
@@ -59,23 +61,38 @@ import org.thialfihar.android.apg.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.SignatureException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class ProviderHelper {
+    /**
+     * A save diffs against the stored state of a key ring and applies the difference later, so two
+     * saves of the same key ring must not interleave. Operations of ApgIntentService run
+     * concurrently, and all of them run in the main process, so saves are serialized here.
+     */
+    private static final Object sSaveLock = new Object();
+
     private Context mContext;
     private ContentResolver mContentResolver;
+    private KeyRingCache mKeyRingCache;
+    private SubkeyIndex mSubkeyIndex;
+    private VerifiedSignatureCache mVerifiedSignatureCache;
 
     public ProviderHelper(Context context) {
         this.mContext = context;
         this.mContentResolver = context.getContentResolver();
+        this.mKeyRingCache = KeyRingCache.getInstance(context);
+        this.mSubkeyIndex = SubkeyIndex.getInstance(context);
+        this.mVerifiedSignatureCache = new VerifiedSignatureCache(context);
     }
 
     public static class NotFoundException extends Exception {
@@ -173,6 +190,42 @@ public class ProviderHelper {
         }
     }
 
+    /**
+     * Find the master key id of the key ring containing the given (sub)key, using the in-memory
+     * SubkeyIndex instead of a find by subkey query.
+     */
+    public long getMasterKeyIdBySubkey(long keyId) throws NotFoundException {
+        long masterKeyId = mSubkeyIndex.getMasterKeyId(keyId);
+        if (masterKeyId == Constants.key.none) {
+            throw new NotFoundException("No key ring found for key " + keyId);
+        }
+        return masterKeyId;
+    }
+
+    /**
+     * @return true iff the secret part of the given (sub)key is available
+     */
+    public boolean hasSecretSubkey(long keyId) {
+        return mSubkeyIndex.hasSecret(keyId);
+    }
+
+    /**
+     * @return for every given (sub)key id, the master key id of its key ring if the secret part
+     * of the key is available, Constants.key.none otherwise
+     */
+    public long[] getSecretMasterKeyIds(long[] keyIds) {
+        return mSubkeyIndex.getSecretMasterKeyIds(keyIds);
+    }
+
+    /**
+     * @return how the secret part of keyId is protected, one of Keys.PROTECTION_*. For a master
+     * key id without secret part, that of the first secret key of its key ring. See
+     * SubkeyIndex.getSecretProtection
+     */
+    public int getSecretProtection(long keyId) {
+        return mSubkeyIndex.getSecretProtection(keyId);
+    }
+
     public LongSparseArray<PGPKeyRing> getPGPKeyRings(Uri queryUri) {
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DATA},
@@ -207,32 +260,167 @@ public class ProviderHelper {
 
     public PGPPublicKeyRing getPGPPublicKeyRingWithKeyId(long keyId)
             throws NotFoundException {
-        Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId));
-        long masterKeyId = getMasterKeyId(uri);
-        return getPGPPublicKeyRing(masterKeyId);
+        return getPGPPublicKeyRing(getMasterKeyIdBySubkey(keyId));
     }
 
     public PGPSecretKeyRing getPGPSecretKeyRingWithKeyId(long keyId)
             throws NotFoundException {
-        Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId));
-        long masterKeyId = getMasterKeyId(uri);
-        return getPGPSecretKeyRing(masterKeyId);
+        return getPGPSecretKeyRing(getMasterKeyIdBySubkey(keyId));
     }
 
     /**
-     * Retrieves the actual PGPPublicKeyRing object from the database blob based on the masterKeyId
+     * Retrieves the actual PGPPublicKeyRing object from the database blob based on the masterKeyId,
+     * the parsed object is served from the KeyRingCache where possible
      */
     public PGPPublicKeyRing getPGPPublicKeyRing(long masterKeyId) throws NotFoundException {
+        PGPPublicKeyRing keyRing = mKeyRingCache.getPublicKeyRing(masterKeyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        long generation = mKeyRingCache.getGeneration();
         Uri queryUri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(queryUri);
+        byte[] data = getKeyRingData(queryUri);
+        keyRing = (PGPPublicKeyRing) PgpConversionHelper.BytesToPGPKeyRing(data);
+        if (keyRing == null) {
+            throw new NotFoundException("PGPKeyRing object not found!");
+        }
+        mKeyRingCache.putPublicKeyRing(masterKeyId, keyRing, data.length, generation);
+        return keyRing;
     }
 
     /**
-     * Retrieves the actual PGPSecretKeyRing object from the database blob based on the maserKeyId
+     * Retrieves the actual PGPSecretKeyRing object from the database blob based on the maserKeyId,
+     * the parsed object is served from the KeyRingCache where possible
      */
     public PGPSecretKeyRing getPGPSecretKeyRing(long masterKeyId) throws NotFoundException {
+        PGPSecretKeyRing keyRing = mKeyRingCache.getSecretKeyRing(masterKeyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        long generation = mKeyRingCache.getGeneration();
         Uri queryUri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(queryUri);
+        byte[] data = getKeyRingData(queryUri);
+        keyRing = (PGPSecretKeyRing) PgpConversionHelper.BytesToPGPKeyRing(data);
+        if (keyRing == null) {
+            throw new NotFoundException("PGPKeyRing object not found!");
+        }
+        mKeyRingCache.putSecretKeyRing(masterKeyId, keyRing, data.length, generation);
+        return keyRing;
+    }
+
+    /**
+     * Retrieves the PGPPublicKeyRing objects of several key rings, those not in the KeyRingCache
+     * are loaded with one query
+     *
+     * @return key rings by master key id, unknown ids are left out
+     */
+    public LongSparseArray<PGPPublicKeyRing> getPGPPublicKeyRings(long[] masterKeyIds) {
+        LongSparseArray<PGPPublicKeyRing> result =
+                new LongSparseArray<PGPPublicKeyRing>(masterKeyIds.length);
+        ArrayList<String> missing = new ArrayList<String>();
+        for (long masterKeyId : masterKeyIds) {
+            PGPPublicKeyRing keyRing = mKeyRingCache.getPublicKeyRing(masterKeyId);
+            if (keyRing != null) {
+                result.put(masterKeyId, keyRing);
+            } else {
+                missing.add(Long.toString(masterKeyId));
+            }
+        }
+
+        long generation = mKeyRingCache.getGeneration();
+        // sqlite allows at most 999 host parameters per statement
+        for (int start = 0; start < missing.size(); start += 500) {
+            List<String> args = missing.subList(start, Math.min(missing.size(), start + 500));
+            StringBuilder selection = new StringBuilder(KeyRingData.MASTER_KEY_ID + " IN (");
+            for (int i = 0; i < args.size(); ++i) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(")");
+
+            Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                    new String[]{KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DATA},
+                    selection.toString(), args.toArray(new String[args.size()]), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    long masterKeyId = cursor.getLong(0);
+                    byte[] data = cursor.getBlob(1);
+                    if (data == null) {
+                        continue;
+                    }
+                    PGPPublicKeyRing keyRing =
+                            (PGPPublicKeyRing) PgpConversionHelper.BytesToPGPKeyRing(data);
+                    if (keyRing != null) {
+                        mKeyRingCache.putPublicKeyRing(masterKeyId, keyRing, data.length,
+                                generation);
+                        result.put(masterKeyId, keyRing);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Resolves the keys to encrypt to for several recipients at once, the choice for each key
+     * ring is cached in the KeyRingCache until the ring changes
+     *
+     * @return usable encryption subkeys by master key id, recipients without one are left out
+     */
+    public LongSparseArray<PGPPublicKey> getEncryptSubkeys(long[] masterKeyIds) {
+        LongSparseArray<PGPPublicKey> result =
+                new LongSparseArray<PGPPublicKey>(masterKeyIds.length);
+        ArrayList<Long> missing = new ArrayList<Long>();
+        for (long masterKeyId : masterKeyIds) {
+            PGPPublicKey key = mKeyRingCache.getEncryptSubkey(masterKeyId);
+            // the chosen key may have expired since
+            if (key != null && !PgpKeyHelper.isExpired(key)) {
+                result.put(masterKeyId, key);
+            } else {
+                missing.add(masterKeyId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        long generation = mKeyRingCache.getGeneration();
+        LongSparseArray<PGPPublicKeyRing> keyRings = getPGPPublicKeyRings(toLongArray(missing));
+        for (int i = 0; i < keyRings.size(); ++i) {
+            PGPPublicKey key = PgpKeyHelper.getFirstEncryptSubkey(keyRings.valueAt(i));
+            if (key != null) {
+                mKeyRingCache.putEncryptSubkey(keyRings.keyAt(i), key, generation);
+                result.put(keyRings.keyAt(i), key);
+            }
+        }
+        return result;
+    }
+
+    private byte[] getKeyRingData(Uri queryUri) throws NotFoundException {
+        byte[] data = (byte[]) getGenericData(queryUri, KeyRingData.KEY_RING_DATA, FIELD_TYPE_BLOB);
+        if (data == null) {
+            throw new NotFoundException("PGPKeyRing object not found!");
+        }
+        return data;
+    }
+
+    public KeyRingCache getKeyRingCache() {
+        return mKeyRingCache;
+    }
+
+    public VerifiedSignatureCache getVerifiedSignatureCache() {
+        return mVerifiedSignatureCache;
+    }
+
+    public Context getContext() {
+        return mContext;
     }
 
     @SuppressWarnings("unchecked")
@@ -247,10 +435,8 @@ public class ProviderHelper {
     /**
      * Saves PGPPublicKeyRing with its keys and userIds in DB
      */
-    @SuppressWarnings("unchecked")
     public void saveKeyRing(PGPPublicKeyRing keyRing) throws IOException {
-        PGPPublicKey masterKey = keyRing.getPublicKey();
-        long masterKeyId = masterKey.getKeyID();
+        long masterKeyId = keyRing.getPublicKey().getKeyID();
 
         // IF there is a secret key, preserve it!
         PGPSecretKeyRing secretRing = null;
@@ -260,39 +446,80 @@ public class ProviderHelper {
             Log.e(Constants.TAG, "key not found!");
         }
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-        try {
-            mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)), null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
-        }
+        saveKeyRing(keyRing, secretRing, false);
+    }
 
-        // insert new version of this keyRing
-        ContentValues values = new ContentValues();
-        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
-        Uri uri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        mContentResolver.insert(uri, values);
+    /**
+     * Saves (or updates) a public key ring and the has_secret state derived from secretRing in
+     * a single transaction.
+     *
+     * @param secretRing     the secret key ring belonging to keyRing, may be null
+     * @param saveSecretRing whether secretRing itself has to be written, too
+     */
+    private void saveKeyRing(PGPPublicKeyRing keyRing, PGPSecretKeyRing secretRing,
+                             boolean saveSecretRing) throws IOException {
+        List<VerifiedKeyRing> keyRings = new ArrayList<VerifiedKeyRing>();
+        keyRings.add(verifyKeyRing(keyRing, secretRing, saveSecretRing,
+                createCertificationVerifier()));
+        saveKeyRings(keyRings);
+    }
 
-        // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    /**
+     * A key ring whose user ids have been classified and whose certifications have been
+     * verified, ready to be written by saveKeyRings.
+     */
+    public static class VerifiedKeyRing {
+        private final PGPPublicKeyRing mPublicRing;
+        private final PGPSecretKeyRing mSecretRing;
+        private final boolean mSaveSecretRing;
+        private final PgpCertificationVerifier mVerifier;
+        private final List<UserIdItem> mUserIds;
+        // set by buildSaveOperations, see getSecretProtections
+        private Map<Long, Integer> mSecretProtections;
+
+        private VerifiedKeyRing(PGPPublicKeyRing publicRing, PGPSecretKeyRing secretRing,
+                                boolean saveSecretRing, PgpCertificationVerifier verifier,
+                                List<UserIdItem> userIds) {
+            mPublicRing = publicRing;
+            mSecretRing = secretRing;
+            mSaveSecretRing = saveSecretRing;
+            mVerifier = verifier;
+            mUserIds = userIds;
+        }
 
-        int rank = 0;
-        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(masterKeyId, key, rank));
-            ++rank;
+        public long getMasterKeyId() {
+            return mPublicRing.getPublicKey().getKeyID();
         }
+    }
 
-        // get a list of owned secret keys, for verification filtering
-        LongSparseArray<PGPKeyRing> allKeyRings = getPGPKeyRings(KeyRingData.buildSecretKeyRingUri());
-        // special case: available secret keys verify themselves!
-        if (secretRing != null)
-            allKeyRings.put(secretRing.getSecretKey().getKeyID(), secretRing);
+    /**
+     * @return a verifier for saving key rings, which considers certifications by all key rings
+     * we currently have a secret key ring for as trusted
+     */
+    public PgpCertificationVerifier createCertificationVerifier() {
+        return new PgpCertificationVerifier(getPGPKeyRings(KeyRingData.buildSecretKeyRingUri()),
+                mVerifiedSignatureCache);
+    }
 
-        // classify and order user ids. primary are moved to the front, revoked to the back,
-        // otherwise the order in the keyfile is preserved.
-        List<UserIdItem> uids = new ArrayList<UserIdItem>();
+    /**
+     * Classifies the user ids of keyRing and verifies their certifications. This does not
+     * touch the database, so it may be called for several key rings in parallel.
+     *
+     * @param secretRing     the secret key ring belonging to keyRing, may be null
+     * @param saveSecretRing whether secretRing itself has to be written by saveKeyRings, too
+     * @param verifier       see createCertificationVerifier
+     */
+    @SuppressWarnings("unchecked")
+    public VerifiedKeyRing verifyKeyRing(PGPPublicKeyRing keyRing, PGPSecretKeyRing secretRing,
+                                         boolean saveSecretRing,
+                                         PgpCertificationVerifier verifier) {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
 
+        // collect all certifications worth checking first, so they can be checked in parallel
+        List<UserIdItem> uids = new ArrayList<UserIdItem>();
+        List<PgpCertificationVerifier.Check> checks = new ArrayList<PgpCertificationVerifier.Check>();
+        List<UserIdItem> checkUids = new ArrayList<UserIdItem>();
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
             UserIdItem item = new UserIdItem();
             uids.add(item);
@@ -302,59 +529,171 @@ public class ProviderHelper {
             for (PGPSignature cert : new IterableIterator<PGPSignature>(
                     masterKey.getSignaturesForID(userId))) {
                 long certId = cert.getKeyID();
-                try {
+                PGPPublicKey signer;
+                if (certId == masterKeyId) {
                     // self signature
-                    if (certId == masterKeyId) {
-                        cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
-                                Constants.BOUNCY_CASTLE_PROVIDER_NAME), masterKey);
-                        if (!cert.verifyCertification(userId, masterKey)) {
-                            // not verified?! dang! TODO notify user? this is kinda serious...
-                            Log.e(Constants.TAG, "Could not verify self signature for " + userId + "!");
-                            continue;
-                        }
-                        // is this the first, or a more recent certificate?
-                        if (item.selfCert == null ||
-                                item.selfCert.getCreationTime().before(cert.getCreationTime())) {
-                            item.selfCert = cert;
-                            item.isPrimary = cert.getHashedSubPackets().isPrimaryUserID();
-                            item.isRevoked =
-                                    cert.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION;
-                        }
-                    }
-                    // verify signatures from known private keys
-                    if (allKeyRings.indexOfKey(certId) >= 0) {
-                        // mark them as verified
-                        cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
-                                Constants.BOUNCY_CASTLE_PROVIDER_NAME),
-                                allKeyRings.get(certId).getPublicKey());
-                        if (cert.verifyCertification(userId, masterKey)) {
-                            item.trustedCerts.add(cert);
-                        }
-                    }
-                } catch (SignatureException e) {
-                    Log.e(Constants.TAG, "Signature verification failed! "
-                            + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
-                            + " from "
-                            + PgpKeyHelper.convertKeyIdToHex(cert.getKeyID()), e);
-                } catch (PGPException e) {
-                    Log.e(Constants.TAG, "Signature verification failed! "
-                            + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
-                            + " from "
-                            + PgpKeyHelper.convertKeyIdToHex(cert.getKeyID()), e);
+                    signer = masterKey;
+                } else {
+                    // signatures from known private keys
+                    signer = verifier.getOwnedKey(certId);
+                }
+                if (signer != null) {
+                    checks.add(new PgpCertificationVerifier.Check(userId, cert, signer));
+                    checkUids.add(item);
                 }
             }
         }
 
+        boolean[] verified = verifier.verify(masterKey, checks);
+
+        // classify user ids, in the order of their certifications
+        for (int i = 0; i < checks.size(); ++i) {
+            UserIdItem item = checkUids.get(i);
+            PGPSignature cert = checks.get(i).cert;
+            if (!verified[i]) {
+                if (cert.getKeyID() == masterKeyId) {
+                    // not verified?! dang! TODO notify user? this is kinda serious...
+                    Log.e(Constants.TAG, "Could not verify self signature for " + item.userId + "!");
+                }
+                continue;
+            }
+            if (cert.getKeyID() == masterKeyId) {
+                // is this the first, or a more recent certificate?
+                if (item.selfCert == null ||
+                        item.selfCert.getCreationTime().before(cert.getCreationTime())) {
+                    item.selfCert = cert;
+                    item.isPrimary = cert.getHashedSubPackets().isPrimaryUserID();
+                    item.isRevoked =
+                            cert.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION;
+                }
+                // special case: available secret keys verify themselves!
+                if (secretRing == null && verifier.getOwnedKey(masterKeyId) == null) {
+                    continue;
+                }
+            }
+            // mark them as verified
+            item.trustedCerts.add(cert);
+        }
+
         // primary before regular before revoked (see UserIdItem.compareTo)
         // this is a stable sort, so the order of keys is otherwise preserved.
         Collections.sort(uids);
-        // iterate and put into db
+
+        return new VerifiedKeyRing(keyRing, secretRing, saveSecretRing, verifier, uids);
+    }
+
+    /**
+     * Saves (or updates) verified key rings in as few transactions as possible, usually one.
+     * The stored state is diffed against each key ring, so only keys, user ids and certs which
+     * actually changed are written.
+     *
+     * @return false if writing to the database failed
+     */
+    public boolean saveKeyRings(List<VerifiedKeyRing> keyRings) throws IOException {
+        synchronized (sSaveLock) {
+            return saveKeyRingsLocked(keyRings);
+        }
+    }
+
+    private boolean saveKeyRingsLocked(List<VerifiedKeyRing> keyRings) throws IOException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<VerifiedKeyRing> pending = new ArrayList<VerifiedKeyRing>();
+        Set<Long> pendingMasterKeyIds = new HashSet<Long>();
+        boolean success = true;
+
+        for (VerifiedKeyRing keyRing : keyRings) {
+            // operations are diffed against the stored state, so they can't be built on top
+            // of pending operations for the same key ring
+            if (!pendingMasterKeyIds.add(keyRing.getMasterKeyId())) {
+                success &= applyBatch(operations, pending);
+                operations.clear();
+                pending.clear();
+                pendingMasterKeyIds.clear();
+                pendingMasterKeyIds.add(keyRing.getMasterKeyId());
+            }
+            pending.add(buildSaveOperations(operations, keyRing));
+        }
+        success &= applyBatch(operations, pending);
+
+        return success;
+    }
+
+    /**
+     * Adds the operations saving keyRing to operations.
+     *
+     * @return the key ring as it is going to be saved
+     */
+    private VerifiedKeyRing buildSaveOperations(ArrayList<ContentProviderOperation> operations,
+                                                VerifiedKeyRing keyRing) throws IOException {
+        PGPPublicKeyRing publicRing = keyRing.mPublicRing;
+        PGPPublicKey masterKey = publicRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+        String masterKeyIdString = Long.toString(masterKeyId);
+
+        mKeyRingCache.invalidate(masterKeyId);
+
+        if (!keyRing.mSaveSecretRing) {
+            // the secret key ring may have been saved since keyRing was verified
+            PGPSecretKeyRing secretRing = null;
+            try {
+                secretRing = getPGPSecretKeyRing(masterKeyId);
+            } catch (NotFoundException e) {
+                // no secret key ring
+            }
+            if ((secretRing == null) != (keyRing.mSecretRing == null)) {
+                keyRing = verifyKeyRing(publicRing, secretRing, false, keyRing.mVerifier);
+            }
+        }
+
+        // update the blob in place, so keys, user ids and certs are not deleted on cascade
+        Uri publicUri = KeyRingData.buildPublicKeyRingUri(masterKeyIdString);
+        byte[] encoded = publicRing.getEncoded();
+        byte[] storedEncoded = null;
+        try {
+            storedEncoded = getKeyRingData(publicUri);
+        } catch (NotFoundException e) {
+            // new key ring
+        }
+        if (storedEncoded == null) {
+            ContentValues values = new ContentValues();
+            values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+            values.put(KeyRingData.KEY_RING_DATA, encoded);
+            operations.add(ContentProviderOperation.newInsert(publicUri).withValues(values).build());
+        } else if (!Arrays.equals(encoded, storedEncoded)) {
+            operations.add(ContentProviderOperation.newUpdate(publicUri)
+                    .withValue(KeyRingData.KEY_RING_DATA, encoded).build());
+        }
+
+        // keys, including whether we have their secret part and how it is protected
+        Set<Long> secretKeyIds = getAvailableSecretKeyIds(keyRing.mSecretRing);
+        keyRing.mSecretProtections = getSecretProtections(keyRing.mSecretRing);
+        List<ContentValues> keys = new ArrayList<ContentValues>();
+        int rank = 0;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(publicRing.getPublicKeys())) {
+            keys.add(buildPublicKeyValues(masterKeyId, key, rank,
+                    secretKeyIds.contains(key.getKeyID()),
+                    keyRing.mSecretProtections.get(key.getKeyID())));
+            ++rank;
+        }
+        if (storedEncoded == null) {
+            for (ContentValues values : keys) {
+                operations.add(ContentProviderOperation.newInsert(
+                        Keys.buildKeysUri(masterKeyIdString)).withValues(values).build());
+            }
+        } else {
+            buildKeysDiffOperations(operations, masterKeyId, keys);
+        }
+
+        List<UserIdItem> uids = keyRing.mUserIds;
+        List<ContentValues> userIds = new ArrayList<ContentValues>();
+        // certs by rank and certifier, a later cert replaces an earlier one (as in the db)
+        Map<String, ContentValues> certs = new LinkedHashMap<String, ContentValues>();
         for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
             UserIdItem item = uids.get(userIdRank);
-            operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+            userIds.add(buildUserIdValues(masterKeyId, item, userIdRank));
             // no self cert is bad, but allowed by the rfc...
             if (item.selfCert != null) {
-                operations.add(buildCertOperations(
+                putCertValues(certs, buildCertValues(
                         masterKeyId, userIdRank, item.selfCert, Certs.VERIFIED_SELF));
             }
             // don't bother with trusted certs if the uid is revoked, anyways
@@ -362,24 +701,64 @@ public class ProviderHelper {
                 continue;
             }
             for (int i = 0; i < item.trustedCerts.size(); i++) {
-                operations.add(buildCertOperations(
+                putCertValues(certs, buildCertValues(
                         masterKeyId, userIdRank, item.trustedCerts.get(i), Certs.VERIFIED_SECRET));
             }
         }
 
-        try {
-            mContentResolver.applyBatch(ApgContract.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
+        Uri userIdsUri = UserIds.buildUserIdsUri(masterKeyIdString);
+        Uri certsUri = Certs.buildCertsUri(masterKeyIdString);
+        if (storedEncoded == null || !isUpToDate(userIdsUri, USER_IDS_PROJECTION, UserIds.RANK, userIds)) {
+            // user ids changed, which means their ranks may have changed as well. replace all of
+            // them, this deletes their certs on cascade
+            if (storedEncoded != null) {
+                operations.add(ContentProviderOperation.newDelete(userIdsUri).build());
+            }
+            for (ContentValues values : userIds) {
+                operations.add(ContentProviderOperation.newInsert(userIdsUri).withValues(values).build());
+            }
+            for (ContentValues values : certs.values()) {
+                operations.add(ContentProviderOperation.newInsert(certsUri).withValues(values).build());
+            }
+        } else {
+            buildCertsDiffOperations(operations, masterKeyId, certs);
+        }
+
+        if (keyRing.mSaveSecretRing && keyRing.mSecretRing != null) {
+            operations.add(buildSecretKeyRingOperation(masterKeyId, keyRing.mSecretRing));
         }
 
-        // Save the saved keyring (if any)
-        if (secretRing != null) {
-            saveKeyRing(secretRing);
+        return keyRing;
+    }
+
+    /**
+     * Applies the operations saving keyRings, and updates the SubkeyIndex accordingly
+     */
+    @SuppressWarnings("unchecked")
+    private boolean applyBatch(ArrayList<ContentProviderOperation> operations,
+                               List<VerifiedKeyRing> keyRings) {
+        if (!applyBatch(operations)) {
+            return false;
         }
 
+        for (VerifiedKeyRing keyRing : keyRings) {
+            long masterKeyId = keyRing.getMasterKeyId();
+            List<Long> keyIds = new ArrayList<Long>();
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                    keyRing.mPublicRing.getPublicKeys())) {
+                keyIds.add(key.getKeyID());
+            }
+            // readers may have cached the old ring while the batch was being written
+            mKeyRingCache.invalidate(masterKeyId);
+            mSubkeyIndex.putKeyRing(masterKeyId, toLongArray(keyIds));
+            setSecretKeyIds(masterKeyId, getAvailableSecretKeyIds(keyRing.mSecretRing),
+                    keyRing.mSecretProtections);
+            // certifications by this key ring are trusted from now on
+            if (keyRing.mSaveSecretRing && keyRing.mSecretRing != null) {
+                keyRing.mVerifier.addOwnedKeyRing(keyRing.mSecretRing);
+            }
+        }
+        return true;
     }
 
     private static class UserIdItem implements Comparable<UserIdItem> {
@@ -408,62 +787,334 @@ public class ProviderHelper {
      * is already in the database!
      */
     public void saveKeyRing(PGPSecretKeyRing keyRing) throws IOException {
+        synchronized (sSaveLock) {
+            saveSecretKeyRingLocked(keyRing);
+        }
+    }
+
+    private void saveSecretKeyRingLocked(PGPSecretKeyRing keyRing) throws IOException {
         long masterKeyId = keyRing.getPublicKey().getKeyID();
 
-        {
-            Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
+        mKeyRingCache.invalidate(masterKeyId);
 
-            // first, mark all keys as not available
-            ContentValues values = new ContentValues();
-            values.put(Keys.HAS_SECRET, 0);
-            mContentResolver.update(uri, values, null, null);
-
-            values.put(Keys.HAS_SECRET, 1);
-            // then, mark exactly the keys we have available
-            for (PGPSecretKey sub : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
-                S2K s2k = sub.getS2K();
-                // Set to 1, except if the encryption type is GNU_DUMMY_S2K
-                if(s2k == null || s2k.getType() != S2K.GNU_DUMMY_S2K) {
-                    mContentResolver.update(uri, values, Keys.KEY_ID + " = ?", new String[]{
-                            Long.toString(sub.getKeyID())
-                    });
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+        // mark exactly the keys we have available, this implicitly leaves all keys which
+        // are not in the secret key ring with has_secret = 0
+        Set<Long> secretKeyIds = getAvailableSecretKeyIds(keyRing);
+        Map<Long, Integer> protections = getSecretProtections(keyRing);
+        Uri keysUri = Keys.buildKeysUri(Long.toString(masterKeyId));
+        Cursor cursor = mContentResolver.query(keysUri,
+                new String[]{Keys.KEY_ID, Keys.HAS_SECRET, Keys.SECRET_PROTECTION},
+                null, null, null);
+        try {
+            if (cursor != null) while (cursor.moveToNext()) {
+                long keyId = cursor.getLong(0);
+                boolean hasSecret = secretKeyIds.contains(keyId);
+                Integer protection = protections.get(keyId);
+                if (cursor.isNull(1) || (cursor.getInt(1) != 0) != hasSecret
+                        || cursor.isNull(2) != (protection == null)
+                        || (protection != null && cursor.getInt(2) != protection)) {
+                    operations.add(ContentProviderOperation.newUpdate(keysUri)
+                            .withValue(Keys.HAS_SECRET, hasSecret ? 1 : 0)
+                            .withValue(Keys.SECRET_PROTECTION, protection)
+                            .withSelection(Keys.KEY_ID + " = ?", new String[]{Long.toString(keyId)})
+                            .build());
                 }
             }
-            // this implicitly leaves all keys which were not in the secret key ring
-            // with has_secret = 0
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
 
         // save secret keyring
-        {
-            ContentValues values = new ContentValues();
-            values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-            values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
-            // insert new version of this keyRing
-            Uri uri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
-            mContentResolver.insert(uri, values);
-        }
+        operations.add(buildSecretKeyRingOperation(masterKeyId, keyRing));
+
+        applyBatch(operations);
 
+        // readers may have cached the old ring while the batch was being written
+        mKeyRingCache.invalidate(masterKeyId);
+        setSecretKeyIds(masterKeyId, secretKeyIds, protections);
     }
 
     /**
      * Saves (or updates) a pair of public and secret KeyRings in the database
      */
     public void saveKeyRing(PGPPublicKeyRing pubRing, PGPSecretKeyRing privRing) throws IOException {
-        long masterKeyId = pubRing.getPublicKey().getKeyID();
+        saveKeyRing(pubRing, privRing, true);
+    }
+
+    private boolean applyBatch(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return true;
+        }
+        try {
+            mContentResolver.applyBatch(ApgContract.CONTENT_AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        }
+        return false;
+    }
+
+    /**
+     * @return ids of all keys of secretRing whose secret part is available, i.e. which are not
+     * GNU_DUMMY_S2K stubs. Empty if secretRing is null.
+     */
+    private static Set<Long> getAvailableSecretKeyIds(PGPSecretKeyRing secretRing) {
+        Set<Long> result = new HashSet<Long>();
+        if (secretRing == null) {
+            return result;
+        }
+        for (PGPSecretKey sub : new IterableIterator<PGPSecretKey>(secretRing.getSecretKeys())) {
+            S2K s2k = sub.getS2K();
+            if (s2k == null || s2k.getType() != S2K.GNU_DUMMY_S2K) {
+                result.add(sub.getKeyID());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the protection of every key of secretRing, see getSecretProtection. Empty if
+     * secretRing is null.
+     */
+    private static Map<Long, Integer> getSecretProtections(PGPSecretKeyRing secretRing) {
+        Map<Long, Integer> result = new HashMap<Long, Integer>();
+        if (secretRing == null) {
+            return result;
+        }
+        for (PGPSecretKey sub : new IterableIterator<PGPSecretKey>(secretRing.getSecretKeys())) {
+            result.put(sub.getKeyID(), getSecretProtection(sub));
+        }
+        return result;
+    }
+
+    /**
+     * Determines how the secret part of key is protected, one of Keys.PROTECTION_*. Keys
+     * without passphrase are usually encrypted with an empty one, so this tries to unlock the
+     * key, which is why it is only done when the key is saved.
+     */
+    static int getSecretProtection(PGPSecretKey key) {
+        S2K s2k = key.getS2K();
+        if (s2k != null && s2k.getType() == S2K.GNU_DUMMY_S2K) {
+            return s2k.getProtectionMode() == S2K.GNU_PROTECTION_MODE_DIVERT_TO_CARD
+                    ? Keys.PROTECTION_DIVERT_TO_CARD : Keys.PROTECTION_NO_PRIVATE_KEY;
+        }
+        if (key.getKeyEncryptionAlgorithm() == SymmetricKeyAlgorithmTags.NULL) {
+            return Keys.PROTECTION_NONE;
+        }
+        try {
+            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
+            return key.extractPrivateKey(keyDecryptor) != null
+                    ? Keys.PROTECTION_NONE : Keys.PROTECTION_PASSPHRASE;
+        } catch (PGPException e) {
+            // the checksum didn't match, so it needs a passphrase
+            return Keys.PROTECTION_PASSPHRASE;
+        }
+    }
 
-        // delete secret keyring (so it isn't unnecessarily saved by public-saveKeyRing below)
-        mContentResolver.delete(KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId)), null, null);
+    private void setSecretKeyIds(long masterKeyId, Set<Long> secretKeyIds,
+                                 Map<Long, Integer> protections) {
+        long[] keyIds = toLongArray(secretKeyIds);
+        int[] keyProtections = new int[keyIds.length];
+        for (int i = 0; i < keyIds.length; ++i) {
+            Integer protection = protections.get(keyIds[i]);
+            keyProtections[i] = protection != null ? protection : Keys.PROTECTION_UNKNOWN;
+        }
+        mSubkeyIndex.setSecretKeyIds(masterKeyId, keyIds, keyProtections);
+    }
 
-        // save public keyring
-        saveKeyRing(pubRing);
-        saveKeyRing(privRing);
+    private static long[] toLongArray(Collection<Long> collection) {
+        long[] result = new long[collection.size()];
+        int i = 0;
+        for (long value : collection) {
+            result[i++] = value;
+        }
+        return result;
     }
 
+    private static final String[] KEYS_PROJECTION = new String[]{
+            Keys.MASTER_KEY_ID, Keys.RANK, Keys.KEY_ID, Keys.KEY_SIZE, Keys.ALGORITHM,
+            Keys.FINGERPRINT, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, Keys.IS_REVOKED,
+            Keys.HAS_SECRET, Keys.SECRET_PROTECTION, Keys.CREATION, Keys.EXPIRY
+    };
+
+    private static final String[] USER_IDS_PROJECTION = new String[]{
+            UserIds.MASTER_KEY_ID, UserIds.USER_ID, UserIds.EMAIL, UserIds.IS_PRIMARY,
+            UserIds.IS_REVOKED, UserIds.RANK
+    };
+
+    private static final String[] CERTS_PROJECTION = new String[]{
+            Certs.MASTER_KEY_ID, Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.TYPE, Certs.CREATION,
+            Certs.VERIFIED, Certs.DATA
+    };
+
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Adds operations updating, inserting or deleting exactly those stored keys which differ
+     * from the given ones. keys must be ordered by rank, starting at 0.
      */
+    private void buildKeysDiffOperations(ArrayList<ContentProviderOperation> operations,
+                                         long masterKeyId, List<ContentValues> keys) {
+        Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
+        boolean[] stored = new boolean[keys.size()];
+
+        Cursor cursor = mContentResolver.query(uri, KEYS_PROJECTION, null, null, null);
+        try {
+            if (cursor != null) while (cursor.moveToNext()) {
+                int rank = cursor.getInt(cursor.getColumnIndex(Keys.RANK));
+                String[] selectionArgs = new String[]{Integer.toString(rank)};
+                if (rank >= keys.size()) {
+                    operations.add(ContentProviderOperation.newDelete(uri)
+                            .withSelection(Keys.RANK + " = ?", selectionArgs).build());
+                    continue;
+                }
+                stored[rank] = true;
+                ContentValues values = keys.get(rank);
+                if (!isUpToDate(values, cursor)) {
+                    values = new ContentValues(values);
+                    values.remove(Keys.MASTER_KEY_ID);
+                    values.remove(Keys.RANK);
+                    operations.add(ContentProviderOperation.newUpdate(uri).withValues(values)
+                            .withSelection(Keys.RANK + " = ?", selectionArgs).build());
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (int rank = 0; rank < keys.size(); ++rank) {
+            if (!stored[rank]) {
+                operations.add(ContentProviderOperation.newInsert(uri)
+                        .withValues(keys.get(rank)).build());
+            }
+        }
+    }
+
+    /**
+     * Adds operations replacing or deleting exactly those stored certs which differ from the
+     * given ones, which are keyed by getCertKey.
+     */
+    private void buildCertsDiffOperations(ArrayList<ContentProviderOperation> operations,
+                                          long masterKeyId, Map<String, ContentValues> certs) {
+        String masterKeyIdString = Long.toString(masterKeyId);
+        Uri uri = Certs.buildCertsUri(masterKeyIdString);
+        Set<String> stored = new HashSet<String>();
+
+        Cursor cursor = mContentResolver.query(uri, CERTS_PROJECTION, null, null, null);
+        try {
+            if (cursor != null) while (cursor.moveToNext()) {
+                String rank = cursor.getString(cursor.getColumnIndex(Certs.RANK));
+                String certifier = cursor.getString(cursor.getColumnIndex(Certs.KEY_ID_CERTIFIER));
+                String key = rank + "/" + certifier;
+                ContentValues values = certs.get(key);
+                if (values == null) {
+                    operations.add(ContentProviderOperation.newDelete(
+                            Certs.buildCertsSpecificUri(masterKeyIdString, rank, certifier)).build());
+                } else if (isUpToDate(values, cursor)) {
+                    stored.add(key);
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (Map.Entry<String, ContentValues> entry : certs.entrySet()) {
+            // inserting replaces an outdated cert
+            if (!stored.contains(entry.getKey())) {
+                operations.add(ContentProviderOperation.newInsert(uri)
+                        .withValues(entry.getValue()).build());
+            }
+        }
+    }
+
+    private static void putCertValues(Map<String, ContentValues> certs, ContentValues values) {
+        certs.put(values.getAsString(Certs.RANK) + "/" + values.getAsString(Certs.KEY_ID_CERTIFIER),
+                values);
+    }
+
+    /**
+     * @return true iff the rows stored at uri are exactly the given ones, ordered by orderColumn
+     */
+    private boolean isUpToDate(Uri uri, String[] projection, String orderColumn,
+                               List<ContentValues> rows) {
+        Cursor cursor = mContentResolver.query(uri, projection, null, null, orderColumn + " ASC");
+        try {
+            if (cursor == null || cursor.getCount() != rows.size()) {
+                return false;
+            }
+            for (ContentValues values : rows) {
+                if (!cursor.moveToNext() || !isUpToDate(values, cursor)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return true iff all given values equal the ones in the current row of the cursor
+     */
+    private static boolean isUpToDate(ContentValues values, Cursor cursor) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = cursor.getColumnIndex(entry.getKey());
+            if (index < 0) {
+                return false;
+            }
+            Object value = entry.getValue();
+            if (value == null) {
+                if (!cursor.isNull(index)) {
+                    return false;
+                }
+            } else if (cursor.isNull(index)) {
+                return false;
+            } else if (value instanceof Boolean) {
+                if ((cursor.getInt(index) != 0) != (Boolean) value) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                if (cursor.getLong(index) != ((Number) value).longValue()) {
+                    return false;
+                }
+            } else if (value instanceof byte[]) {
+                if (!Arrays.equals(cursor.getBlob(index), (byte[]) value)) {
+                    return false;
+                }
+            } else if (!value.toString().equals(cursor.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private ContentProviderOperation
-    buildPublicKeyOperations(long masterKeyId, PGPPublicKey key, int rank) throws IOException {
+    buildSecretKeyRingOperation(long masterKeyId, PGPSecretKeyRing keyRing) throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+        // inserting replaces the previous version of this keyRing
+        Uri uri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
+        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    }
+
+    /**
+     * Build ContentValues to add PGPPublicKey to database corresponding to a keyRing
+     */
+    private ContentValues
+    buildPublicKeyValues(long masterKeyId, PGPPublicKey key, int rank, boolean hasSecret,
+                         Integer secretProtection) {
 
         ContentValues values = new ContentValues();
         values.put(Keys.MASTER_KEY_ID, masterKeyId);
@@ -478,23 +1129,25 @@ public class ProviderHelper {
         values.put(Keys.CAN_SIGN, (PgpKeyHelper.isSigningKey(key)));
         values.put(Keys.CAN_ENCRYPT, PgpKeyHelper.isEncryptionKey(key));
         values.put(Keys.IS_REVOKED, key.isRevoked());
+        values.put(Keys.HAS_SECRET, hasSecret);
+        values.put(Keys.SECRET_PROTECTION, secretProtection);
 
         values.put(Keys.CREATION, PgpKeyHelper.getCreationDate(key).getTime() / 1000);
         Date expiryDate = PgpKeyHelper.getExpiryDate(key);
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+        } else {
+            values.putNull(Keys.EXPIRY);
         }
 
-        Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentValues to add a certification to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, PGPSignature cert, int verified) throws IOException {
+    private ContentValues
+    buildCertValues(long masterKeyId, int rank, PGPSignature cert, int verified) throws IOException {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
         values.put(Certs.RANK, rank);
@@ -504,26 +1157,23 @@ public class ProviderHelper {
         values.put(Certs.VERIFIED, verified);
         values.put(Certs.DATA, cert.getEncoded());
 
-        Uri uri = Certs.buildCertsUri(Long.toString(masterKeyId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
+     * Build ContentValues to add PublicUserIds to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserIdItem item, int rank) {
+    private ContentValues
+    buildUserIdValues(long masterKeyId, UserIdItem item, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserIds.MASTER_KEY_ID, masterKeyId);
         values.put(UserIds.USER_ID, item.userId);
+        values.put(UserIds.EMAIL, PgpKeyHelper.getEmail(item.userId));
         values.put(UserIds.IS_PRIMARY, item.isPrimary);
         values.put(UserIds.IS_REVOKED, item.isRevoked);
         values.put(UserIds.RANK, rank);
 
-        Uri uri = UserIds.buildUserIdsUri(Long.toString(masterKeyId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     private String getKeyRingAsArmoredString(byte[] data) throws IOException {
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.provider.ApgContract.Keys;
+import org.thialfihar.android.apg.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Process wide in-memory index from every (sub)key id in the keys table to its master key id,
+ * together with the has_secret flag and the secret_protection of that key.
+ *
+ * The index is loaded lazily with a single query on first use and kept up to date by
+ * ProviderHelper.saveKeyRing. Changes made by other processes are noticed through a
+ * ContentObserver: the affected key rings are marked stale and reloaded on the next lookup, or
+ * the whole index is dropped if too many of them piled up.
+ */
+public class SubkeyIndex {
+    /** Above this number of stale key rings, a full reload is cheaper than reloading each one */
+    private static final int MAX_STALE_KEY_RINGS = 32;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final byte FLAG_USED = 1;
+    private static final byte FLAG_HAS_SECRET = 2;
+    // secret_protection + 1 is kept in the bits above, 0 if unknown
+    private static final int PROTECTION_SHIFT = 2;
+
+    private static SubkeyIndex sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    private boolean mLoaded = false;
+    private final Set<Long> mStaleMasterKeyIds = new HashSet<Long>();
+
+    // open addressing hash map (linear probing) from key id to master key id and flags
+    private long[] mKeyIds;
+    private long[] mMasterKeyIds;
+    private byte[] mFlags;
+    private int mSize;
+
+    // key ids of each key ring, needed to remove a key ring from the map above
+    private final LongSparseArray<long[]> mKeyRingKeyIds = new LongSparseArray<long[]>();
+
+    // use getInstance, only tests need an index of their own
+    SubkeyIndex(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        clear(INITIAL_CAPACITY);
+    }
+
+    public static synchronized SubkeyIndex getInstance(Context context) {
+        if (sInstance == null) {
+            ContentResolver resolver = context.getApplicationContext().getContentResolver();
+            sInstance = new SubkeyIndex(resolver);
+            resolver.registerContentObserver(KeyRings.CONTENT_URI, true,
+                    sInstance.new InvalidationObserver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the master key id of the key ring containing keyId, or Constants.key.none
+     */
+    public synchronized long getMasterKeyId(long keyId) {
+        ensureFresh();
+        int slot = findSlot(keyId);
+        return mFlags[slot] == 0 ? Constants.key.none : mMasterKeyIds[slot];
+    }
+
+    /**
+     * Looks up many key ids at once, e.g. all recipients of a message
+     *
+     * @return for every key id, the master key id of its key ring if the secret part of the key
+     * is available, Constants.key.none otherwise
+     */
+    public synchronized long[] getSecretMasterKeyIds(long[] keyIds) {
+        ensureFresh();
+        long[] result = new long[keyIds.length];
+        for (int i = 0; i < keyIds.length; ++i) {
+            int slot = findSlot(keyIds[i]);
+            result[i] = (mFlags[slot] & FLAG_HAS_SECRET) != 0
+                    ? mMasterKeyIds[slot] : Constants.key.none;
+        }
+        return result;
+    }
+
+    /**
+     * @return true iff keyId is known and its secret part is available (i.e. not a stub)
+     */
+    public synchronized boolean hasSecret(long keyId) {
+        ensureFresh();
+        return (mFlags[findSlot(keyId)] & FLAG_HAS_SECRET) != 0;
+    }
+
+    /**
+     * @return the secret_protection of keyId if its secret part is available. For a master key
+     * id whose secret part isn't (e.g. a stub), that of the first key of its key ring whose
+     * secret part is available. Keys.PROTECTION_UNKNOWN if there is none or it wasn't stored
+     */
+    public synchronized int getSecretProtection(long keyId) {
+        ensureFresh();
+        int slot = findSlot(keyId);
+        int flags = mFlags[slot];
+        if ((flags & FLAG_HAS_SECRET) != 0) {
+            return (flags >> PROTECTION_SHIFT) - 1;
+        }
+        long masterKeyId = mMasterKeyIds[slot];
+        if (flags == 0 || masterKeyId != keyId) {
+            return Keys.PROTECTION_UNKNOWN;
+        }
+        long[] keyIds = mKeyRingKeyIds.get(masterKeyId);
+        if (keyIds == null) {
+            return Keys.PROTECTION_UNKNOWN;
+        }
+        for (long id : keyIds) {
+            slot = findSlot(id);
+            flags = mFlags[slot];
+            if ((flags & FLAG_HAS_SECRET) != 0 && mMasterKeyIds[slot] == masterKeyId) {
+                return (flags >> PROTECTION_SHIFT) - 1;
+            }
+        }
+        return Keys.PROTECTION_UNKNOWN;
+    }
+
+    /**
+     * Replaces all entries of a key ring, all keys are marked as having no secret part.
+     */
+    public synchronized void putKeyRing(long masterKeyId, long[] keyIds) {
+        if (!mLoaded) {
+            // will be picked up by the full load anyway
+            return;
+        }
+        removeKeyRingInternal(masterKeyId);
+        for (long keyId : keyIds) {
+            putInternal(keyId, masterKeyId, false, Keys.PROTECTION_UNKNOWN);
+        }
+        mKeyRingKeyIds.put(masterKeyId, keyIds);
+        mStaleMasterKeyIds.remove(masterKeyId);
+    }
+
+    /**
+     * Marks exactly the given keys of a key ring as having their secret part available.
+     *
+     * @param protections the secret_protection of each of secretKeyIds
+     */
+    public synchronized void setSecretKeyIds(long masterKeyId, long[] secretKeyIds,
+                                             int[] protections) {
+        if (!mLoaded) {
+            return;
+        }
+        long[] keyIds = mKeyRingKeyIds.get(masterKeyId);
+        if (keyIds == null) {
+            return;
+        }
+        for (long keyId : keyIds) {
+            int slot = findSlot(keyId);
+            if (mFlags[slot] != 0 && mMasterKeyIds[slot] == masterKeyId) {
+                mFlags[slot] = FLAG_USED;
+            }
+        }
+        for (int i = 0; i < secretKeyIds.length; ++i) {
+            int slot = findSlot(secretKeyIds[i]);
+            if (mFlags[slot] != 0 && mMasterKeyIds[slot] == masterKeyId) {
+                mFlags[slot] = getFlags(true, protections[i]);
+            }
+        }
+    }
+
+    public synchronized void removeKeyRing(long masterKeyId) {
+        removeKeyRingInternal(masterKeyId);
+    }
+
+    public synchronized void invalidate(long masterKeyId) {
+        if (!mLoaded) {
+            return;
+        }
+        mStaleMasterKeyIds.add(masterKeyId);
+        if (mStaleMasterKeyIds.size() > MAX_STALE_KEY_RINGS) {
+            invalidateAll();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mLoaded = false;
+        mStaleMasterKeyIds.clear();
+        mKeyRingKeyIds.clear();
+        clear(INITIAL_CAPACITY);
+    }
+
+    public synchronized int size() {
+        ensureFresh();
+        return mSize;
+    }
+
+    private void ensureFresh() {
+        if (!mLoaded) {
+            load(Keys.buildKeysUri());
+            mLoaded = true;
+        } else if (!mStaleMasterKeyIds.isEmpty()) {
+            for (long masterKeyId : mStaleMasterKeyIds) {
+                removeKeyRingInternal(masterKeyId);
+                load(Keys.buildKeysUri(Long.toString(masterKeyId)));
+            }
+            mStaleMasterKeyIds.clear();
+        }
+    }
+
+    private void load(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, new String[]{
+                Keys.MASTER_KEY_ID, Keys.KEY_ID, Keys.HAS_SECRET, Keys.SECRET_PROTECTION
+        }, null, null, Keys.MASTER_KEY_ID + " ASC, " + Keys.RANK + " ASC");
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            long currentMasterKeyId = 0;
+            long[] keyIds = new long[4];
+            int count = 0;
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                long keyId = cursor.getLong(1);
+                if (count > 0 && masterKeyId != currentMasterKeyId) {
+                    mKeyRingKeyIds.put(currentMasterKeyId, copyOf(keyIds, count));
+                    count = 0;
+                }
+                currentMasterKeyId = masterKeyId;
+                if (count == keyIds.length) {
+                    keyIds = copyOf(keyIds, count * 2);
+                }
+                keyIds[count++] = keyId;
+                putInternal(keyId, masterKeyId, cursor.getInt(2) != 0,
+                        cursor.isNull(3) ? Keys.PROTECTION_UNKNOWN : cursor.getInt(3));
+            }
+            if (count > 0) {
+                mKeyRingKeyIds.put(currentMasterKeyId, copyOf(keyIds, count));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.d(Constants.TAG, "SubkeyIndex loaded " + uri + ", " + mSize + " keys indexed");
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] result = new long[length];
+        System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+        return result;
+    }
+
+    private void clear(int capacity) {
+        mKeyIds = new long[capacity];
+        mMasterKeyIds = new long[capacity];
+        mFlags = new byte[capacity];
+        mSize = 0;
+    }
+
+    private static int hash(long keyId) {
+        // key ids are random enough already, just fold the upper half in
+        return (int) (keyId ^ (keyId >>> 32)) & 0x7fffffff;
+    }
+
+    /**
+     * @return the slot containing keyId, or the empty slot it would have to be put into
+     */
+    private int findSlot(long keyId) {
+        int mask = mKeyIds.length - 1;
+        int slot = hash(keyId) & mask;
+        while (mFlags[slot] != 0 && mKeyIds[slot] != keyId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static byte getFlags(boolean hasSecret, int protection) {
+        return (byte) (FLAG_USED | (hasSecret ? FLAG_HAS_SECRET : 0)
+                | ((protection + 1) << PROTECTION_SHIFT));
+    }
+
+    private void putInternal(long keyId, long masterKeyId, boolean hasSecret, int protection) {
+        // keep the load factor below 1/2
+        if ((mSize + 1) * 2 > mKeyIds.length) {
+            long[] keyIds = mKeyIds;
+            long[] masterKeyIds = mMasterKeyIds;
+            byte[] flags = mFlags;
+            clear(keyIds.length * 2);
+            for (int i = 0; i < keyIds.length; ++i) {
+                if (flags[i] != 0) {
+                    int slot = findSlot(keyIds[i]);
+                    mKeyIds[slot] = keyIds[i];
+                    mMasterKeyIds[slot] = masterKeyIds[i];
+                    mFlags[slot] = flags[i];
+                    ++mSize;
+                }
+            }
+        }
+
+        int slot = findSlot(keyId);
+        if (mFlags[slot] == 0) {
+            ++mSize;
+        }
+        mKeyIds[slot] = keyId;
+        mMasterKeyIds[slot] = masterKeyId;
+        mFlags[slot] = getFlags(hasSecret, protection);
+    }
+
+    private void removeInternal(long keyId) {
+        int mask = mKeyIds.length - 1;
+        int slot = findSlot(keyId);
+        if (mFlags[slot] == 0) {
+            return;
+        }
+        mFlags[slot] = 0;
+        --mSize;
+
+        // shift back following entries of the same cluster, so lookups don't stop early
+        int next = (slot + 1) & mask;
+        while (mFlags[next] != 0) {
+            int ideal = hash(mKeyIds[next]) & mask;
+            // move the entry if its ideal slot is not in the (cyclic) range (slot, next]
+            if ((next > slot && (ideal <= slot || ideal > next))
+                    || (next < slot && (ideal <= slot && ideal > next))) {
+                mKeyIds[slot] = mKeyIds[next];
+                mMasterKeyIds[slot] = mMasterKeyIds[next];
+                mFlags[slot] = mFlags[next];
+                mFlags[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void removeKeyRingInternal(long masterKeyId) {
+        long[] keyIds = mKeyRingKeyIds.get(masterKeyId);
+        if (keyIds == null) {
+            return;
+        }
+        for (long keyId : keyIds) {
+            int slot = findSlot(keyId);
+            // a key id might (in theory) be shared with another key ring
+            if (mFlags[slot] != 0 && mMasterKeyIds[slot] == masterKeyId) {
+                removeInternal(keyId);
+            }
+        }
+        mKeyRingKeyIds.remove(masterKeyId);
+    }
+
+    /**
+     * Changes are announced by ApgProvider on key_rings/<masterKeyId>, possibly followed by
+     * more path segments. Anything we can't attribute to a single key ring drops the index.
+     */
+    private class InvalidationObserver extends ContentObserver {
+        public InvalidationObserver() {
+            // no handler, we are called directly on the binder thread
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateAll();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || uri.getPathSegments().size() < 2) {
+                invalidateAll();
+                return;
+            }
+            try {
+                invalidate(Long.parseLong(uri.getPathSegments().get(1)));
+            } catch (NumberFormatException e) {
+                invalidateAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.util.encoders.Hex;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.ApgContract.VerifiedSignatures;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Persistent cache of signature verification outcomes, backed by the verified_signatures table.
+ *
+ * Entries are keyed by a digest over the signature packet and the data it signs (user id and
+ * key, or primary key and subkey), plus the fingerprint of the issuing key. A changed issuing
+ * key thus never matches an old entry; entries are removed along with the issuer's key ring.
+ *
+ * Lookups and puts are meant to be batched: get takes many digests at once, put only queues
+ * and flush writes everything queued in one transaction.
+ */
+public class VerifiedSignatureCache {
+    // sqlite allows at most 999 host parameters per statement
+    private static final int MAX_LOOKUP = 500;
+
+    private static final byte CONTEXT_CERTIFICATION = 1;
+    private static final byte CONTEXT_KEY_BINDING = 2;
+
+    private final ContentResolver mContentResolver;
+    private final ArrayList<ContentProviderOperation> mPending =
+            new ArrayList<ContentProviderOperation>();
+
+    public VerifiedSignatureCache(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * @return digest identifying a certification of userId on key, or null on error
+     */
+    public static String digestCertification(PGPSignature cert, String userId, PGPPublicKey key) {
+        try {
+            MessageDigest digest = newDigest(cert, CONTEXT_CERTIFICATION);
+            digest.update(key.getFingerprint());
+            digest.update(userId.getBytes("UTF-8"));
+            return new String(Hex.encode(digest.digest()));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not encode certification", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return digest identifying a (primary or sub) key binding signature, or null on error
+     */
+    public static String digestKeyBinding(PGPSignature sig, PGPPublicKey masterKey,
+                                          PGPPublicKey subKey) {
+        try {
+            MessageDigest digest = newDigest(sig, CONTEXT_KEY_BINDING);
+            digest.update(masterKey.getFingerprint());
+            digest.update(subKey.getFingerprint());
+            return new String(Hex.encode(digest.digest()));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not encode key binding signature", e);
+            return null;
+        }
+    }
+
+    private static MessageDigest newDigest(PGPSignature sig, byte context) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java implementation has to support SHA-256
+            throw new IOException("SHA-256 not available");
+        }
+        digest.update(context);
+        digest.update(sig.getEncoded());
+        return digest;
+    }
+
+    private static String getFingerprint(PGPPublicKey issuer) {
+        return new String(Hex.encode(issuer.getFingerprint()));
+    }
+
+    /**
+     * @return cached outcome of the verification, or null if unknown
+     */
+    public Boolean get(String digest, PGPPublicKey issuer) {
+        return get(new String[]{digest}, new PGPPublicKey[]{issuer})[0];
+    }
+
+    /**
+     * @param digests digests as returned by digestCertification or digestKeyBinding, entries
+     *                may be null
+     * @param issuers the keys which issued the signatures, by index
+     * @return cached outcomes by index, null where unknown
+     */
+    public Boolean[] get(String[] digests, PGPPublicKey[] issuers) {
+        Boolean[] result = new Boolean[digests.length];
+
+        for (int start = 0; start < digests.length; start += MAX_LOOKUP) {
+            int end = Math.min(digests.length, start + MAX_LOOKUP);
+
+            HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+            ArrayList<String> args = new ArrayList<String>();
+            for (int i = start; i < end; ++i) {
+                if (digests[i] != null) {
+                    indexes.put(digests[i] + "/" + getFingerprint(issuers[i]), i);
+                    args.add(digests[i]);
+                }
+            }
+            if (args.isEmpty()) {
+                continue;
+            }
+
+            StringBuilder selection = new StringBuilder(VerifiedSignatures.DIGEST + " IN (");
+            for (int i = 0; i < args.size(); ++i) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(")");
+
+            Cursor cursor = mContentResolver.query(VerifiedSignatures.CONTENT_URI, new String[]{
+                    VerifiedSignatures.DIGEST, VerifiedSignatures.ISSUER_FINGERPRINT,
+                    VerifiedSignatures.VALID
+            }, selection.toString(), args.toArray(new String[args.size()]), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    Integer index = indexes.get(cursor.getString(0) + "/" + cursor.getString(1));
+                    if (index != null) {
+                        result[index] = cursor.getInt(2) != 0;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Queues the outcome of a verification, to be written by flush
+     *
+     * @param issuerMasterKeyId master key id of the key ring containing issuer
+     */
+    public synchronized void put(String digest, PGPPublicKey issuer, long issuerMasterKeyId,
+                                 boolean valid) {
+        if (digest == null) {
+            return;
+        }
+        mPending.add(ContentProviderOperation.newInsert(VerifiedSignatures.CONTENT_URI)
+                .withValue(VerifiedSignatures.DIGEST, digest)
+                .withValue(VerifiedSignatures.ISSUER_FINGERPRINT, getFingerprint(issuer))
+                .withValue(VerifiedSignatures.ISSUER_MASTER_KEY_ID, issuerMasterKeyId)
+                .withValue(VerifiedSignatures.VALID, valid)
+                .build());
+    }
+
+    /**
+     * Writes all queued outcomes in one transaction
+     */
+    public synchronized void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(ApgContract.CONTENT_AUTHORITY, mPending);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Writing verified signatures failed!", e);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "Writing verified signatures failed!", e);
+        }
+        mPending.clear();
+    }
+}
@@ -46,7 +46,10 @@ import org.thialfihar.android.apg.ui.ImportKeysActivity;
 import org.thialfihar.android.apg.ui.ViewKeyActivity;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.PooledBufferedOutputStream;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -54,6 +57,26 @@ import java.util.Set;
 
 public class OpenPgpService extends RemoteService {
 
+    /*
+     * Batch encryption, not part of the OpenPGP API (yet). Takes the same extras as
+     * ACTION_SIGN_AND_ENCRYPT.
+     */
+    public static final String ACTION_ENCRYPT_BATCH = Constants.INTENT_PREFIX + "ENCRYPT_BATCH";
+    /* boolean, whether to sign the messages, true by default */
+    public static final String EXTRA_BATCH_SIGN = "batch_sign";
+    /* long[], recipients of the messages in the output, in order */
+    public static final String RESULT_BATCH_KEY_IDS = "batch_key_ids";
+    /* long[], lengths of the messages in the output, in order */
+    public static final String RESULT_BATCH_LENGTHS = "batch_lengths";
+    /* long[], recipients without a usable encryption key, they got no message */
+    public static final String RESULT_BATCH_SKIPPED_KEY_IDS = "batch_skipped_key_ids";
+
+    /*
+     * long, optional number of bytes the client is going to write to the input, only used for
+     * the progress. The input is a pipe, so without it, the length is unknown.
+     */
+    public static final String EXTRA_INPUT_LENGTH = "input_length";
+
     /**
      * Search database for key ids based on emails.
      *
@@ -148,6 +171,14 @@ public class OpenPgpService extends RemoteService {
         return result;
     }
 
+    /**
+     * The input is a pipe, its length is only known if the client passed EXTRA_INPUT_LENGTH.
+     * Either way, it is not trusted to be exact.
+     */
+    private static InputData getInputData(Intent data, InputStream is) {
+        return new InputData(is, data.getLongExtra(EXTRA_INPUT_LENGTH, InputData.UNKNOWN_SIZE));
+    }
+
     private Intent signImpl(Intent data, ParcelFileDescriptor input,
                             ParcelFileDescriptor output, AccountSettings accSettings) {
         try {
@@ -168,10 +199,10 @@ public class OpenPgpService extends RemoteService {
 
             // Get Input- and OutputStream from ParcelFileDescriptor
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            OutputStream os = new PooledBufferedOutputStream(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
             try {
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
+                InputData inputData = getInputData(data, is);
 
                 // sign-only
                 PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
@@ -215,36 +246,48 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Resolves the recipients given by EXTRA_KEY_IDS or EXTRA_USER_IDS.
+     *
+     * @return on success, an Intent with RESULT_KEY_IDS, otherwise the result to return to the
+     * client
+     */
+    private Intent getEncryptionKeyIds(Intent data) {
+        if (data.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_KEY_IDS,
+                    data.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } else if (data.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
+            // get key ids based on given user ids
+            String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
+            // give params through to activity...
+            return getKeyIdsFromEmails(data, userIds);
+        } else {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR,
+                    new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                            "Missing parameter user_ids or key_ids!")
+            );
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
+    }
+
     private Intent encryptAndSignImpl(Intent data, ParcelFileDescriptor input,
                                       ParcelFileDescriptor output, AccountSettings accSettings,
                                       boolean sign) {
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
-            long[] keyIds;
-            if (data.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
-                keyIds = data.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS);
-            } else if (data.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
-                // get key ids based on given user ids
-                String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
-                // give params through to activity...
-                Intent result = getKeyIdsFromEmails(data, userIds);
-
-                if (result.getIntExtra(OpenPgpApi.RESULT_CODE, 0) == OpenPgpApi.RESULT_CODE_SUCCESS) {
-                    keyIds = result.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
-                } else {
-                    // if not success -> result contains a PendingIntent for user interaction
-                    return result;
-                }
-            } else {
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_ERROR,
-                        new OpenPgpError(OpenPgpError.GENERIC_ERROR,
-                                "Missing parameter user_ids or key_ids!")
-                );
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
-                return result;
+            Intent keyIdsResult = getEncryptionKeyIds(data);
+            if (keyIdsResult.getIntExtra(OpenPgpApi.RESULT_CODE, 0)
+                    != OpenPgpApi.RESULT_CODE_SUCCESS) {
+                // error, or a PendingIntent for user interaction
+                return keyIdsResult;
             }
+            long[] keyIds = keyIdsResult.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
 
             // add own key for encryption
             keyIds = Arrays.copyOf(keyIds, keyIds.length + 1);
@@ -253,10 +296,10 @@ public class OpenPgpService extends RemoteService {
             // build InputData and write into OutputStream
             // Get Input- and OutputStream from ParcelFileDescriptor
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            OutputStream os = new PooledBufferedOutputStream(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
             try {
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
+                InputData inputData = getInputData(data, is);
 
                 PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
                         new ProviderHelper(getContext()),
@@ -320,19 +363,147 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Encrypts the input separately for every recipient, signed and compressed only once. The
+     * messages are written to the output one after the other, RESULT_BATCH_LENGTHS tells where
+     * one ends and the next one starts. Unlike ACTION_ENCRYPT, the account's own key isn't added
+     * to the recipients.
+     */
+    private Intent encryptBatchImpl(Intent data, ParcelFileDescriptor input,
+                                    ParcelFileDescriptor output, AccountSettings accSettings) {
+        try {
+            boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
+            boolean sign = data.getBooleanExtra(EXTRA_BATCH_SIGN, true);
+
+            Intent keyIdsResult = getEncryptionKeyIds(data);
+            if (keyIdsResult.getIntExtra(OpenPgpApi.RESULT_CODE, 0)
+                    != OpenPgpApi.RESULT_CODE_SUCCESS) {
+                // error, or a PendingIntent for user interaction
+                return keyIdsResult;
+            }
+            long[] keyIds = keyIdsResult.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
+
+            final ArrayList<Long> writtenKeyIds = new ArrayList<Long>();
+            final ArrayList<Long> lengths = new ArrayList<Long>();
+            long[] skipped;
+
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
+            final OutputStream os = new PooledBufferedOutputStream(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
+            try {
+                InputData inputData = getInputData(data, is);
+
+                PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
+                        new ProviderHelper(getContext()),
+                        PgpHelper.getFullVersion(getContext()),
+                        inputData, null);
+                builder.setEnableAsciiArmorOutput(asciiArmor)
+                        .setCompressionId(accSettings.getCompression())
+                        .setSymmetricEncryptionAlgorithm(accSettings.getEncryptionAlgorithm())
+                        .setEncryptionMasterKeyIds(keyIds);
+
+                if (sign) {
+                    String passphrase;
+                    if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+                        passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+                    } else {
+                        passphrase = PassphraseCacheService.getCachedPassphrase(getContext(),
+                                accSettings.getKeyId());
+                    }
+                    if (passphrase == null) {
+                        // get PendingIntent for passphrase input, add it to given params and return to client
+                        return getPassphraseBundleIntent(data, accSettings.getKeyId());
+                    }
+
+                    builder.setSignatureHashAlgorithm(accSettings.getHashAlgorithm())
+                            .setSignatureForceV3(false)
+                            .setSignatureMasterKeyId(accSettings.getKeyId())
+                            .setSignaturePassphrase(passphrase);
+                } else {
+                    builder.setSignatureMasterKeyId(Constants.key.none);
+                }
+
+                try {
+                    skipped = builder.build().executeBatch(new PgpSignEncrypt.BatchOutput() {
+                        @Override
+                        public OutputStream open(int index, final long masterKeyId) {
+                            // all messages go to the same output, closing one only counts it
+                            return new FilterOutputStream(os) {
+                                private long mLength = 0;
+
+                                @Override
+                                public void write(int b) throws IOException {
+                                    out.write(b);
+                                    ++mLength;
+                                }
+
+                                @Override
+                                public void write(byte[] b, int off, int len)
+                                        throws IOException {
+                                    out.write(b, off, len);
+                                    mLength += len;
+                                }
+
+                                @Override
+                                public void close() {
+                                    writtenKeyIds.add(masterKeyId);
+                                    lengths.add(mLength);
+                                }
+                            };
+                        }
+                    });
+
+                    // throw exceptions upwards to client with meaningful messages
+                } catch (PgpSignEncrypt.KeyExtractionException e) {
+                    throw new Exception(getString(R.string.error_could_not_extract_private_key));
+                } catch (PgpSignEncrypt.NoPassphraseException e) {
+                    throw new Exception(getString(R.string.error_no_signature_passphrase));
+                } catch (PgpSignEncrypt.NoSigningKeyException e) {
+                    throw new Exception(getString(R.string.error_no_signature_key));
+                } catch (PgpSignEncrypt.BatchTooLargeException e) {
+                    throw new Exception(getString(R.string.error_batch_too_large,
+                            PgpSignEncrypt.MAX_BATCH_SIZE >> 20));
+                }
+            } finally {
+                is.close();
+                os.close();
+            }
+
+            long[] resultKeyIds = new long[writtenKeyIds.size()];
+            long[] resultLengths = new long[lengths.size()];
+            for (int i = 0; i < resultKeyIds.length; ++i) {
+                resultKeyIds[i] = writtenKeyIds.get(i);
+                resultLengths[i] = lengths.get(i);
+            }
+
+            Intent result = new Intent();
+            result.putExtra(RESULT_BATCH_KEY_IDS, resultKeyIds);
+            result.putExtra(RESULT_BATCH_LENGTHS, resultLengths);
+            result.putExtra(RESULT_BATCH_SKIPPED_KEY_IDS, skipped);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } catch (Exception e) {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR,
+                    new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
+    }
+
     private Intent decryptAndVerifyImpl(Intent data, ParcelFileDescriptor input,
                                         ParcelFileDescriptor output, Set<Long> allowedKeyIds) {
         try {
             // Get Input- and OutputStream from ParcelFileDescriptor
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            OutputStream os = new PooledBufferedOutputStream(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
 
             Intent result = new Intent();
             try {
 
                 String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
+                InputData inputData = getInputData(data, is);
 
                 PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
                         new ProviderHelper(this),
@@ -547,6 +718,8 @@ public class OpenPgpService extends RemoteService {
                 return encryptAndSignImpl(data, input, output, accSettings, false);
             } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
                 return encryptAndSignImpl(data, input, output, accSettings, true);
+            } else if (ACTION_ENCRYPT_BATCH.equals(action)) {
+                return encryptBatchImpl(data, input, output, accSettings);
             } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
                 String currentPkg = getCurrentCallingPackage();
                 Set<Long> allowedKeyIds =
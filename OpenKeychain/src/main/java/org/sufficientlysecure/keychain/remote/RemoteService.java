@@ -19,12 +19,15 @@ package org.thialfihar.android.apg.remote;
 
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
 
@@ -39,9 +42,16 @@ import org.thialfihar.android.apg.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Abstract service class for remote APIs that handle app registration and user input.
+ *
+ * What was found out about a calling uid (its packages, that it is allowed, its account
+ * settings) is cached, so a client doing many calls in a row doesn't cost PackageManager and
+ * provider queries each time. Only positive results are cached, a client that was just registered
+ * is picked up right away. The cache is flushed whenever a package is replaced or removed and
+ * whenever the api_apps uri, which includes the accounts, reports a change.
  */
 public abstract class RemoteService extends Service {
 
@@ -56,6 +66,37 @@ public abstract class RemoteService extends Service {
     Context mContext;
     ProviderHelper mProviderHelper;
 
+    private static class Caller {
+        final String[] packages;
+        volatile boolean allowed = false;
+        final ConcurrentHashMap<String, AccountSettings> accounts =
+                new ConcurrentHashMap<String, AccountSettings>();
+
+        Caller(String[] packages) {
+            this.packages = packages;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Caller> mCallers =
+            new ConcurrentHashMap<Integer, Caller>();
+
+    private final ContentObserver mApiAppsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.d(Constants.TAG, "API apps changed, flushing caller cache");
+            mCallers.clear();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(Constants.TAG, "Package changed: " + intent.getAction()
+                    + ", flushing caller cache");
+            mCallers.clear();
+        }
+    };
+
     public Context getContext() {
         return mContext;
     }
@@ -146,7 +187,7 @@ public abstract class RemoteService extends Service {
     protected String getCurrentCallingPackage() {
         // TODO:
         // callingPackages contains more than one entry when sharedUserId has been used...
-        String[] callingPackages = getPackageManager().getPackagesForUid(Binder.getCallingUid());
+        String[] callingPackages = getCaller(Binder.getCallingUid()).packages;
         String currentPkg = callingPackages[0];
         Log.d(Constants.TAG, "currentPkg: " + currentPkg);
 
@@ -159,16 +200,41 @@ public abstract class RemoteService extends Service {
      * @return
      */
     protected AccountSettings getAccSettings(String accountName) {
+        Caller caller = getCaller(Binder.getCallingUid());
+        AccountSettings settings = caller.accounts.get(accountName);
+        if (settings != null) {
+            return settings;
+        }
+
         String currentPkg = getCurrentCallingPackage();
         Log.d(Constants.TAG, "accountName: " + accountName);
 
         Uri uri = ApgContract.ApiAccounts.buildByPackageAndAccountUri(currentPkg, accountName);
 
-        AccountSettings settings = mProviderHelper.getApiAccountSettings(uri);
+        settings = mProviderHelper.getApiAccountSettings(uri);
+        // not cached if missing, the account is about to be created
+        if (settings != null) {
+            caller.accounts.put(accountName, settings);
+        }
 
         return settings; // can be null!
     }
 
+    /**
+     * @return the cached information about the uid, created if there is none yet
+     */
+    private Caller getCaller(int uid) {
+        Caller caller = mCallers.get(uid);
+        if (caller == null) {
+            caller = new Caller(getPackageManager().getPackagesForUid(uid));
+            Caller existing = mCallers.putIfAbsent(uid, caller);
+            if (existing != null) {
+                caller = existing;
+            }
+        }
+        return caller;
+    }
+
     protected Intent getCreateAccountIntent(Intent data, String accountName) {
         String packageName = getCurrentCallingPackage();
         Log.d(Constants.TAG, "accountName: " + accountName);
@@ -212,13 +278,18 @@ public abstract class RemoteService extends Service {
             return false;
         }
 
-        String[] callingPackages = getPackageManager().getPackagesForUid(uid);
+        Caller caller = getCaller(uid);
+        if (caller.allowed) {
+            return true;
+        }
+        String[] callingPackages = caller.packages;
 
         // is calling package allowed to use this service?
         for (int i = 0; i < callingPackages.length; i++) {
             String currentPkg = callingPackages[i];
 
             if (isPackageAllowed(currentPkg)) {
+                caller.allowed = true;
                 return true;
             }
         }
@@ -273,6 +344,22 @@ public abstract class RemoteService extends Service {
         super.onCreate();
         mContext = this;
         mProviderHelper = new ProviderHelper(this);
+
+        getContentResolver().registerContentObserver(ApgContract.ApiApps.CONTENT_URI, true,
+                mApiAppsObserver);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, filter);
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mPackageReceiver);
+        getContentResolver().unregisterContentObserver(mApiAppsObserver);
+        super.onDestroy();
     }
 
 }
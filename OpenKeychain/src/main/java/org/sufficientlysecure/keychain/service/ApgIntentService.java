@@ -17,11 +17,15 @@
 
 package org.thialfihar.android.apg.service;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
@@ -55,6 +59,8 @@ import org.thialfihar.android.apg.provider.ApgDatabase;
 import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.keyimport.ImportKeysListEntry;
 import org.thialfihar.android.apg.keyimport.HkpKeyserver;
+import org.thialfihar.android.apg.util.FileChannelInputStream;
+import org.thialfihar.android.apg.util.FileChannelOutputStream;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.keyimport.KeybaseKeyserver;
 import org.thialfihar.android.apg.util.Log;
@@ -64,9 +70,9 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -77,16 +83,25 @@ import java.util.List;
  * This Service contains all important long lasting operations for APG. It receives Intents with
  * data from the activities or other apps, queues these intents, executes them, and stops itself
  * after doing them.
+ *
+ * Operations run concurrently on an OperationScheduler, crypto, disk and network operations each
+ * on their own pool. The messenger of an intent identifies its operation, ACTION_CANCEL with the
+ * same messenger cancels it without affecting other operations.
  */
-public class ApgIntentService extends IntentService
+public class ApgIntentService extends Service
         implements Progressable, PgpImportExport.ApgServiceListener {
 
     /* extras that can be given by intent */
     public static final String EXTRA_MESSENGER = "messenger";
     public static final String EXTRA_DATA = "data";
+    // one of OperationScheduler.PRIORITY_*, defaults to PRIORITY_NORMAL
+    public static final String EXTRA_PRIORITY = "priority";
 
     /* possible actions */
     public static final String ACTION_ENCRYPT_SIGN = Constants.INTENT_PREFIX + "ENCRYPT_SIGN";
+    // TARGET_URI only, one output file per recipient
+    public static final String ACTION_ENCRYPT_SIGN_BATCH = Constants.INTENT_PREFIX
+            + "ENCRYPT_SIGN_BATCH";
 
     public static final String ACTION_DECRYPT_VERIFY = Constants.INTENT_PREFIX + "DECRYPT_VERIFY";
 
@@ -107,6 +122,8 @@ public class ApgIntentService extends IntentService
 
     public static final String ACTION_CERTIFY_KEYRING = Constants.INTENT_PREFIX + "SIGN_KEYRING";
 
+    public static final String ACTION_CANCEL = Constants.INTENT_PREFIX + "CANCEL";
+
     /* keys for data bundle */
 
     // encrypt, decrypt, import export
@@ -128,6 +145,8 @@ public class ApgIntentService extends IntentService
     // decrypt/verify
     public static final String DECRYPT_CIPHERTEXT_BYTES = "ciphertext_bytes";
     public static final String DECRYPT_PASSPHRASE = "passphrase";
+    // decrypt all consecutive messages in the input, their contents are written one after the other
+    public static final String DECRYPT_MULTI = "multi";
 
     // save keyring
     public static final String SAVE_KEYRING_PARCEL = "save_parcel";
@@ -145,6 +164,9 @@ public class ApgIntentService extends IntentService
 
     // import key
     public static final String IMPORT_KEY_LIST = "import_key_list";
+    // alternatively, the key rings to import from the key file given as data uri, as a bit set
+    // (long[]) of their positions, see PgpImportExport.importKeyRings
+    public static final String IMPORT_KEY_SELECTION = "import_key_selection";
 
     // export key
     public static final String EXPORT_OUTPUT_STREAM = "export_output_stream";
@@ -175,9 +197,17 @@ public class ApgIntentService extends IntentService
     // encrypt
     public static final String RESULT_BYTES = "encrypted_data";
 
+    // encrypt batch, one entry per message written, in the order of the encryption keys
+    public static final String RESULT_BATCH_KEY_IDS = "batch_key_ids";
+    public static final String RESULT_BATCH_FILES = "batch_files";
+    // encryption keys for which no message could be written
+    public static final String RESULT_BATCH_SKIPPED_KEY_IDS = "batch_skipped_key_ids";
+
     // decrypt/verify
     public static final String RESULT_DECRYPTED_BYTES = "decrypted_data";
     public static final String RESULT_DECRYPT_VERIFY_RESULT = "signature";
+    // for DECRYPT_MULTI, the results of all messages, RESULT_DECRYPT_VERIFY_RESULT is the last one
+    public static final String RESULT_DECRYPT_VERIFY_RESULTS = "signatures";
 
     // import
     public static final String RESULT_IMPORT_ADDED = "added";
@@ -187,27 +217,117 @@ public class ApgIntentService extends IntentService
     // export
     public static final String RESULT_EXPORT = "exported";
 
-    Messenger mMessenger;
+    private OperationScheduler mScheduler;
+    private Handler mHandler;
+    // only accessed on the main thread
+    private int mLastStartId;
+
+    /**
+     * Cancels the operation started with the given intent, by sending ACTION_CANCEL with its
+     * messenger. Other operations are not affected.
+     */
+    public static void cancel(Context context, Intent intent) {
+        Intent cancelIntent = new Intent(context, ApgIntentService.class);
+        cancelIntent.setAction(ACTION_CANCEL);
+        cancelIntent.putExtra(EXTRA_MESSENGER, intent.getParcelableExtra(EXTRA_MESSENGER));
+        context.startService(cancelIntent);
+    }
 
-    private boolean mIsCanceled;
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+        mScheduler = new OperationScheduler(new Runnable() {
+            @Override
+            public void run() {
+                // runs on a worker thread, onStartCommand may be scheduling a new operation
+                // right now, so decide on the main thread once it is done
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mScheduler.isIdle()) {
+                            // only stops the service if no intent came in after the last one
+                            stopSelf(mLastStartId);
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-    public ApgIntentService() {
-        super("ApgIntentService");
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (intent == null) {
+            return START_NOT_STICKY;
+        }
+
+        Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+        String action = intent.getAction();
+        if (ACTION_CANCEL.equals(action)) {
+            int canceled = mScheduler.cancel(messenger);
+            Log.d(Constants.TAG, "Canceled " + canceled + " operation(s)");
+            if (mScheduler.isIdle()) {
+                stopSelf(startId);
+            }
+            return START_NOT_STICKY;
+        }
+
+        int priority = intent.getIntExtra(EXTRA_PRIORITY, OperationScheduler.PRIORITY_NORMAL);
+        mScheduler.schedule(getPool(action), priority, messenger, new Runnable() {
+            @Override
+            public void run() {
+                onHandleIntent(intent);
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        this.mIsCanceled = true;
+        mHandler.removeCallbacksAndMessages(null);
+        mScheduler.cancelAll();
+        mScheduler.shutdown();
+    }
+
+    private static int getPool(String action) {
+        if (ACTION_DELETE_FILE_SECURELY.equals(action) || ACTION_IMPORT_KEYRING.equals(action)
+                || ACTION_EXPORT_KEYRING.equals(action)) {
+            return OperationScheduler.POOL_IO;
+        } else if (ACTION_UPLOAD_KEYRING.equals(action)
+                || ACTION_DOWNLOAD_AND_IMPORT_KEYS.equals(action)
+                || ACTION_IMPORT_KEYBASE_KEYS.equals(action)) {
+            return OperationScheduler.POOL_NETWORK;
+        }
+        return OperationScheduler.POOL_CPU;
     }
 
     /**
-     * The IntentService calls this method from the default worker thread with the intent that
-     * started the service. When this method returns, IntentService stops the service, as
-     * appropriate.
+     * @return the messenger of the operation run by the calling thread
      */
-    @Override
-    protected void onHandleIntent(Intent intent) {
+    private Messenger getMessenger() {
+        OperationScheduler.Operation operation = OperationScheduler.getCurrentOperation();
+        return operation != null ? (Messenger) operation.getTag() : null;
+    }
+
+    /**
+     * @return true if the operation run by the calling thread was canceled
+     */
+    private boolean isCanceled() {
+        OperationScheduler.Operation operation = OperationScheduler.getCurrentOperation();
+        return operation != null && operation.isCanceled();
+    }
+
+    /**
+     * Called by the scheduler on one of its threads with the intent that started the operation.
+     */
+    private void onHandleIntent(Intent intent) {
         Bundle extras = intent.getExtras();
         if (extras == null) {
             Log.e(Constants.TAG, "Extras bundle is null!");
@@ -223,7 +343,6 @@ public class ApgIntentService extends IntentService
 
         Uri dataUri = intent.getData();
 
-        mMessenger = (Messenger) extras.get(EXTRA_MESSENGER);
         Bundle data = extras.getBundle(EXTRA_DATA);
 
         OtherHelper.logDebugBundle(data, "EXTRA_DATA");
@@ -254,7 +373,7 @@ public class ApgIntentService extends IntentService
                         inStream = new ByteArrayInputStream(bytes);
                         inLength = bytes.length;
 
-                        inputData = new InputData(inStream, inLength);
+                        inputData = new InputData(inStream, inLength, true);
                         outStream = new ByteArrayOutputStream();
 
                         break;
@@ -269,12 +388,12 @@ public class ApgIntentService extends IntentService
                                     getString(R.string.error_external_storage_not_ready));
                         }
 
-                        inStream = new FileInputStream(inputFile);
                         File file = new File(inputFile);
+                        inStream = new FileChannelInputStream(file);
                         inLength = file.length();
-                        inputData = new InputData(inStream, inLength);
+                        inputData = new InputData(inStream, inLength, true);
 
-                        outStream = new FileOutputStream(outputFile);
+                        outStream = new FileChannelOutputStream(new File(outputFile));
 
                         break;
 
@@ -363,6 +482,84 @@ public class ApgIntentService extends IntentService
 
                 OtherHelper.logDebugBundle(resultData, "resultData");
 
+                sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (Exception e) {
+                sendErrorToHandler(e);
+            }
+        } else if (ACTION_ENCRYPT_SIGN_BATCH.equals(action)) {
+            try {
+                /* Input */
+                int target = data.getInt(TARGET);
+                if (target != TARGET_URI) {
+                    // all messages together would easily exceed what can be sent back through
+                    // the messenger in one transaction
+                    throw new PgpGeneralException("Batches can only be encrypted to files!");
+                }
+
+                long signatureKeyId = data.getLong(ENCRYPT_SIGNATURE_KEY_ID);
+                boolean useAsciiArmor = data.getBoolean(ENCRYPT_USE_ASCII_ARMOR);
+                long encryptionKeyIds[] = data.getLongArray(ENCRYPT_ENCRYPTION_KEYS_IDS);
+                int compressionId = data.getInt(ENCRYPT_COMPRESSION_ID);
+
+                String inputFile = data.getString(ENCRYPT_INPUT_FILE);
+                final String outputFile = data.getString(ENCRYPT_OUTPUT_FILE);
+
+                // check if storage is ready
+                if (!FileHelper.isStorageMounted(inputFile)
+                        || !FileHelper.isStorageMounted(outputFile)) {
+                    throw new PgpGeneralException(
+                            getString(R.string.error_external_storage_not_ready));
+                }
+
+                File input = new File(inputFile);
+                InputData inputData = new InputData(new FileChannelInputStream(input),
+                        input.length(), true);
+
+                /* Operation */
+                final List<Long> keyIds = new ArrayList<Long>();
+                final List<String> files = new ArrayList<String>();
+                long[] skipped = new PgpSignEncrypt.Builder(
+                        new ProviderHelper(this),
+                        PgpHelper.getFullVersion(this),
+                        inputData, null)
+                        .setProgressable(this)
+                        .setEnableAsciiArmorOutput(useAsciiArmor)
+                        .setCompressionId(compressionId)
+                        .setSymmetricEncryptionAlgorithm(
+                                Preferences.getPreferences(this).getDefaultEncryptionAlgorithm())
+                        .setSignatureForceV3(Preferences.getPreferences(this).getForceV3Signatures())
+                        .setEncryptionMasterKeyIds(encryptionKeyIds)
+                        .setSignatureMasterKeyId(signatureKeyId)
+                        .setSignatureHashAlgorithm(
+                                Preferences.getPreferences(this).getDefaultHashAlgorithm())
+                        .setSignaturePassphrase(
+                                PassphraseCacheService.getCachedPassphrase(this, signatureKeyId))
+                        .build().executeBatch(new PgpSignEncrypt.BatchOutput() {
+                            @Override
+                            public OutputStream open(int index, long masterKeyId)
+                                    throws IOException {
+                                keyIds.add(masterKeyId);
+                                String file = getBatchOutputFile(outputFile, masterKeyId);
+                                files.add(file);
+                                return new FileChannelOutputStream(new File(file));
+                            }
+                        });
+
+                /* Output */
+
+                Bundle resultData = new Bundle();
+
+                long[] resultKeyIds = new long[keyIds.size()];
+                for (int i = 0; i < resultKeyIds.length; ++i) {
+                    resultKeyIds[i] = keyIds.get(i);
+                }
+                resultData.putLongArray(RESULT_BATCH_KEY_IDS, resultKeyIds);
+                resultData.putLongArray(RESULT_BATCH_SKIPPED_KEY_IDS, skipped);
+                resultData.putStringArray(RESULT_BATCH_FILES,
+                        files.toArray(new String[files.size()]));
+
+                OtherHelper.logDebugBundle(resultData, "resultData");
+
                 sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
@@ -374,6 +571,7 @@ public class ApgIntentService extends IntentService
 
                 byte[] bytes = data.getByteArray(DECRYPT_CIPHERTEXT_BYTES);
                 String passphrase = data.getString(DECRYPT_PASSPHRASE);
+                boolean multi = data.getBoolean(DECRYPT_MULTI);
 
                 InputStream inStream;
                 long inLength;
@@ -385,7 +583,7 @@ public class ApgIntentService extends IntentService
                         inStream = new ByteArrayInputStream(bytes);
                         inLength = bytes.length;
 
-                        inputData = new InputData(inStream, inLength);
+                        inputData = new InputData(inStream, inLength, true);
                         outStream = new ByteArrayOutputStream();
 
                         break;
@@ -402,14 +600,13 @@ public class ApgIntentService extends IntentService
                         }
 
                         // InputStream
-                        inLength = -1;
-                        inStream = new FileInputStream(inputFile);
                         File file = new File(inputFile);
+                        inStream = new FileChannelInputStream(file);
                         inLength = file.length();
-                        inputData = new InputData(inStream, inLength);
+                        inputData = new InputData(inStream, inLength, true);
 
                         // OutputStream
-                        outStream = new FileOutputStream(outputFile);
+                        outStream = new FileChannelOutputStream(new File(outputFile));
 
                         break;
 
@@ -464,7 +661,35 @@ public class ApgIntentService extends IntentService
                 builder.setAllowSymmetricDecryption(true)
                         .setPassphrase(passphrase);
 
-                PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
+                PgpDecryptVerifyResult decryptVerifyResult;
+                if (multi) {
+                    final OutputStream multiOutStream = outStream;
+                    ArrayList<PgpDecryptVerifyResult> results =
+                            new ArrayList<PgpDecryptVerifyResult>(builder.build().executeMulti(
+                                    new PgpDecryptVerify.MessageSink() {
+                                        @Override
+                                        public OutputStream open(int index) {
+                                            // all messages go to the same output
+                                            return new FilterOutputStream(multiOutStream) {
+                                                @Override
+                                                public void write(byte[] b, int off, int len)
+                                                        throws IOException {
+                                                    out.write(b, off, len);
+                                                }
+
+                                                @Override
+                                                public void close() throws IOException {
+                                                    flush();
+                                                }
+                                            };
+                                        }
+                                    }));
+                    resultData.putParcelableArrayList(RESULT_DECRYPT_VERIFY_RESULTS, results);
+                    decryptVerifyResult = results.isEmpty()
+                            ? new PgpDecryptVerifyResult() : results.get(results.size() - 1);
+                } else {
+                    decryptVerifyResult = builder.build().execute();
+                }
 
                 outStream.close();
 
@@ -648,12 +873,28 @@ public class ApgIntentService extends IntentService
             }
         } else if (ACTION_IMPORT_KEYRING.equals(action)) {
             try {
-                List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
-
-                Bundle resultData = new Bundle();
+                Bundle resultData;
 
                 PgpImportExport pgpImportExport = new PgpImportExport(this, this);
-                resultData = pgpImportExport.importKeyRings(entries);
+                if (data.containsKey(IMPORT_KEY_SELECTION)) {
+                    long[] selection = data.getLongArray(IMPORT_KEY_SELECTION);
+
+                    AssetFileDescriptor fd = getContentResolver().openAssetFileDescriptor(
+                            dataUri, "r");
+                    long length = fd.getLength();
+                    InputStream inputStream = fd.createInputStream();
+                    try {
+                        InputData inputData = new InputData(inputStream,
+                                length == AssetFileDescriptor.UNKNOWN_LENGTH
+                                        ? InputData.UNKNOWN_SIZE : length);
+                        resultData = pgpImportExport.importKeyRings(inputData, selection);
+                    } finally {
+                        inputStream.close();
+                    }
+                } else {
+                    List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
+                    resultData = pgpImportExport.importKeyRings(entries);
+                }
 
                 sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
@@ -708,7 +949,7 @@ public class ApgIntentService extends IntentService
                         .exportKeyRings(publicMasterKeyIds, secretMasterKeyIds,
                                 new FileOutputStream(outputFile));
 
-                if (mIsCanceled) {
+                if (isCanceled()) {
                     boolean isDeleted = new File(outputFile).delete();
                 }
 
@@ -782,7 +1023,7 @@ public class ApgIntentService extends IntentService
                 Bundle importData = new Bundle();
                 importData.putParcelableArrayList(IMPORT_KEY_LIST, entries);
                 importIntent.putExtra(EXTRA_DATA, importData);
-                importIntent.putExtra(EXTRA_MESSENGER, mMessenger);
+                importIntent.putExtra(EXTRA_MESSENGER, getMessenger());
 
                 // now import it with this service
                 onHandleIntent(importIntent);
@@ -852,7 +1093,7 @@ public class ApgIntentService extends IntentService
                 Bundle importData = new Bundle();
                 importData.putParcelableArrayList(IMPORT_KEY_LIST, entries);
                 importIntent.putExtra(EXTRA_DATA, importData);
-                importIntent.putExtra(EXTRA_MESSENGER, mMessenger);
+                importIntent.putExtra(EXTRA_MESSENGER, getMessenger());
 
                 // now import it with this service
                 onHandleIntent(importIntent);
@@ -906,9 +1147,22 @@ public class ApgIntentService extends IntentService
         }
     }
 
+    /**
+     * @return outputFile with the key id inserted before its extension, e.g.
+     * message.0123456789abcdef.gpg
+     */
+    private static String getBatchOutputFile(String outputFile, long masterKeyId) {
+        String keyId = PgpKeyHelper.convertKeyIdToHex(masterKeyId).substring(2);
+        int dot = outputFile.lastIndexOf('.');
+        if (dot <= outputFile.lastIndexOf(File.separatorChar)) {
+            return outputFile + "." + keyId;
+        }
+        return outputFile.substring(0, dot) + "." + keyId + outputFile.substring(dot);
+    }
+
     private void sendErrorToHandler(Exception e) {
         // Service was canceled. Do not send error to handler.
-        if (this.mIsCanceled) {
+        if (isCanceled()) {
             return;
         }
         // TODO: Implement a better exception handling here
@@ -923,6 +1177,9 @@ public class ApgIntentService extends IntentService
             message = getString(R.string.error_no_signature_passphrase);
         } else if (e instanceof PgpSignEncrypt.NoSigningKeyException) {
             message = getString(R.string.error_no_signature_key);
+        } else if (e instanceof PgpSignEncrypt.BatchTooLargeException) {
+            message = getString(R.string.error_batch_too_large,
+                    PgpSignEncrypt.MAX_BATCH_SIZE >> 20);
         } else if (e instanceof PgpDecryptVerify.InvalidDataException) {
             message = getString(R.string.error_invalid_data);
         } else if (e instanceof PgpDecryptVerify.KeyExtractionException) {
@@ -946,7 +1203,7 @@ public class ApgIntentService extends IntentService
 
     private void sendMessageToHandler(Integer arg1, Integer arg2, Bundle data) {
         // Service was canceled. Do not send message to handler.
-        if (this.mIsCanceled) {
+        if (isCanceled()) {
             return;
         }
         Message msg = Message.obtain();
@@ -959,7 +1216,7 @@ public class ApgIntentService extends IntentService
         }
 
         try {
-            mMessenger.send(msg);
+            getMessenger().send(msg);
         } catch (RemoteException e) {
             Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
         } catch (NullPointerException e) {
@@ -1002,6 +1259,6 @@ public class ApgIntentService extends IntentService
 
     @Override
     public boolean hasServiceStopped() {
-        return mIsCanceled;
+        return isCanceled();
     }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs operations on separate pools of threads for crypto, disk and network work, so e.g. a slow
+ * keyserver download doesn't hold up an unrelated decryption.
+ *
+ * Within a pool, operations with a higher priority are started first, operations of the same
+ * priority in the order they were scheduled. Operations carry a tag (e.g. the Messenger of the
+ * client), by which they can be canceled: queued ones are dropped, running ones are only marked,
+ * they are expected to check isCanceled() and to not report anything afterwards.
+ */
+public class OperationScheduler {
+    public static final int POOL_CPU = 0;
+    public static final int POOL_IO = 1;
+    public static final int POOL_NETWORK = 2;
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    private static final int NUM_CPU_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int NUM_IO_THREADS = 2;
+    private static final int NUM_NETWORK_THREADS = 3;
+
+    private static final ThreadLocal<Operation> sCurrentOperation = new ThreadLocal<Operation>();
+
+    private final ThreadPoolExecutor[] mPools;
+    private final List<Operation> mOperations = new ArrayList<Operation>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Runnable mIdleListener;
+
+    public class Operation extends FutureTask<Void> implements Comparable<Operation> {
+        private final Object mTag;
+        private final int mPriority;
+        private final long mSequence;
+        private volatile boolean mCanceled = false;
+        // set by whichever of run() and done() gets to the operation first
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+
+        Operation(Runnable runnable, Object tag, int priority, long sequence) {
+            super(runnable, null);
+            mTag = tag;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        public Object getTag() {
+            return mTag;
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public void run() {
+            if (!mStarted.compareAndSet(false, true)) {
+                // canceled while queued, already done
+                return;
+            }
+            sCurrentOperation.set(this);
+            try {
+                super.run();
+            } finally {
+                sCurrentOperation.remove();
+                // only now, done() is called by cancel() while the operation is still running
+                onDone(this);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (mStarted.compareAndSet(false, true)) {
+                // canceled before it was started, run() will never do it
+                onDone(this);
+            }
+        }
+
+        @Override
+        public int compareTo(Operation other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        void cancelOperation() {
+            mCanceled = true;
+            // running operations are not interrupted, database writes shouldn't be cut off
+            cancel(false);
+        }
+    }
+
+    /**
+     * @param idleListener called whenever the last scheduled operation is done, may be null
+     */
+    public OperationScheduler(Runnable idleListener) {
+        mIdleListener = idleListener;
+        mPools = new ThreadPoolExecutor[]{
+                createPool("cpu", NUM_CPU_THREADS),
+                createPool("io", NUM_IO_THREADS),
+                createPool("network", NUM_NETWORK_THREADS),
+        };
+    }
+
+    /**
+     * @return the operation run by the calling thread, or null
+     */
+    public static Operation getCurrentOperation() {
+        return sCurrentOperation.get();
+    }
+
+    /**
+     * @param pool one of POOL_CPU, POOL_IO, POOL_NETWORK
+     */
+    public Operation schedule(int pool, int priority, Object tag, Runnable runnable) {
+        Operation operation = new Operation(runnable, tag, priority,
+                mSequence.getAndIncrement());
+        synchronized (mOperations) {
+            mOperations.add(operation);
+        }
+        mPools[pool].execute(operation);
+        return operation;
+    }
+
+    /**
+     * Cancels all operations with the given tag
+     *
+     * @return number of operations canceled
+     */
+    public int cancel(Object tag) {
+        List<Operation> canceled = new ArrayList<Operation>();
+        synchronized (mOperations) {
+            for (Operation operation : mOperations) {
+                if (tag == null ? operation.mTag == null : tag.equals(operation.mTag)) {
+                    canceled.add(operation);
+                }
+            }
+        }
+        // done() of a queued operation runs right away and takes the lock again
+        for (Operation operation : canceled) {
+            operation.cancelOperation();
+        }
+        return canceled.size();
+    }
+
+    /**
+     * @return true iff no operation is queued or running, canceled ones that are still running
+     * count until they return
+     */
+    public boolean isIdle() {
+        synchronized (mOperations) {
+            return mOperations.isEmpty();
+        }
+    }
+
+    public void cancelAll() {
+        List<Operation> canceled;
+        synchronized (mOperations) {
+            canceled = new ArrayList<Operation>(mOperations);
+        }
+        for (Operation operation : canceled) {
+            operation.cancelOperation();
+        }
+    }
+
+    /**
+     * Lets running operations finish, but starts no new ones
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor pool : mPools) {
+            pool.shutdown();
+        }
+    }
+
+    private void onDone(Operation operation) {
+        boolean idle;
+        synchronized (mOperations) {
+            mOperations.remove(operation);
+            idle = mOperations.isEmpty();
+        }
+        if (idle && mIdleListener != null) {
+            mIdleListener.run();
+        }
+    }
+
+    private static ThreadPoolExecutor createPool(final String name, int numThreads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 30,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable,
+                                "ApgOperation-" + name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
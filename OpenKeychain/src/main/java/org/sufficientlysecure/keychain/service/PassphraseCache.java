@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.pgp.PrivateKeyCache;
+import org.thialfihar.android.apg.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Passphrases cached in the memory of this process, so a cache hit is a map lookup instead of a
+ * round trip to the PassphraseCacheService. Use it through the static methods of
+ * PassphraseCacheService, which keeps the passphrases for the other processes.
+ *
+ * Every entry has a deadline, which is moved on whenever the entry is used. Lookups check the
+ * deadline themselves, a single sweep scheduled on the main looper only frees the memory of
+ * expired entries. Passphrases timed out by the PassphraseCacheService are dropped as well.
+ * Whenever a passphrase goes, the keys unlocked with it go from the PrivateKeyCache.
+ */
+public class PassphraseCache {
+    private static final PassphraseCache sInstance = new PassphraseCache();
+
+    private static class Entry {
+        final String passphrase;
+        // in ms, 0 or less if the entry never expires
+        final long ttl;
+        volatile long deadline;
+        volatile long lastSync;
+
+        Entry(String passphrase, long ttl, long now) {
+            this.passphrase = passphrase;
+            this.ttl = ttl;
+            this.deadline = ttl > 0 ? now + ttl : Long.MAX_VALUE;
+            this.lastSync = now;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> mEntries = new ConcurrentHashMap<Long, Entry>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mSweepPending = new AtomicBoolean(false);
+    private final AtomicBoolean mListening = new AtomicBoolean(false);
+
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    private PassphraseCache() {
+    }
+
+    public static PassphraseCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param ttl time to live in seconds, as in Preferences.getPassphraseCacheTtl. 0 or less
+     *            (the "forever" choice is -1) keeps the passphrase until it is removed
+     */
+    public void put(long keyId, String passphrase, long ttl) {
+        long now = SystemClock.elapsedRealtime();
+        Entry entry = new Entry(passphrase, ttl * 1000, now);
+        mEntries.put(keyId, entry);
+        if (entry.ttl > 0) {
+            scheduleSweep(entry.ttl);
+        }
+    }
+
+    /**
+     * Gets a passphrase and restarts its life cycle
+     *
+     * @return passphrase or null if none is cached
+     */
+    public String get(long keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry == null) {
+            return null;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (entry.deadline <= now) {
+            if (mEntries.remove(keyId, entry)) {
+                PrivateKeyCache.getInstance().remove(keyId);
+            }
+            return null;
+        }
+        if (entry.ttl > 0) {
+            entry.deadline = now + entry.ttl;
+        }
+        return entry.passphrase;
+    }
+
+    /**
+     * @return true if the entry was used for a while since it was last handed to the
+     * PassphraseCacheService, which then has to be told to keep it for longer
+     */
+    boolean needsSync(long keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry == null || entry.ttl <= 0) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - entry.lastSync < entry.ttl / 2) {
+            return false;
+        }
+        entry.lastSync = now;
+        return true;
+    }
+
+    public void remove(long keyId) {
+        mEntries.remove(keyId);
+        // keys unlocked with the passphrase go with it
+        PrivateKeyCache.getInstance().remove(keyId);
+    }
+
+    public void clear() {
+        mEntries.clear();
+        PrivateKeyCache.getInstance().clear();
+    }
+
+    /**
+     * Starts listening for the timeouts of the PassphraseCacheService, which runs in a process of
+     * its own. Only the first call registers anything.
+     */
+    public void listenForTimeouts(Context context) {
+        if (!mListening.compareAndSet(false, true)) {
+            return;
+        }
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long keyId = intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID,
+                        Constants.key.none);
+                Log.d(Constants.TAG, "Timeout of keyId " + keyId + " in the service");
+                remove(keyId);
+            }
+        }, new IntentFilter(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_TIMED_OUT));
+    }
+
+    private void scheduleSweep(long delay) {
+        if (mSweepPending.compareAndSet(false, true)) {
+            mHandler.postDelayed(mSweep, delay);
+        }
+    }
+
+    private void sweep() {
+        mSweepPending.set(false);
+        long now = SystemClock.elapsedRealtime();
+        long next = Long.MAX_VALUE;
+        for (Map.Entry<Long, Entry> mapEntry : mEntries.entrySet()) {
+            long deadline = mapEntry.getValue().deadline;
+            if (deadline <= now) {
+                Log.d(Constants.TAG, "Timeout of keyId " + mapEntry.getKey()
+                        + ", removed from memory!");
+                // leaves an entry alone that was put again in the meantime
+                if (mEntries.remove(mapEntry.getKey(), mapEntry.getValue())) {
+                    PrivateKeyCache.getInstance().remove(mapEntry.getKey());
+                }
+            } else if (deadline != Long.MAX_VALUE) {
+                next = Math.min(next, deadline);
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleSweep(next - now);
+        }
+    }
+}
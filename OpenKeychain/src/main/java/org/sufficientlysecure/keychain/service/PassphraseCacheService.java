@@ -45,7 +45,7 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.helper.Preferences;
 import org.thialfihar.android.apg.pgp.PgpKeyHelper;
-import org.thialfihar.android.apg.provider.ApgContract;
+import org.thialfihar.android.apg.provider.ApgContract.Keys;
 import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.util.Log;
 
@@ -57,6 +57,9 @@ import java.util.Iterator;
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
  * convenience.
  *
+ * Each process also keeps the passphrases it has seen in its PassphraseCache, so the service is
+ * only asked when that misses, e.g. for a passphrase entered in another process.
+ *
  */
 public class PassphraseCacheService extends Service {
     public static final String TAG = Constants.TAG + ": PassphraseCacheService";
@@ -68,6 +71,9 @@ public class PassphraseCacheService extends Service {
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    // sent to the other processes of the app when a passphrase timed out, with EXTRA_KEY_ID
+    public static final String BROADCAST_ACTION_PASSPHRASE_TIMED_OUT = Constants.INTENT_PREFIX
+            + "PASSPHRASE_TIMED_OUT";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
@@ -84,9 +90,10 @@ public class PassphraseCacheService extends Service {
     Context mContext;
 
     /**
-     * This caches a new passphrase in memory by sending a new command to the service. An android
-     * service is only run once. Thus, when the service is already started, new commands just add
-     * new events to the alarm manager for new passphrases to let them timeout in the future.
+     * This caches a new passphrase in the memory of this process and sends it to the service,
+     * which keeps it for the other processes. An android service is only run once. Thus, when
+     * the service is already started, new commands just add new events to the alarm manager for
+     * new passphrases to let them timeout in the future.
      *
      * @param context
      * @param keyId
@@ -95,9 +102,13 @@ public class PassphraseCacheService extends Service {
     public static void addCachedPassphrase(Context context, long keyId, String passphrase) {
         Log.d(TAG, "cacheNewPassphrase() for " + keyId);
 
+        long ttl = Preferences.getPreferences(context).getPassphraseCacheTtl();
+        PassphraseCache.getInstance().listenForTimeouts(context);
+        PassphraseCache.getInstance().put(keyId, passphrase, ttl);
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_ADD);
-        intent.putExtra(EXTRA_TTL, Preferences.getPreferences(context).getPassphraseCacheTtl());
+        intent.putExtra(EXTRA_TTL, ttl);
         intent.putExtra(EXTRA_PASSPHRASE, passphrase);
         intent.putExtra(EXTRA_KEY_ID, keyId);
 
@@ -105,15 +116,35 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from the memory of this process, or else by sending an intent to
+     * the service. In the latter case, this method waits until the service returns the
+     * passphrase.
      *
      * @param context
      * @param keyId
      * @return passphrase or null (if no passphrase is cached for this keyId)
      */
     public static String getCachedPassphrase(Context context, long keyId) {
-        Log.d(TAG, "getCachedPassphrase() get masterKeyId for " + keyId);
+        long masterKeyId = keyId;
+        if (masterKeyId != Constants.key.symmetric) {
+            try {
+                masterKeyId = new ProviderHelper(context).getMasterKeyIdBySubkey(keyId);
+            } catch (ProviderHelper.NotFoundException e) {
+                return null;
+            }
+        }
+
+        PassphraseCache cache = PassphraseCache.getInstance();
+        String cachedPassphrase = cache.get(masterKeyId);
+        if (cachedPassphrase != null) {
+            if (cache.needsSync(masterKeyId)) {
+                // the service times it out on its own, tell it that it is still in use
+                addCachedPassphrase(context, masterKeyId, cachedPassphrase);
+            }
+            return cachedPassphrase;
+        }
+
+        Log.d(TAG, "getCachedPassphrase() not in memory, asking service for " + keyId);
 
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
@@ -153,11 +184,13 @@ public class PassphraseCacheService extends Service {
             }
         }
 
-        if (returnBundle.containsKey(EXTRA_PASSPHRASE)) {
-            return returnBundle.getString(EXTRA_PASSPHRASE);
-        } else {
-            return null;
+        String passphrase = returnBundle.getString(EXTRA_PASSPHRASE);
+        if (passphrase != null) {
+            cache.listenForTimeouts(context);
+            cache.put(masterKeyId, passphrase,
+                    Preferences.getPreferences(context).getPassphraseCacheTtl());
         }
+        return passphrase;
     }
 
     /**
@@ -173,8 +206,7 @@ public class PassphraseCacheService extends Service {
         long masterKeyId = keyId;
         if (masterKeyId != Constants.key.symmetric) {
             try {
-                masterKeyId = new ProviderHelper(this).getMasterKeyId(
-                        ApgContract.KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId)));
+                masterKeyId = new ProviderHelper(this).getMasterKeyIdBySubkey(keyId);
             } catch (ProviderHelper.NotFoundException e) {
                 return null;
             }
@@ -227,7 +259,8 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Checks if key has a passphrase.
+     * Checks if key has a passphrase. This is answered from the protection stored when the key
+     * was saved, only keys saved without it are loaded and tried with an empty passphrase.
      *
      * @param secretKeyId
      * @return true if it has a passphrase
@@ -236,9 +269,14 @@ public class PassphraseCacheService extends Service {
         if (secretKeyId == Id.key.symmetric) {
             return true;
         }
+        ProviderHelper providerHelper = new ProviderHelper(context);
+        int protection = providerHelper.getSecretProtection(secretKeyId);
+        if (protection != Keys.PROTECTION_UNKNOWN) {
+            return protection != Keys.PROTECTION_NONE;
+        }
         // check if the key has no passphrase
         try {
-            PGPSecretKeyRing secRing = new ProviderHelper(context).getPGPSecretKeyRing(secretKeyId);
+            PGPSecretKeyRing secRing = providerHelper.getPGPSecretKeyRing(secretKeyId);
             return hasPassphrase(secRing);
         } catch (ProviderHelper.NotFoundException e) {
             Log.e(Constants.TAG, "key not found!", e);
@@ -354,6 +392,12 @@ public class PassphraseCacheService extends Service {
 
         Log.d(TAG, "Timeout of keyId " + keyId + ", removed from memory!");
 
+        // the other processes drop their copies, and the keys unlocked with it
+        Intent timedOut = new Intent(BROADCAST_ACTION_PASSPHRASE_TIMED_OUT);
+        timedOut.setPackage(getPackageName());
+        timedOut.putExtra(EXTRA_KEY_ID, keyId);
+        sendBroadcast(timedOut);
+
         // stop whole service if no cached passphrases remaining
         if (mPassphraseCache.size() == 0) {
             Log.d(TAG, "No passphrases remaining in memory, stopping service!");
@@ -225,7 +225,7 @@ public class EditKeyActivity extends ActionBarActivity implements EditorListener
                                 @Override
                                 public void onCancel(DialogInterface dialog) {
                                     // Stop key generation on cancel
-                                    stopService(serviceIntent);
+                                    ApgIntentService.cancel(EditKeyActivity.this, serviceIntent);
                                     EditKeyActivity.this.setResult(Activity.RESULT_CANCELED);
                                     EditKeyActivity.this.finish();
                                 }
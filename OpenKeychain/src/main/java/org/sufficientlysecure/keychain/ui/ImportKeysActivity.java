@@ -417,7 +417,22 @@ public class ImportKeysActivity extends ActionBarActivity implements ActionBar.O
 
             // get selected key entries
             ArrayList<ImportKeysListEntry> selectedEntries = mListFragment.getSelectedData();
-            data.putParcelableArrayList(ApgIntentService.IMPORT_KEY_LIST, selectedEntries);
+            if (mListFragment.getKeyBytes() != null) {
+                data.putParcelableArrayList(ApgIntentService.IMPORT_KEY_LIST, selectedEntries);
+            } else {
+                // key files may be large, only pass which of their key rings are to be imported,
+                // one bit per key ring keeps the intent small for any number of them
+                int maxPosition = -1;
+                for (ImportKeysListEntry entry : selectedEntries) {
+                    maxPosition = Math.max(maxPosition, entry.getPosition());
+                }
+                long[] selection = new long[(maxPosition >> 6) + 1];
+                for (ImportKeysListEntry entry : selectedEntries) {
+                    selection[entry.getPosition() >> 6] |= 1L << entry.getPosition();
+                }
+                intent.setData(mListFragment.getDataUri());
+                data.putLongArray(ApgIntentService.IMPORT_KEY_SELECTION, selection);
+            }
 
             intent.putExtra(ApgIntentService.EXTRA_DATA, data);
 
@@ -18,6 +18,7 @@
 package org.thialfihar.android.apg.ui;
 
 import android.app.Activity;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
@@ -215,7 +216,8 @@ public class ImportKeysListFragment extends ListFragment implements
         switch (id) {
             case LOADER_ID_BYTES: {
                 InputData inputData = getInputData(mKeyBytes, mDataUri);
-                return new ImportKeysListLoader(mActivity, inputData);
+                // files may be large, their key rings are read again from mDataUri on import
+                return new ImportKeysListLoader(mActivity, inputData, mKeyBytes == null);
             }
             case LOADER_ID_SERVER_QUERY: {
                 return new ImportKeysListServerLoader(getActivity(), mServerQuery, mKeyserver);
@@ -329,10 +331,15 @@ public class ImportKeysListFragment extends ListFragment implements
             inputData = new InputData(new ByteArrayInputStream(importBytes), importBytes.length);
         } else if (dataUri != null) {
             try {
-                InputStream inputStream = getActivity().getContentResolver().openInputStream(dataUri);
-                int length = inputStream.available();
-
-                inputData = new InputData(inputStream, length);
+                // available() says nothing about the size of content or file streams
+                AssetFileDescriptor fd = getActivity().getContentResolver()
+                        .openAssetFileDescriptor(dataUri, "r");
+                long length = fd.getLength();
+                InputStream inputStream = fd.createInputStream();
+
+                inputData = new InputData(inputStream,
+                        length == AssetFileDescriptor.UNKNOWN_LENGTH
+                                ? InputData.UNKNOWN_SIZE : length);
             } catch (FileNotFoundException e) {
                 Log.e(Constants.TAG, "FileNotFoundException!", e);
             } catch (IOException e) {
@@ -33,6 +33,7 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.pgp.PrivateKeyCache;
 import org.thialfihar.android.apg.ui.widget.IntegerListPreference;
 
 import java.util.List;
@@ -66,6 +67,9 @@ public class PreferencesActivity extends PreferenceActivity {
             initializePassPassPhraceCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
+            initializeCacheUnlockedKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.CACHE_UNLOCKED_KEYS));
+
             mKeyserverPreference = (PreferenceScreen) findPreference(Constants.Pref.KEY_SERVERS);
             String servers[] = sPreferences.getKeyservers();
             mKeyserverPreference.setSummary(getResources().getQuantityString(R.plurals.n_keyservers,
@@ -172,6 +176,9 @@ public class PreferencesActivity extends PreferenceActivity {
             initializePassPassPhraceCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
+            initializeCacheUnlockedKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.CACHE_UNLOCKED_KEYS));
+
             mKeyserverPreference = (PreferenceScreen) findPreference(Constants.Pref.KEY_SERVERS);
             String servers[] = sPreferences.getKeyservers();
             mKeyserverPreference.setSummary(getResources().getQuantityString(R.plurals.n_keyservers,
@@ -382,6 +389,21 @@ public class PreferencesActivity extends PreferenceActivity {
         });
     }
 
+    private static void initializeCacheUnlockedKeys(final CheckBoxPreference mCacheUnlockedKeys) {
+        mCacheUnlockedKeys.setChecked(sPreferences.getCacheUnlockedKeys());
+        mCacheUnlockedKeys
+                .setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        mCacheUnlockedKeys.setChecked((Boolean) newValue);
+                        sPreferences.setCacheUnlockedKeys((Boolean) newValue);
+                        if (!(Boolean) newValue) {
+                            PrivateKeyCache.getInstance().clear();
+                        }
+                        return false;
+                    }
+                });
+    }
+
     private static void initializeForceV3Signatures(final CheckBoxPreference mForceV3Signatures) {
         mForceV3Signatures.setChecked(sPreferences.getForceV3Signatures());
         mForceV3Signatures
@@ -283,25 +283,14 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
         }
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
+        if (mQuery != null && mQuery.trim().length() > 0) {
+            // prefix search through all user ids of each key
+            baseUri = KeyRings.buildUnifiedKeyRingsSearchUri(mQuery.trim());
         }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, whereArgs, orderBy);
+        return new CursorLoader(getActivity(), baseUri, projection, null, null, orderBy);
     }
 
     @Override
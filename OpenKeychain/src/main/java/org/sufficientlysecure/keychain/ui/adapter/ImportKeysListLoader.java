@@ -21,16 +21,12 @@ import android.content.Context;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.spongycastle.openpgp.PGPKeyRing;
-import org.spongycastle.openpgp.PGPObjectFactory;
-import org.spongycastle.openpgp.PGPUtil;
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.keyimport.ImportKeysListEntry;
+import org.thialfihar.android.apg.pgp.PgpKeyRingReader;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
-import org.thialfihar.android.apg.util.PositionAwareInputStream;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 
 public class ImportKeysListLoader
@@ -53,14 +49,24 @@ public class ImportKeysListLoader
 
     private final Context mContext;
     private final InputData mInputData;
+    private final boolean mStreaming;
 
     private ArrayList<ImportKeysListEntry> mData = new ArrayList<ImportKeysListEntry>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, InputData inputData) {
+        this(context, inputData, false);
+    }
+
+    /**
+     * @param streaming if true, entries only remember the position of their key ring in the
+     *                  input instead of its encoded form, see ApgIntentService.IMPORT_KEY_SELECTION
+     */
+    public ImportKeysListLoader(Context context, InputData inputData, boolean streaming) {
         super(context);
         mContext = context;
         mInputData = inputData;
+        mStreaming = streaming;
     }
 
     @Override
@@ -113,45 +119,21 @@ public class ImportKeysListLoader
      * @return
      */
     private void generateListOfKeyrings(InputData inputData) {
-        boolean isEmpty = true;
-        int nonPgpCounter = 0;
-
-        PositionAwareInputStream progressIn = new PositionAwareInputStream(
-                inputData.getInputStream());
-
-        // need to have access to the bufferedInput, so we can reuse it for the possible
-        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-        // armor blocks
-        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
+        PgpKeyRingReader reader = new PgpKeyRingReader(inputData.getInputStream());
+        int nonPgpCounter;
         try {
-
-            // read all available blocks... (asc files can contain many blocks with BEGIN END)
-            while (bufferedInput.available() > 0) {
-                isEmpty = false;
-                InputStream in = PGPUtil.getDecoderStream(bufferedInput);
-                PGPObjectFactory objectFactory = new PGPObjectFactory(in);
-
-                // go through all objects in this block
-                Object obj;
-                while ((obj = objectFactory.nextObject()) != null) {
-                    Log.d(Constants.TAG, "Found class: " + obj.getClass());
-
-                    if (obj instanceof PGPKeyRing) {
-                        PGPKeyRing newKeyring = (PGPKeyRing) obj;
-                        addToData(newKeyring);
-                    } else {
-                        Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!", new Exception());
-                        nonPgpCounter++;
-                    }
-                }
+            while (reader.hasNext()) {
+                int position = reader.getPosition();
+                addToData(reader.next(), position);
             }
+            nonPgpCounter = reader.getNonPgpCount();
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mData, e);
             nonPgpCounter = 0;
         }
 
-        if (isEmpty) {
+        if (reader.isEmpty()) {
             Log.e(Constants.TAG, "File has no content!", new FileHasNoContent());
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>
                     (mData, new FileHasNoContent());
@@ -163,8 +145,14 @@ public class ImportKeysListLoader
         }
     }
 
-    private void addToData(PGPKeyRing keyring) {
-        ImportKeysListEntry item = new ImportKeysListEntry(getContext(), keyring);
+    private void addToData(PGPKeyRing keyring, int position) {
+        ImportKeysListEntry item;
+        if (mStreaming) {
+            // the key ring is read from the input again when importing, don't keep it around
+            item = new ImportKeysListEntry(getContext(), keyring, position);
+        } else {
+            item = new ImportKeysListEntry(getContext(), keyring);
+        }
         mData.add(item);
     }
 }
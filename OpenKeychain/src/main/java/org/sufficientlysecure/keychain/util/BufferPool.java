@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed number of reusable I/O buffers, so streaming many messages, e.g. through the remote
+ * API, doesn't allocate and collect 64 KiB per message and copy loop.
+ *
+ * If all buffers are taken, acquire() allocates a new one, release() drops buffers which don't
+ * fit back in. A released buffer must not be used anymore, as it is handed out again right away.
+ * Buffers which are never released, e.g. after an exception, are simply garbage collected.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 1 << 16;
+    private static final int NUM_BUFFERS = 16;
+
+    private static final ArrayBlockingQueue<byte[]> sBuffers =
+            new ArrayBlockingQueue<byte[]>(NUM_BUFFERS);
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return a buffer of BUFFER_SIZE bytes, with arbitrary content
+     */
+    public static byte[] acquire() {
+        byte[] buffer = sBuffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * @param buffer may be null
+     */
+    public static void release(byte[] buffer) {
+        if (buffer != null && buffer.length == BUFFER_SIZE) {
+            sBuffers.offer(buffer);
+        }
+    }
+}
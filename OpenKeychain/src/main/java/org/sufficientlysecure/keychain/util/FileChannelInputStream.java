@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * InputStream reading a file through a FileChannel in big blocks into a direct buffer.
+ *
+ * Files aren't memory mapped: they may be on shared storage, where a file truncated by another
+ * app makes accesses to its mapping crash the process with SIGBUS, and a mapping stays around
+ * until it is garbage collected, long after close().
+ *
+ * Unlike FileInputStream it supports mark/reset, so PGPUtil.getDecoderStream doesn't need to put
+ * yet another BufferedInputStream on top of it, and single byte reads, as done by
+ * ArmoredInputStream, are cheap.
+ */
+public class FileChannelInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    // a block of the file which starts at mBufferStart
+    private final ByteBuffer mBuffer;
+    private long mBufferStart = 0;
+    private long mMark = 0;
+
+    public FileChannelInputStream(File file) throws IOException {
+        mChannel = new FileInputStream(file).getChannel();
+        mSize = mChannel.size();
+        // small files don't need a full block
+        mBuffer = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(BUFFER_SIZE, mSize)));
+        mBuffer.limit(0);
+    }
+
+    /**
+     * @return false if the end of the file has been reached
+     */
+    private boolean fill() throws IOException {
+        if (mBuffer.hasRemaining()) {
+            return true;
+        }
+        mBufferStart += mBuffer.limit();
+        mBuffer.clear();
+        int n;
+        do {
+            n = mChannel.read(mBuffer);
+        } while (n == 0);
+        mBuffer.flip();
+        return n > 0;
+    }
+
+    private long position() {
+        return mBufferStart + mBuffer.position();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(length, mBuffer.remaining());
+        mBuffer.get(b, offset, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (n <= mBuffer.remaining()) {
+            mBuffer.position(mBuffer.position() + (int) n);
+            return n;
+        }
+        long skipped = Math.min(n, mSize - position());
+        seek(position() + skipped);
+        return skipped;
+    }
+
+    private void seek(long position) throws IOException {
+        if (position >= mBufferStart && position <= mBufferStart + mBuffer.limit()) {
+            mBuffer.position((int) (position - mBufferStart));
+        } else {
+            mChannel.position(position);
+            mBufferStart = position;
+            mBuffer.limit(0);
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, mSize - position());
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = position();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        seek(mMark);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutputStream writing a file through a FileChannel, collecting small writes (e.g. the single
+ * bytes written by ArmoredOutputStream) in a direct buffer. Large writes go to the channel
+ * without being copied.
+ */
+public class FileChannelOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean mClosed = false;
+
+    public FileChannelOutputStream(File file) throws IOException {
+        mChannel = new FileOutputStream(file).getChannel();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            drain();
+        }
+        mBuffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        if (length > mBuffer.remaining()) {
+            drain();
+            if (length >= BUFFER_SIZE) {
+                writeFully(ByteBuffer.wrap(b, offset, length));
+                return;
+            }
+        }
+        mBuffer.put(b, offset, length);
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        writeFully(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            drain();
+        } finally {
+            mChannel.close();
+        }
+    }
+}
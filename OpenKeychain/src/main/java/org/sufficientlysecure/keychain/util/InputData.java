@@ -23,22 +23,48 @@ import java.io.InputStream;
  * Wrapper to include size besides an InputStream
  */
 public class InputData {
+    public static final long UNKNOWN_SIZE = -1;
+
     private PositionAwareInputStream mInputStream;
     private long mSize;
+    private boolean mSizeExact;
+
+    /**
+     * For streams whose length isn't known in advance, e.g. pipes
+     */
+    public InputData(InputStream inputStream) {
+        this(inputStream, UNKNOWN_SIZE, false);
+    }
 
     public InputData(InputStream inputStream, long size) {
+        this(inputStream, size, false);
+    }
+
+    /**
+     * @param sizeExact true if the stream is known to deliver exactly size bytes, e.g. for
+     *                  files and byte arrays, rather than size being an estimate
+     */
+    public InputData(InputStream inputStream, long size, boolean sizeExact) {
         mInputStream = new PositionAwareInputStream(inputStream);
         mSize = size;
+        mSizeExact = sizeExact;
     }
 
     public InputStream getInputStream() {
         return mInputStream;
     }
 
+    /**
+     * @return the (expected) size, UNKNOWN_SIZE if not known
+     */
     public long getSize() {
         return mSize;
     }
 
+    public boolean isSizeExact() {
+        return mSizeExact;
+    }
+
     public long getStreamPosition() {
         return mInputStream.position();
     }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * BufferedOutputStream whose buffer comes from the BufferPool and goes back there on close().
+ *
+ * Meant for pipes and the like, where e.g. ArmoredOutputStream would otherwise issue a write
+ * for every single byte.
+ */
+public class PooledBufferedOutputStream extends BufferedOutputStream {
+    public PooledBufferedOutputStream(OutputStream out) {
+        super(out, 1);
+        buf = BufferPool.acquire();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        byte[] buffer = buf;
+        try {
+            super.close();
+        } finally {
+            // only if the stream dropped it, so it really can't be used anymore
+            if (buf == null) {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+}
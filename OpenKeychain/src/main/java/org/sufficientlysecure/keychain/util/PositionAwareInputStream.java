@@ -23,6 +23,7 @@ import java.io.InputStream;
 public class PositionAwareInputStream extends InputStream {
     private InputStream mStream;
     private long mPosition;
+    private long mMarkPosition;
 
     public PositionAwareInputStream(InputStream in) {
         mStream = in;
@@ -32,7 +33,9 @@ public class PositionAwareInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         int ch = mStream.read();
-        ++mPosition;
+        if (ch >= 0) {
+            ++mPosition;
+        }
         return ch;
     }
 
@@ -48,27 +51,37 @@ public class PositionAwareInputStream extends InputStream {
 
     @Override
     public boolean markSupported() {
-        return false;
+        return mStream.markSupported();
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mStream.mark(readLimit);
+        mMarkPosition = mPosition;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
         int result = mStream.read(b);
-        mPosition += result;
+        if (result > 0) {
+            mPosition += result;
+        }
         return result;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
         int result = mStream.read(b, offset, length);
-        mPosition += result;
+        if (result > 0) {
+            mPosition += result;
+        }
         return result;
     }
 
     @Override
     public synchronized void reset() throws IOException {
         mStream.reset();
-        mPosition = 0;
+        mPosition = mMarkPosition;
     }
 
     @Override
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import android.os.SystemClock;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.pgp.Progressable;
+
+/**
+ * Reports the progress of processing a stream to a Progressable, mapped into the range from..to
+ * of 100.
+ *
+ * update() is meant to be called for every buffer processed, it only passes the progress on if
+ * the percentage changed and MIN_INTERVAL_MS have passed since the last report, so the
+ * Progressable (e.g. ApgIntentService, which sends a message per call) isn't flooded.
+ * finish() reports the throughput to the ThroughputListener, if one is set.
+ */
+public class StreamProgress {
+    private static final long MIN_INTERVAL_MS = 100;
+    /** For streams of unknown size, the progress is half way at this number of bytes */
+    private static final long UNKNOWN_SIZE_HALF_WAY = 1 << 20;
+
+    public interface ThroughputListener {
+        /**
+         * @param operation e.g. "encrypt" or "decrypt"
+         */
+        void onThroughput(String operation, long bytes, long millis);
+    }
+
+    private static volatile ThroughputListener sThroughputListener;
+
+    private final Progressable mProgressable;
+    private final String mOperation;
+    private final int mFrom;
+    private final int mTo;
+    private final long mTotal;
+
+    private final long mStartTime;
+    private long mLastTime;
+    private int mLastProgress;
+
+    /**
+     * @param progressable may be null
+     * @param total        number of bytes expected, 0 or less if unknown
+     */
+    public StreamProgress(Progressable progressable, String operation, int from, int to,
+                          long total) {
+        mProgressable = progressable;
+        mOperation = operation;
+        mFrom = from;
+        mTo = to;
+        mTotal = total;
+
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastTime = mStartTime;
+        mLastProgress = from;
+    }
+
+    public static void setThroughputListener(ThroughputListener listener) {
+        sThroughputListener = listener;
+    }
+
+    /**
+     * @param done number of bytes processed so far
+     */
+    public void update(long done) {
+        if (mProgressable == null) {
+            return;
+        }
+
+        int progress = getProgress(done);
+        if (progress == mLastProgress) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastTime < MIN_INTERVAL_MS && progress < mTo) {
+            return;
+        }
+
+        mLastTime = now;
+        mLastProgress = progress;
+        mProgressable.setProgress(progress, 100);
+    }
+
+    /**
+     * @param done number of bytes processed in total
+     */
+    public void finish(long done) {
+        if (mProgressable != null && mLastProgress != mTo) {
+            mLastProgress = mTo;
+            mProgressable.setProgress(mTo, 100);
+        }
+
+        long millis = SystemClock.elapsedRealtime() - mStartTime;
+        if (millis > 0) {
+            Log.d(Constants.TAG, mOperation + ": " + done + " bytes in " + millis + " ms, "
+                    + (done * 1000 / millis / 1024) + " KiB/s");
+        }
+        ThroughputListener listener = sThroughputListener;
+        if (listener != null) {
+            listener.onThroughput(mOperation, done, millis);
+        }
+    }
+
+    private int getProgress(long done) {
+        if (mTotal <= 0) {
+            // unknown size, but try to at least have a moving, slowing down progress bar
+            return (int) (mFrom + (mTo - mFrom) * done / (done + UNKNOWN_SIZE_HALF_WAY));
+        }
+        // buffering streams may have read ahead a bit further than what has been processed
+        return (int) (mFrom + (mTo - mFrom) * Math.min(done, mTotal) / mTotal);
+    }
+}
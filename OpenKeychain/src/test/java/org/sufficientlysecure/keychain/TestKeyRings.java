@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+
+import org.thialfihar.android.apg.pgp.PgpConversionHelper;
+import org.thialfihar.android.apg.util.IterableIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+
+/**
+ * Generates small RSA key rings for tests
+ */
+public class TestKeyRings {
+
+    static {
+        if (Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private TestKeyRings() {
+    }
+
+    /**
+     * @return a secret key ring with a certification and signing master key for userId and an
+     * encryption subkey, both protected by passphrase
+     */
+    public static PGPSecretKeyRing generate(String userId, String passphrase) throws Exception {
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build()
+                .get(HashAlgorithmTags.SHA1);
+
+        PGPSignatureSubpacketGenerator masterFlags = new PGPSignatureSubpacketGenerator();
+        masterFlags.setKeyFlags(true, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA);
+        PGPSignatureSubpacketGenerator subkeyFlags = new PGPSignatureSubpacketGenerator();
+        subkeyFlags.setKeyFlags(true, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+
+        PGPKeyRingGenerator generator = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION, generateKeyPair(), userId, sha1Calc,
+                masterFlags.generate(), null,
+                new JcaPGPContentSignerBuilder(PGPPublicKey.RSA_GENERAL, HashAlgorithmTags.SHA256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(passphrase.toCharArray()));
+        generator.addSubKey(generateKeyPair(), subkeyFlags.generate(), null);
+        return generator.generateSecretKeyRing();
+    }
+
+    private static PGPKeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        generator.initialize(1024, new SecureRandom());
+        return new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(), new Date());
+    }
+
+    /**
+     * @return the public key ring of secretRing, with all its user ids and signatures
+     */
+    public static PGPPublicKeyRing getPublicKeyRing(PGPSecretKeyRing secretRing)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(secretRing.getSecretKeys())) {
+            key.getPublicKey().encode(out);
+        }
+        return (PGPPublicKeyRing) PgpConversionHelper.BytesToPGPKeyRing(out.toByteArray());
+    }
+
+    public static PGPPrivateKey extractPrivateKey(PGPSecretKey key, String passphrase)
+            throws PGPException {
+        return key.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                .build(passphrase.toCharArray()));
+    }
+
+    /**
+     * @return keyRing with userId added, certified by its own master key
+     */
+    public static PGPPublicKeyRing addUserId(PGPPublicKeyRing keyRing, PGPSecretKeyRing secretRing,
+                                             String passphrase, String userId) throws Exception {
+        return certify(keyRing, userId, secretRing, passphrase,
+                PGPSignature.POSITIVE_CERTIFICATION);
+    }
+
+    /**
+     * @return keyRing with every user id certified by the master key of certifier
+     */
+    public static PGPPublicKeyRing certify(PGPPublicKeyRing keyRing, PGPSecretKeyRing certifier,
+                                           String passphrase) throws Exception {
+        for (String userId : new IterableIterator<String>(keyRing.getPublicKey().getUserIDs())) {
+            keyRing = certify(keyRing, userId, certifier, passphrase,
+                    PGPSignature.DEFAULT_CERTIFICATION);
+        }
+        return keyRing;
+    }
+
+    private static PGPPublicKeyRing certify(PGPPublicKeyRing keyRing, String userId,
+                                            PGPSecretKeyRing certifier, String passphrase,
+                                            int type) throws Exception {
+        PGPSecretKey certificationKey = certifier.getSecretKey();
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(
+                certificationKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(type, extractPrivateKey(certificationKey, passphrase));
+
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        PGPSignature certification = generator.generateCertification(userId, masterKey);
+        masterKey = PGPPublicKey.addCertification(masterKey, userId, certification);
+        return PGPPublicKeyRing.insertPublicKey(keyRing, masterKey);
+    }
+}
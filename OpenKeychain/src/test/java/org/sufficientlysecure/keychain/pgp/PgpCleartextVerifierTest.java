@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureList;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.util.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Signs texts with stock BouncyCastle and checks them through PgpCleartextVerifier
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpCleartextVerifierTest {
+
+    private static final String PASSPHRASE = "test";
+    private static final String NL = System.getProperty("line.separator");
+
+    private static PGPSecretKeyRing sAliceSecret;
+    private static PGPSecretKeyRing sBobSecret;
+
+    private String mText;
+
+    @Before
+    public void setUp() throws Exception {
+        // key generation is slow, the key rings are shared by all tests
+        if (sAliceSecret == null) {
+            sAliceSecret = TestKeyRings.generate("Alice <alice@example.com>", PASSPHRASE);
+            sBobSecret = TestKeyRings.generate("Bob <bob@example.com>", PASSPHRASE);
+        }
+    }
+
+    /**
+     * @return the text as it is signed, see http://tools.ietf.org/html/rfc4880#section-7.1
+     */
+    private static String canonicalize(String text) {
+        String[] lines = text.split("\r\n|\r|\n", -1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < lines.length; ++i) {
+            if (i > 0) {
+                result.append("\r\n");
+            }
+            result.append(lines[i].replaceAll("[ \t]+$", ""));
+        }
+        return result.toString();
+    }
+
+    private static PGPSignature sign(String text, PGPSecretKeyRing signer, int hashAlgorithm)
+            throws Exception {
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(
+                signer.getPublicKey().getAlgorithm(), hashAlgorithm)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(PGPSignature.CANONICAL_TEXT_DOCUMENT,
+                TestKeyRings.extractPrivateKey(signer.getSecretKey(), PASSPHRASE));
+        byte[] canonical = canonicalize(text).getBytes("UTF-8");
+        generator.update(canonical, 0, canonical.length);
+        return generator.generate();
+    }
+
+    /**
+     * @param hashHeaders may be empty for a message without Hash header
+     * @param text        is dash-escaped here, and followed by the line ending before the
+     *                    signature
+     */
+    private static byte[] buildMessage(String hashHeaders, String text,
+                                       PGPSignature... signatures) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("-----BEGIN PGP SIGNED MESSAGE-----\r\n"
+                + (hashHeaders.length() > 0 ? hashHeaders + "\r\n" : "") + "\r\n")
+                .getBytes("UTF-8"));
+        out.write((text.replaceAll("(?m)^-", "- -") + "\r\n").getBytes("UTF-8"));
+        ArmoredOutputStream armor = new ArmoredOutputStream(out);
+        for (PGPSignature signature : signatures) {
+            signature.encode(armor);
+        }
+        armor.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads message like PgpDecryptVerify does, the text written out is left in mText
+     *
+     * @return whether the signature at index is valid
+     */
+    private boolean verify(byte[] message, int index, PGPSecretKeyRing signer) throws Exception {
+        ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(message));
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PgpCleartextVerifier verifier = new PgpCleartextVerifier(aIn.getArmorHeaders(), text);
+        verifier.process(aIn);
+        mText = text.toString("UTF-8");
+
+        // the signer is only known now, the text has been hashed already
+        PGPSignatureList signatures = (PGPSignatureList) new PGPObjectFactory(aIn).nextObject();
+        PGPSignature signature = signatures.get(index);
+        PGPPublicKeyRing publicRing = TestKeyRings.getPublicKeyRing(signer);
+        signature.init(verifier.getContentVerifierBuilderProvider(),
+                publicRing.getPublicKey(signature.getKeyID()));
+        return signature.verify();
+    }
+
+    @Test
+    public void testValidSignature() throws Exception {
+        String text = "Hello World\nThis is signed.";
+        byte[] message = buildMessage("Hash: SHA256", text,
+                sign(text, sAliceSecret, HashAlgorithmTags.SHA256));
+
+        assertTrue(verify(message, 0, sAliceSecret));
+        assertEquals("Hello World" + NL + "This is signed." + NL, mText);
+    }
+
+    @Test
+    public void testTamperedText() throws Exception {
+        PGPSignature signature = sign("Pay Bob 10 EUR", sAliceSecret, HashAlgorithmTags.SHA256);
+        byte[] message = buildMessage("Hash: SHA256", "Pay Bob 1000 EUR", signature);
+
+        assertFalse(verify(message, 0, sAliceSecret));
+        assertEquals("Pay Bob 1000 EUR" + NL, mText);
+    }
+
+    @Test
+    public void testTamperedLineBreaks() throws Exception {
+        PGPSignature signature = sign("one two", sAliceSecret, HashAlgorithmTags.SHA256);
+
+        assertFalse(verify(buildMessage("Hash: SHA256", "one\ntwo", signature), 0,
+                sAliceSecret));
+        assertFalse(verify(buildMessage("Hash: SHA256", "one two\n", signature), 0,
+                sAliceSecret));
+    }
+
+    @Test
+    public void testWrongSigner() throws Exception {
+        String text = "Hello World";
+        byte[] message = buildMessage("Hash: SHA256", text,
+                sign(text, sAliceSecret, HashAlgorithmTags.SHA256));
+
+        ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(message));
+        PgpCleartextVerifier verifier =
+                new PgpCleartextVerifier(aIn.getArmorHeaders(), new ByteArrayOutputStream());
+        verifier.process(aIn);
+        PGPSignature signature =
+                ((PGPSignatureList) new PGPObjectFactory(aIn).nextObject()).get(0);
+        signature.init(verifier.getContentVerifierBuilderProvider(),
+                TestKeyRings.getPublicKeyRing(sBobSecret).getPublicKey());
+
+        assertFalse(signature.verify());
+    }
+
+    @Test
+    public void testDashEscapedLines() throws Exception {
+        String text = "-----BEGIN PGP SIGNATURE-----\n- a list\n--\nno dash";
+        byte[] message = buildMessage("Hash: SHA256", text,
+                sign(text, sAliceSecret, HashAlgorithmTags.SHA256));
+
+        assertTrue(verify(message, 0, sAliceSecret));
+        assertEquals("-----BEGIN PGP SIGNATURE-----" + NL + "- a list" + NL + "--" + NL
+                + "no dash" + NL, mText);
+    }
+
+    @Test
+    public void testTrailingWhiteSpaceIsNotSigned() throws Exception {
+        PGPSignature signature = sign("first\nsecond\nthird", sAliceSecret,
+                HashAlgorithmTags.SHA256);
+        String text = "first \t\nsecond\t\nthird  ";
+
+        assertTrue(verify(buildMessage("Hash: SHA256", text, signature), 0, sAliceSecret));
+        // but it is written out
+        assertEquals("first \t" + NL + "second\t" + NL + "third  " + NL, mText);
+    }
+
+    @Test
+    public void testInnerWhiteSpaceIsSigned() throws Exception {
+        PGPSignature signature = sign("a b\n c", sAliceSecret, HashAlgorithmTags.SHA256);
+
+        assertTrue(verify(buildMessage("Hash: SHA256", "a b\n c", signature), 0,
+                sAliceSecret));
+        assertFalse(verify(buildMessage("Hash: SHA256", "a  b\n c", signature), 0,
+                sAliceSecret));
+        assertFalse(verify(buildMessage("Hash: SHA256", "a b\nc", signature), 0,
+                sAliceSecret));
+    }
+
+    @Test
+    public void testLineEndingsAndEmptyLines() throws Exception {
+        PGPSignature signature = sign("first\n\n\nlast\n", sAliceSecret,
+                HashAlgorithmTags.SHA256);
+        String text = "first\r\n\r\n\nlast\n";
+
+        assertTrue(verify(buildMessage("Hash: SHA256", text, signature), 0, sAliceSecret));
+        assertEquals("first" + NL + NL + NL + "last" + NL + NL, mText);
+    }
+
+    @Test
+    public void testMultipleHashHeaders() throws Exception {
+        String text = "Signed by Alice and Bob";
+        byte[] message = buildMessage("Hash: SHA1\r\nHash: SHA256,SHA512", text,
+                sign(text, sAliceSecret, HashAlgorithmTags.SHA1),
+                sign(text, sBobSecret, HashAlgorithmTags.SHA512));
+
+        assertTrue(verify(message, 0, sAliceSecret));
+        assertTrue(verify(message, 1, sBobSecret));
+        assertEquals(text + NL, mText);
+    }
+
+    @Test
+    public void testMissingHashHeaderMeansMd5() throws Exception {
+        String text = "Signed the old way";
+        byte[] message = buildMessage("", text, sign(text, sAliceSecret, HashAlgorithmTags.MD5));
+
+        assertTrue(verify(message, 0, sAliceSecret));
+    }
+
+    @Test
+    public void testUnannouncedHashAlgorithm() throws Exception {
+        String text = "Hello World";
+        byte[] message = buildMessage("Hash: SHA1", text,
+                sign(text, sAliceSecret, HashAlgorithmTags.SHA256));
+
+        try {
+            verify(message, 0, sAliceSecret);
+            fail("a signature with an unannounced hash algorithm must not be checked");
+        } catch (PGPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTextLargerThanBlock() throws Exception {
+        // trailing whitespace at the end of the first block, its CRLF split across blocks
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < BufferPool.BUFFER_SIZE - 2) {
+            builder.append('x');
+        }
+        builder.append(" \r\n");
+        for (int i = 0; i < 2000; ++i) {
+            builder.append("line ").append(i).append('\n');
+        }
+        String text = builder.toString();
+        byte[] message = buildMessage("Hash: SHA256", text,
+                sign(text, sAliceSecret, HashAlgorithmTags.SHA256));
+
+        assertTrue(verify(message, 0, sAliceSecret));
+        assertEquals(text.replace("\r\n", "\n").replace("\n", NL) + NL, mText);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.FakeApgProvider;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.provider.SubkeyIndex;
+import org.thialfihar.android.apg.util.InputData;
+import org.thialfihar.android.apg.util.IterableIterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Decrypts messages encrypted with stock BouncyCastle, several of them in one input
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpDecryptVerifyTest {
+
+    private static final String PASSPHRASE = "test";
+    private static final String SYMMETRIC_PASSPHRASE = "symmetric";
+
+    private static PGPSecretKeyRing sAliceSecret;
+    private static PGPSecretKeyRing sBobSecret;
+
+    private ProviderHelper mProviderHelper;
+    private PGPPublicKeyRing mAlice;
+    private PGPPublicKeyRing mBob;
+    private String mCachedPassphrase;
+    private int mPassphraseRequests;
+    private List<ByteArrayOutputStream> mOutputs;
+
+    @Before
+    public void setUp() throws Exception {
+        // key generation is slow, the key rings are shared by all tests
+        if (sAliceSecret == null) {
+            sAliceSecret = TestKeyRings.generate("Alice <alice@example.com>", PASSPHRASE);
+            sBobSecret = TestKeyRings.generate("Bob <bob@example.com>", PASSPHRASE);
+        }
+        mAlice = TestKeyRings.getPublicKeyRing(sAliceSecret);
+        mBob = TestKeyRings.getPublicKeyRing(sBobSecret);
+
+        FakeApgProvider.register();
+        mProviderHelper = new ProviderHelper(Robolectric.application);
+        mProviderHelper.getKeyRingCache().invalidateAll();
+        SubkeyIndex.getInstance(Robolectric.application).invalidateAll();
+        PrivateKeyCache.getInstance().clear();
+        // only Alice's secret key is available
+        mProviderHelper.saveKeyRing(mAlice, sAliceSecret);
+        mProviderHelper.saveKeyRing(mBob);
+
+        mCachedPassphrase = PASSPHRASE;
+        mPassphraseRequests = 0;
+        mOutputs = new ArrayList<ByteArrayOutputStream>();
+    }
+
+    private static PGPPublicKey getEncryptionSubkey(PGPPublicKeyRing keyRing) {
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            if (!key.isMasterKey()) {
+                return key;
+            }
+        }
+        throw new IllegalArgumentException("no subkey");
+    }
+
+    /**
+     * @param recipient null to encrypt with SYMMETRIC_PASSPHRASE
+     */
+    private static byte[] encrypt(String text, PGPPublicKeyRing recipient, boolean armor,
+                                  boolean integrity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream target = armor ? new ArmoredOutputStream(out) : out;
+
+        PGPEncryptedDataGenerator generator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_128)
+                        .setWithIntegrityPacket(integrity)
+                        .setSecureRandom(new SecureRandom())
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        if (recipient != null) {
+            generator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(
+                    getEncryptionSubkey(recipient))
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        } else {
+            generator.addMethod(new JcePBEKeyEncryptionMethodGenerator(
+                    SYMMETRIC_PASSPHRASE.toCharArray())
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        }
+
+        // partial packets, so the end of each message is only found by reading it
+        OutputStream encryptedOut = generator.open(target, new byte[1 << 10]);
+        PGPLiteralDataGenerator literalGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGenerator.open(encryptedOut, PGPLiteralData.BINARY, "",
+                new Date(), new byte[1 << 10]);
+        literalOut.write(text.getBytes("UTF-8"));
+        literalGenerator.close();
+        encryptedOut.close();
+        if (armor) {
+            target.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            out.write(message);
+        }
+        return out.toByteArray();
+    }
+
+    private PgpDecryptVerify.Builder builder(byte[] input) {
+        return new PgpDecryptVerify.Builder(mProviderHelper,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        ++mPassphraseRequests;
+                        return mCachedPassphrase;
+                    }
+                }, new InputData(new ByteArrayInputStream(input), input.length), null);
+    }
+
+    private List<PgpDecryptVerifyResult> decryptMulti(PgpDecryptVerify.Builder builder)
+            throws Exception {
+        return builder.build().executeMulti(new PgpDecryptVerify.MessageSink() {
+            @Override
+            public OutputStream open(int index) {
+                assertEquals(mOutputs.size(), index);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                mOutputs.add(out);
+                return out;
+            }
+        });
+    }
+
+    private String output(int index) throws Exception {
+        return mOutputs.get(index).toString("UTF-8");
+    }
+
+    @Test
+    public void testExecuteSingleMessage() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] input = encrypt("single", mAlice, true, true);
+
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(mProviderHelper,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        return PASSPHRASE;
+                    }
+                }, new InputData(new ByteArrayInputStream(input), input.length), out)
+                .build().execute();
+
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertEquals("single", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testMultiArmoredAndBinaryMessages() throws Exception {
+        byte[] input = concat(
+                encrypt("first", mAlice, true, true),
+                "\r\n\r\n".getBytes("UTF-8"),
+                encrypt("second", mAlice, true, true),
+                encrypt("third", mAlice, false, true),
+                encrypt("fourth", mAlice, true, true));
+
+        List<PgpDecryptVerifyResult> results = decryptMulti(builder(input));
+
+        assertEquals(4, results.size());
+        for (PgpDecryptVerifyResult result : results) {
+            assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        }
+        assertEquals("first", output(0));
+        assertEquals("second", output(1));
+        assertEquals("third", output(2));
+        assertEquals("fourth", output(3));
+    }
+
+    @Test
+    public void testMultiMessageWithoutIntegrityProtection() throws Exception {
+        byte[] input = concat(
+                encrypt("unprotected", mAlice, false, false),
+                encrypt("after", mAlice, false, true));
+
+        List<PgpDecryptVerifyResult> results = decryptMulti(builder(input));
+
+        assertEquals(2, results.size());
+        assertEquals("unprotected", output(0));
+        assertEquals("after", output(1));
+    }
+
+    @Test
+    public void testMultiWithExplicitPassphrase() throws Exception {
+        byte[] input = concat(
+                encrypt("first", null, true, true),
+                encrypt("second", null, false, true));
+
+        List<PgpDecryptVerifyResult> results = decryptMulti(builder(input)
+                .setPassphrase(SYMMETRIC_PASSPHRASE));
+
+        assertEquals(2, results.size());
+        assertEquals("first", output(0));
+        assertEquals("second", output(1));
+    }
+
+    @Test
+    public void testMultiStopsAtMissingPassphrase() throws Exception {
+        byte[] input = concat(
+                encrypt("first", mAlice, true, true),
+                encrypt("second", null, true, true),
+                encrypt("third", mAlice, true, true));
+
+        List<PgpDecryptVerifyResult> results = decryptMulti(builder(input));
+
+        assertEquals(2, results.size());
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, results.get(0).getStatus());
+        assertEquals("first", output(0));
+        assertEquals(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED, results.get(1).getStatus());
+    }
+
+    @Test
+    public void testMultiKeyPassphraseNeeded() throws Exception {
+        mCachedPassphrase = null;
+        byte[] input = concat(
+                encrypt("first", mAlice, true, true),
+                encrypt("second", mAlice, true, true));
+
+        List<PgpDecryptVerifyResult> results = decryptMulti(builder(input));
+
+        assertEquals(1, results.size());
+        assertEquals(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED, results.get(0).getStatus());
+        assertEquals(mAlice.getPublicKey().getKeyID(),
+                results.get(0).getKeyIdPassphraseNeeded());
+    }
+
+    @Test
+    public void testMultiAsksForPassphraseOfEveryMessage() throws Exception {
+        byte[] input = concat(
+                encrypt("first", mAlice, true, true),
+                encrypt("second", mAlice, true, true),
+                encrypt("third", mAlice, true, true));
+
+        decryptMulti(builder(input));
+
+        // a cached passphrase isn't carried over to the next message
+        assertEquals(3, mPassphraseRequests);
+    }
+
+    @Test
+    public void testMultiFailsOnMessageWithoutSecretKey() throws Exception {
+        byte[] input = concat(
+                encrypt("first", mAlice, true, true),
+                encrypt("for bob", mBob, true, true),
+                encrypt("third", mAlice, true, true));
+
+        try {
+            decryptMulti(builder(input));
+            fail("decrypted a message without having the secret key");
+        } catch (PgpDecryptVerify.NoSecretKeyException e) {
+            // expected
+        }
+        assertEquals("first", output(0));
+    }
+
+    @Test
+    public void testMultiEmptyInput() throws Exception {
+        List<PgpDecryptVerifyResult> results = decryptMulti(builder(
+                " \r\n".getBytes("UTF-8")));
+
+        assertEquals(0, results.size());
+        assertEquals(0, mOutputs.size());
+    }
+}
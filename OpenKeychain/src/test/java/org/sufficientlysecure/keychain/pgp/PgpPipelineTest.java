@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpPipelineTest {
+
+    private static class CollectingStage implements PgpPipeline.Stage {
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        @Override
+        public void process(byte[] buffer, int length) {
+            mOut.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Slow stage keeping track of whether it is still processing
+     */
+    private static class SlowStage implements PgpPipeline.Stage {
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mCalls = new AtomicInteger();
+
+        @Override
+        public void process(byte[] buffer, int length) throws IOException {
+            mActive.incrementAndGet();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                mCalls.incrementAndGet();
+                mActive.decrementAndGet();
+            }
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testAllStagesGetAllData() throws Exception {
+        byte[] data = randomBytes(1000 * 1000);
+        CollectingStage first = new CollectingStage();
+        CollectingStage second = new CollectingStage();
+
+        long done = PgpPipeline.run(new ByteArrayInputStream(data), null, first, second);
+
+        assertEquals(data.length, done);
+        assertArrayEquals(data, first.mOut.toByteArray());
+        assertArrayEquals(data, second.mOut.toByteArray());
+    }
+
+    @Test
+    public void testReadFailureWaitsForStages() throws Exception {
+        final byte[] data = randomBytes(64 * 1024);
+        InputStream in = new InputStream() {
+            private int mReads = 0;
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (++mReads > 4) {
+                    throw new IOException("read failed");
+                }
+                int n = Math.min(length, data.length);
+                System.arraycopy(data, 0, buffer, offset, n);
+                return n;
+            }
+        };
+        SlowStage first = new SlowStage();
+        SlowStage second = new SlowStage();
+
+        try {
+            PgpPipeline.run(in, null, first, second);
+            fail("read failure wasn't propagated");
+        } catch (IOException e) {
+            assertEquals("read failed", e.getMessage());
+        }
+
+        // nothing is processed anymore once run returns
+        assertEquals(0, first.mActive.get());
+        assertEquals(0, second.mActive.get());
+        int firstCalls = first.mCalls.get();
+        int secondCalls = second.mCalls.get();
+        Thread.sleep(100);
+        assertEquals(firstCalls, first.mCalls.get());
+        assertEquals(secondCalls, second.mCalls.get());
+    }
+
+    @Test
+    public void testStageFailureIsPropagated() throws Exception {
+        CollectingStage other = new CollectingStage();
+        try {
+            PgpPipeline.run(new ByteArrayInputStream(randomBytes(1000 * 1000)), null,
+                    new PgpPipeline.Stage() {
+                        @Override
+                        public void process(byte[] buffer, int length) throws IOException {
+                            throw new IOException("stage failed");
+                        }
+                    }, other);
+            fail("stage failure wasn't propagated");
+        } catch (IOException e) {
+            assertEquals("stage failed", e.getMessage());
+        }
+    }
+}
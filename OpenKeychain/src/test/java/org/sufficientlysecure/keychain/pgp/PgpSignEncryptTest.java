@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureList;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.FakeApgProvider;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.provider.SubkeyIndex;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Clearsigns texts and checks the result with stock BouncyCastle
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpSignEncryptTest {
+
+    private static final String PASSPHRASE = "test";
+
+    private static PGPSecretKeyRing sAliceSecret;
+
+    private ProviderHelper mProviderHelper;
+    private PGPPublicKeyRing mAlice;
+    private String mText;
+
+    @Before
+    public void setUp() throws Exception {
+        // key generation is slow, the key ring is shared by all tests
+        if (sAliceSecret == null) {
+            sAliceSecret = TestKeyRings.generate("Alice <alice@example.com>", PASSPHRASE);
+        }
+        mAlice = TestKeyRings.getPublicKeyRing(sAliceSecret);
+
+        FakeApgProvider.register();
+        mProviderHelper = new ProviderHelper(Robolectric.application);
+        mProviderHelper.getKeyRingCache().invalidateAll();
+        SubkeyIndex.getInstance(Robolectric.application).invalidateAll();
+        mProviderHelper.saveKeyRing(mAlice, sAliceSecret);
+    }
+
+    private byte[] clearSign(String text, boolean forceV3) throws Exception {
+        byte[] data = text.getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(mProviderHelper, "Test",
+                new InputData(new ByteArrayInputStream(data), data.length), out)
+                .setEnableAsciiArmorOutput(true)
+                .setCleartextInput(true)
+                .setSignatureMasterKeyId(mAlice.getPublicKey().getKeyID())
+                .setSignatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .setSignatureForceV3(forceV3)
+                .setSignaturePassphrase(PASSPHRASE)
+                .build()
+                .execute();
+        return out.toByteArray();
+    }
+
+    /**
+     * Verifies message as http://tools.ietf.org/html/rfc4880#section-7 describes it, with no
+     * APG code involved, the text without its final line ending is left in mText
+     *
+     * @return whether the signature is valid
+     */
+    private boolean verify(byte[] message) throws Exception {
+        ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(message));
+        ByteArrayOutputStream clearText = new ByteArrayOutputStream();
+        int ch;
+        while ((ch = aIn.read()) >= 0 && aIn.isClearText()) {
+            clearText.write(ch);
+        }
+        // the line ending before the signature belongs to the armor
+        String text = clearText.toString("UTF-8").replaceFirst("(\r\n|\r|\n)$", "");
+        mText = text;
+
+        PGPSignature signature =
+                ((PGPSignatureList) new PGPObjectFactory(aIn).nextObject()).get(0);
+        assertEquals(PGPSignature.CANONICAL_TEXT_DOCUMENT, signature.getSignatureType());
+        signature.init(new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME),
+                mAlice.getPublicKey(signature.getKeyID()));
+
+        String[] lines = text.split("\r\n|\r|\n", -1);
+        for (int i = 0; i < lines.length; ++i) {
+            if (i > 0) {
+                signature.update(new byte[]{'\r', '\n'});
+            }
+            signature.update(lines[i].replaceAll("[ \t]+$", "").getBytes("UTF-8"));
+        }
+        return signature.verify();
+    }
+
+    @Test
+    public void testClearSign() throws Exception {
+        assertTrue(verify(clearSign("Hello World\nThis is signed.\n", false)));
+        assertEquals("Hello World\r\nThis is signed.", mText);
+    }
+
+    @Test
+    public void testClearSignV3() throws Exception {
+        assertTrue(verify(clearSign("Hello World\nThis is signed.\n", true)));
+        assertEquals("Hello World\r\nThis is signed.", mText);
+    }
+
+    @Test
+    public void testClearSignDashLines() throws Exception {
+        String text = "-----BEGIN PGP SIGNATURE-----\r\n- item\r\n-\r\n--\r\nno dash";
+        byte[] message = clearSign(text + "\r\n", false);
+
+        assertTrue(new String(message, "UTF-8").contains("- -----BEGIN PGP SIGNATURE-----\r\n"));
+        assertTrue(verify(message));
+        assertEquals(text, mText);
+    }
+
+    @Test
+    public void testClearSignTrailingWhiteSpace() throws Exception {
+        assertTrue(verify(clearSign("tab\t\nspace \nboth \t \n inner space\n", false)));
+        // trailing whitespace isn't signed, so it isn't written either
+        assertEquals("tab\r\nspace\r\nboth\r\n inner space", mText);
+    }
+
+    @Test
+    public void testClearSignLoneCr() throws Exception {
+        assertTrue(verify(clearSign("old\rmac\r\rline endings\r", false)));
+        assertEquals("old\r\nmac\r\n\r\nline endings", mText);
+    }
+
+    @Test
+    public void testClearSignEmptyInput() throws Exception {
+        assertTrue(verify(clearSign("", false)));
+        assertEquals("", mText);
+    }
+
+    @Test
+    public void testClearSignWithoutFinalNewLine() throws Exception {
+        assertTrue(verify(clearSign("first\nlast", false)));
+        assertEquals("first\r\nlast", mText);
+
+        assertTrue(verify(clearSign("last with space ", false)));
+        assertEquals("last with space", mText);
+    }
+
+    @Test
+    public void testClearSignEmptyLines() throws Exception {
+        assertTrue(verify(clearSign("\n\nmiddle\n\n\n", false)));
+        assertEquals("\r\n\r\nmiddle\r\n\r\n", mText);
+    }
+}
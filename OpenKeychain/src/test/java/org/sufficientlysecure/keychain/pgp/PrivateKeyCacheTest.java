@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.service.PassphraseCache;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class PrivateKeyCacheTest {
+
+    private static final String PASSPHRASE = "test";
+
+    private static PGPSecretKeyRing sAliceSecret;
+
+    private Context mContext;
+    private PrivateKeyCache mCache;
+    private long mMasterKeyId;
+    private PGPSecretKey mKey;
+
+    @Before
+    public void setUp() throws Exception {
+        // key generation is slow, the key ring is shared by all tests
+        if (sAliceSecret == null) {
+            sAliceSecret = TestKeyRings.generate("Alice <alice@example.com>", PASSPHRASE);
+        }
+        mContext = Robolectric.application;
+        Preferences.getPreferences(mContext).setPassphraseCacheTtl(180);
+        mCache = PrivateKeyCache.getInstance();
+        mCache.clear();
+        mMasterKeyId = sAliceSecret.getPublicKey().getKeyID();
+        mKey = sAliceSecret.getSecretKey();
+    }
+
+    private static PGPSecretKey changePassphrase(PGPSecretKey key, String oldPassphrase,
+                                                 String newPassphrase) throws Exception {
+        return PGPSecretKey.copyWithNewPassword(key,
+                new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(oldPassphrase.toCharArray()),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5,
+                        new JcaPGPDigestCalculatorProviderBuilder().build()
+                                .get(HashAlgorithmTags.SHA1))
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(newPassphrase.toCharArray()));
+    }
+
+    @Test
+    public void testKeyIsCached() throws Exception {
+        PGPPrivateKey key = mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+
+        assertSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE));
+    }
+
+    @Test
+    public void testKeyIsCachedForever() throws Exception {
+        // the "forever" choice of the passphrase cache ttl
+        Preferences.getPreferences(mContext).setPassphraseCacheTtl(-1);
+
+        PGPPrivateKey key = mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+
+        assertSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE));
+    }
+
+    @Test
+    public void testWrongPassphraseIsNotServed() throws Exception {
+        mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+
+        try {
+            mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, "wrong");
+            fail("unlocked with a wrong passphrase");
+        } catch (PGPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChangedSecretKeyIsNotServed() throws Exception {
+        PGPPrivateKey key = mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+        PGPSecretKey changed = changePassphrase(mKey, PASSPHRASE, "changed");
+
+        // same key id, but the old passphrase doesn't unlock it anymore
+        try {
+            mCache.extractPrivateKey(mContext, mMasterKeyId, changed, PASSPHRASE);
+            fail("unlocked with the old passphrase");
+        } catch (PGPException e) {
+            // expected
+        }
+        assertNotSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, changed, "changed"));
+    }
+
+    @Test
+    public void testRemovedPassphraseDropsKeys() throws Exception {
+        PGPPrivateKey key = mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+
+        PassphraseCache.getInstance().remove(mMasterKeyId + 1);
+        assertSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE));
+
+        PassphraseCache.getInstance().remove(mMasterKeyId);
+        assertNotSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE));
+    }
+
+    @Test
+    public void testExpiredPassphraseDropsKeys() throws Exception {
+        PassphraseCache.getInstance().put(mMasterKeyId, PASSPHRASE, 1);
+        PGPPrivateKey key = mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+
+        SystemClock.sleep(1500);
+        assertNull(PassphraseCache.getInstance().get(mMasterKeyId));
+
+        assertNotSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE));
+    }
+
+    @Test
+    public void testClearedPassphrasesDropKeys() throws Exception {
+        PGPPrivateKey key = mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE);
+
+        PassphraseCache.getInstance().clear();
+
+        assertNotSame(key, mCache.extractPrivateKey(mContext, mMasterKeyId, mKey, PASSPHRASE));
+    }
+}
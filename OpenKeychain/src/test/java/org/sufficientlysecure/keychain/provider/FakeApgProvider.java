@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.thialfihar.android.apg.provider.ApgContract.Certs;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRingData;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.provider.ApgContract.Keys;
+import org.thialfihar.android.apg.provider.ApgContract.UserIds;
+import org.thialfihar.android.apg.provider.ApgContract.VerifiedSignatures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the key ring tables of ApgProvider in memory, for tests of ProviderHelper under
+ * Robolectric, whose SQLite can't create the full text search table. Inserts violating a
+ * constraint fail the way ApgProvider's do, and a failing batch is rolled back.
+ */
+public class FakeApgProvider extends ContentProvider {
+
+    private static class Tables {
+        final Map<Long, byte[]> publicKeyRings = new TreeMap<Long, byte[]>();
+        final Map<Long, byte[]> secretKeyRings = new TreeMap<Long, byte[]>();
+        final List<ContentValues> keys = new ArrayList<ContentValues>();
+        final List<ContentValues> userIds = new ArrayList<ContentValues>();
+        final List<ContentValues> certs = new ArrayList<ContentValues>();
+        final List<ContentValues> verifiedSignatures = new ArrayList<ContentValues>();
+
+        Tables copy() {
+            Tables copy = new Tables();
+            copy.publicKeyRings.putAll(publicKeyRings);
+            copy.secretKeyRings.putAll(secretKeyRings);
+            copyRows(keys, copy.keys);
+            copyRows(userIds, copy.userIds);
+            copyRows(certs, copy.certs);
+            copyRows(verifiedSignatures, copy.verifiedSignatures);
+            return copy;
+        }
+
+        private static void copyRows(List<ContentValues> from, List<ContentValues> to) {
+            for (ContentValues values : from) {
+                to.add(new ContentValues(values));
+            }
+        }
+    }
+
+    private Tables mTables = new Tables();
+    private final List<Uri> mWrites = new ArrayList<Uri>();
+    private int mBatches = 0;
+    private int mFailedBatches = 0;
+
+    /**
+     * @return a provider serving ApgContract.CONTENT_AUTHORITY to the resolvers of the test
+     */
+    public static FakeApgProvider register() {
+        FakeApgProvider provider = new FakeApgProvider();
+        provider.onCreate();
+        ShadowContentResolver.registerProvider(ApgContract.CONTENT_AUTHORITY, provider);
+        return provider;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    /**
+     * @return uris of all successful inserts, updates and deletes of key ring data, in order
+     */
+    public synchronized List<Uri> getWrites() {
+        return new ArrayList<Uri>(mWrites);
+    }
+
+    public synchronized void clearWrites() {
+        mWrites.clear();
+    }
+
+    /**
+     * @return number of batches which wrote key ring data
+     */
+    public synchronized int getBatches() {
+        return mBatches;
+    }
+
+    public synchronized int getFailedBatches() {
+        return mFailedBatches;
+    }
+
+    public synchronized List<ContentValues> getKeys(long masterKeyId) {
+        return filter(mTables.keys, Keys.MASTER_KEY_ID, masterKeyId, Keys.RANK);
+    }
+
+    public synchronized List<ContentValues> getUserIds(long masterKeyId) {
+        return filter(mTables.userIds, UserIds.MASTER_KEY_ID, masterKeyId, UserIds.RANK);
+    }
+
+    public synchronized List<ContentValues> getCerts(long masterKeyId) {
+        return filter(mTables.certs, Certs.MASTER_KEY_ID, masterKeyId, Certs.RANK);
+    }
+
+    public synchronized byte[] getPublicKeyRing(long masterKeyId) {
+        return mTables.publicKeyRings.get(masterKeyId);
+    }
+
+    public synchronized byte[] getSecretKeyRing(long masterKeyId) {
+        return mTables.secretKeyRings.get(masterKeyId);
+    }
+
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        Tables snapshot = mTables.copy();
+        int writes = mWrites.size();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            if (mWrites.size() > writes) {
+                ++mBatches;
+            }
+            return results;
+        } catch (OperationApplicationException e) {
+            // roll back, like the transaction of ApgProvider
+            mTables = snapshot;
+            mWrites.subList(writes, mWrites.size()).clear();
+            ++mFailedBatches;
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder) {
+        List<String> segments = uri.getPathSegments();
+        MatrixCursor cursor = new MatrixCursor(projection);
+        if (segments.get(0).equals(ApgContract.BASE_VERIFIED_SIGNATURES)) {
+            addRows(cursor, mTables.verifiedSignatures, projection);
+            return cursor;
+        }
+
+        String table = segments.get(segments.size() - 1);
+        Long masterKeyId = segments.size() == 3 ? Long.parseLong(segments.get(1)) : null;
+        if (table.equals(ApgContract.PATH_PUBLIC) || table.equals(ApgContract.PATH_SECRET)) {
+            Map<Long, byte[]> keyRings = table.equals(ApgContract.PATH_PUBLIC)
+                    ? mTables.publicKeyRings : mTables.secretKeyRings;
+            List<String> ids = selectionArgs != null ? Arrays.asList(selectionArgs) : null;
+            for (Map.Entry<Long, byte[]> entry : keyRings.entrySet()) {
+                if ((masterKeyId == null || masterKeyId.equals(entry.getKey()))
+                        && (ids == null || ids.contains(entry.getKey().toString()))) {
+                    ContentValues values = new ContentValues();
+                    values.put(KeyRingData.MASTER_KEY_ID, entry.getKey());
+                    values.put(KeyRingData.KEY_RING_DATA, entry.getValue());
+                    addRow(cursor, values, projection);
+                }
+            }
+        } else if (table.equals(ApgContract.PATH_KEYS)) {
+            List<ContentValues> keys = filter(mTables.keys, Keys.MASTER_KEY_ID, masterKeyId,
+                    Keys.RANK);
+            // the sort is stable, so this orders by master key id and rank
+            addRows(cursor, sorted(keys, Keys.MASTER_KEY_ID), projection);
+        } else if (table.equals(ApgContract.PATH_USER_IDS)) {
+            addRows(cursor, filter(mTables.userIds, UserIds.MASTER_KEY_ID, masterKeyId,
+                    UserIds.RANK), projection);
+        } else if (table.equals(ApgContract.PATH_CERTS)) {
+            addRows(cursor, filter(mTables.certs, Certs.MASTER_KEY_ID, masterKeyId, Certs.RANK),
+                    projection);
+        } else if (table.equals(ApgContract.PATH_UNIFIED) && masterKeyId != null) {
+            // only the master key with its primary user id, unlike the real summary table
+            List<ContentValues> keys = filter(mTables.keys, Keys.MASTER_KEY_ID, masterKeyId,
+                    Keys.RANK);
+            if (!keys.isEmpty()) {
+                ContentValues values = new ContentValues(keys.get(0));
+                List<ContentValues> userIds = filter(mTables.userIds, UserIds.MASTER_KEY_ID,
+                        masterKeyId, UserIds.RANK);
+                if (!userIds.isEmpty()) {
+                    values.put(KeyRings.USER_ID, userIds.get(0).getAsString(UserIds.USER_ID));
+                }
+                values.put(KeyRings.HAS_ANY_SECRET,
+                        mTables.secretKeyRings.containsKey(masterKeyId));
+                addRow(cursor, values, projection);
+            }
+        } else {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        values = new ContentValues(values);
+        List<String> segments = uri.getPathSegments();
+        if (segments.get(0).equals(ApgContract.BASE_VERIFIED_SIGNATURES)) {
+            removeMatching(mTables.verifiedSignatures, values,
+                    VerifiedSignatures.DIGEST, VerifiedSignatures.ISSUER_FINGERPRINT);
+            mTables.verifiedSignatures.add(values);
+            return uri;
+        }
+
+        String table = segments.get(2);
+        long masterKeyId = Long.parseLong(segments.get(1));
+        if (table.equals(ApgContract.PATH_PUBLIC)) {
+            if (mTables.publicKeyRings.containsKey(masterKeyId)) {
+                return null;
+            }
+            mTables.publicKeyRings.put(masterKeyId, values.getAsByteArray(KeyRingData.KEY_RING_DATA));
+        } else if (table.equals(ApgContract.PATH_SECRET)) {
+            // replaces, as in ApgProvider
+            mTables.secretKeyRings.put(masterKeyId, values.getAsByteArray(KeyRingData.KEY_RING_DATA));
+        } else if (table.equals(ApgContract.PATH_KEYS)) {
+            if (!mTables.publicKeyRings.containsKey(masterKeyId)
+                    || !find(mTables.keys, values, Keys.MASTER_KEY_ID, Keys.RANK).isEmpty()) {
+                return null;
+            }
+            mTables.keys.add(values);
+        } else if (table.equals(ApgContract.PATH_USER_IDS)) {
+            if (!mTables.publicKeyRings.containsKey(masterKeyId)
+                    || !find(mTables.userIds, values, UserIds.MASTER_KEY_ID, UserIds.RANK).isEmpty()
+                    || !find(mTables.userIds, values, UserIds.MASTER_KEY_ID, UserIds.USER_ID)
+                    .isEmpty()) {
+                return null;
+            }
+            mTables.userIds.add(values);
+        } else if (table.equals(ApgContract.PATH_CERTS)) {
+            if (find(mTables.userIds, values, UserIds.MASTER_KEY_ID, UserIds.RANK).isEmpty()) {
+                return null;
+            }
+            // replaces, as in ApgProvider
+            removeMatching(mTables.certs, values,
+                    Certs.MASTER_KEY_ID, Certs.RANK, Certs.KEY_ID_CERTIFIER);
+            mTables.certs.add(values);
+        } else {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        mWrites.add(uri);
+        return KeyRings.buildGenericKeyRingUri(Long.toString(masterKeyId));
+    }
+
+    @Override
+    public synchronized int update(Uri uri, ContentValues values, String selection,
+                                   String[] selectionArgs) {
+        List<String> segments = uri.getPathSegments();
+        String table = segments.get(2);
+        long masterKeyId = Long.parseLong(segments.get(1));
+        int count = 0;
+        if (table.equals(ApgContract.PATH_PUBLIC)) {
+            if (mTables.publicKeyRings.containsKey(masterKeyId)) {
+                mTables.publicKeyRings.put(masterKeyId,
+                        values.getAsByteArray(KeyRingData.KEY_RING_DATA));
+                count = 1;
+            }
+        } else if (table.equals(ApgContract.PATH_KEYS)) {
+            for (ContentValues row : select(mTables.keys, masterKeyId, selection, selectionArgs)) {
+                row.putAll(values);
+                ++count;
+            }
+        } else {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        if (count > 0) {
+            mWrites.add(uri);
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+        List<String> segments = uri.getPathSegments();
+        String table = segments.get(2);
+        long masterKeyId = Long.parseLong(segments.get(1));
+        List<ContentValues> rows;
+        if (table.equals(ApgContract.PATH_KEYS)) {
+            rows = select(mTables.keys, masterKeyId, selection, selectionArgs);
+            mTables.keys.removeAll(rows);
+        } else if (table.equals(ApgContract.PATH_USER_IDS)) {
+            rows = select(mTables.userIds, masterKeyId, selection, selectionArgs);
+            mTables.userIds.removeAll(rows);
+            // on delete cascade
+            for (ContentValues userId : rows) {
+                mTables.certs.removeAll(find(mTables.certs, userId,
+                        Certs.MASTER_KEY_ID, Certs.RANK));
+            }
+        } else if (table.equals(ApgContract.PATH_CERTS) && segments.size() == 5) {
+            // key_rings/<masterKeyId>/certs/<rank>/<certifier>
+            ContentValues key = new ContentValues();
+            key.put(Certs.MASTER_KEY_ID, masterKeyId);
+            key.put(Certs.RANK, Integer.parseInt(segments.get(3)));
+            key.put(Certs.KEY_ID_CERTIFIER, Long.parseLong(segments.get(4)));
+            rows = find(mTables.certs, key, Certs.MASTER_KEY_ID, Certs.RANK,
+                    Certs.KEY_ID_CERTIFIER);
+            mTables.certs.removeAll(rows);
+        } else {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        if (!rows.isEmpty()) {
+            mWrites.add(uri);
+        }
+        return rows.size();
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    /**
+     * Supports the selections ProviderHelper uses, a single "column = ?" or none at all
+     */
+    private static List<ContentValues> select(List<ContentValues> rows, long masterKeyId,
+                                              String selection, String[] selectionArgs) {
+        List<ContentValues> result = new ArrayList<ContentValues>();
+        String column = null;
+        if (selection != null) {
+            if (!selection.endsWith(" = ?") || selectionArgs.length != 1) {
+                throw new UnsupportedOperationException("Unsupported selection: " + selection);
+            }
+            column = selection.substring(0, selection.length() - 4).trim();
+        }
+        for (ContentValues row : rows) {
+            if (row.getAsLong(Keys.MASTER_KEY_ID) == masterKeyId
+                    && (column == null || row.getAsString(column).equals(selectionArgs[0]))) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    private static List<ContentValues> find(List<ContentValues> rows, ContentValues key,
+                                            String... columns) {
+        List<ContentValues> result = new ArrayList<ContentValues>();
+        for (ContentValues row : rows) {
+            boolean matches = true;
+            for (String column : columns) {
+                matches &= row.getAsString(column).equals(key.getAsString(column));
+            }
+            if (matches) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    private static void removeMatching(List<ContentValues> rows, ContentValues key,
+                                       String... columns) {
+        rows.removeAll(find(rows, key, columns));
+    }
+
+    private static List<ContentValues> filter(List<ContentValues> rows, String column,
+                                              Long masterKeyId, String orderColumn) {
+        List<ContentValues> result = new ArrayList<ContentValues>();
+        for (ContentValues row : rows) {
+            if (masterKeyId == null || row.getAsLong(column).equals(masterKeyId)) {
+                result.add(new ContentValues(row));
+            }
+        }
+        return sorted(result, orderColumn);
+    }
+
+    private static List<ContentValues> sorted(List<ContentValues> rows, final String column) {
+        List<ContentValues> result = new ArrayList<ContentValues>(rows);
+        Collections.sort(result, new Comparator<ContentValues>() {
+            @Override
+            public int compare(ContentValues lhs, ContentValues rhs) {
+                return lhs.getAsLong(column).compareTo(rhs.getAsLong(column));
+            }
+        });
+        return result;
+    }
+
+    private static void addRows(MatrixCursor cursor, List<ContentValues> rows,
+                                String[] projection) {
+        for (ContentValues values : rows) {
+            addRow(cursor, values, projection);
+        }
+    }
+
+    private static void addRow(MatrixCursor cursor, ContentValues values, String[] projection) {
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; ++i) {
+            Object value = values.get(projection[i]);
+            // stored as in sqlite
+            row[i] = value instanceof Boolean ? ((Boolean) value ? 1 : 0) : value;
+        }
+        cursor.addRow(row);
+    }
+}
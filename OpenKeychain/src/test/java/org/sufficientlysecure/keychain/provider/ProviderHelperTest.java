@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.pgp.PgpCertificationVerifier;
+import org.thialfihar.android.apg.provider.ApgContract.Certs;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRingData;
+import org.thialfihar.android.apg.provider.ApgContract.Keys;
+import org.thialfihar.android.apg.provider.ApgContract.UserIds;
+import org.thialfihar.android.apg.util.IterableIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class ProviderHelperTest {
+
+    private static final String PASSPHRASE = "test";
+
+    private static PGPSecretKeyRing sAliceSecret;
+    private static PGPSecretKeyRing sBobSecret;
+
+    private FakeApgProvider mProvider;
+    private ProviderHelper mProviderHelper;
+    private PGPPublicKeyRing mAlice;
+    private PGPPublicKeyRing mBob;
+
+    @Before
+    public void setUp() throws Exception {
+        // key generation is slow, the key rings are shared by all tests
+        if (sAliceSecret == null) {
+            sAliceSecret = TestKeyRings.generate("Alice <alice@example.com>", PASSPHRASE);
+            sBobSecret = TestKeyRings.generate("Bob <bob@example.com>", PASSPHRASE);
+        }
+        mAlice = TestKeyRings.getPublicKeyRing(sAliceSecret);
+        mBob = TestKeyRings.getPublicKeyRing(sBobSecret);
+
+        mProvider = FakeApgProvider.register();
+        mProviderHelper = new ProviderHelper(Robolectric.application);
+        // the caches are shared by the whole process, forget what previous tests stored
+        mProviderHelper.getKeyRingCache().invalidateAll();
+        SubkeyIndex.getInstance(Robolectric.application).invalidateAll();
+    }
+
+    private static String id(PGPPublicKeyRing keyRing) {
+        return Long.toString(keyRing.getPublicKey().getKeyID());
+    }
+
+    @Test
+    public void testSaveInsertsKeyRing() throws Exception {
+        long masterKeyId = mAlice.getPublicKey().getKeyID();
+
+        mProviderHelper.saveKeyRing(mAlice);
+
+        assertArrayEquals(mAlice.getEncoded(), mProvider.getPublicKeyRing(masterKeyId));
+        List<ContentValues> keys = mProvider.getKeys(masterKeyId);
+        assertEquals(2, keys.size());
+        assertEquals(masterKeyId, (long) keys.get(0).getAsLong(Keys.KEY_ID));
+        assertFalse(keys.get(0).getAsBoolean(Keys.HAS_SECRET));
+        assertTrue(keys.get(1).getAsBoolean(Keys.CAN_ENCRYPT));
+        List<ContentValues> userIds = mProvider.getUserIds(masterKeyId);
+        assertEquals(1, userIds.size());
+        assertEquals("alice@example.com", userIds.get(0).getAsString(UserIds.EMAIL));
+        List<ContentValues> certs = mProvider.getCerts(masterKeyId);
+        assertEquals(1, certs.size());
+        assertEquals(Certs.VERIFIED_SELF, (int) certs.get(0).getAsInteger(Certs.VERIFIED));
+        assertEquals(1, mProvider.getBatches());
+        assertEquals(masterKeyId, mProviderHelper.getMasterKeyIdBySubkey(
+                keys.get(1).getAsLong(Keys.KEY_ID)));
+    }
+
+    @Test
+    public void testSaveUnchangedKeyRingWritesNothing() throws Exception {
+        mProviderHelper.saveKeyRing(mAlice);
+        mProvider.clearWrites();
+
+        mProviderHelper.saveKeyRing(mAlice);
+
+        assertEquals(new ArrayList<Uri>(), mProvider.getWrites());
+        assertEquals(1, mProvider.getBatches());
+    }
+
+    @Test
+    public void testSaveWritesOnlyNewCerts() throws Exception {
+        // certifications by Bob are trusted once his secret key ring is saved
+        mProviderHelper.saveKeyRing(mBob, sBobSecret);
+        mProviderHelper.saveKeyRing(mAlice);
+        mProvider.clearWrites();
+
+        PGPPublicKeyRing certified = TestKeyRings.certify(mAlice, sBobSecret, PASSPHRASE);
+        mProviderHelper.saveKeyRing(certified);
+
+        long aliceId = mAlice.getPublicKey().getKeyID();
+        assertEquals(Arrays.asList(KeyRingData.buildPublicKeyRingUri(id(mAlice)),
+                Certs.buildCertsUri(id(mAlice))), mProvider.getWrites());
+        assertArrayEquals(certified.getEncoded(), mProvider.getPublicKeyRing(aliceId));
+        List<ContentValues> certs = mProvider.getCerts(aliceId);
+        assertEquals(2, certs.size());
+        boolean bobCertified = false;
+        for (ContentValues cert : certs) {
+            if (cert.getAsLong(Certs.KEY_ID_CERTIFIER) == mBob.getPublicKey().getKeyID()) {
+                assertEquals(Certs.VERIFIED_SECRET, (int) cert.getAsInteger(Certs.VERIFIED));
+                bobCertified = true;
+            }
+        }
+        assertTrue(bobCertified);
+    }
+
+    @Test
+    public void testSaveReplacesChangedUserIdsOnly() throws Exception {
+        mProviderHelper.saveKeyRing(mAlice);
+        mProvider.clearWrites();
+
+        PGPPublicKeyRing changed = TestKeyRings.addUserId(mAlice, sAliceSecret, PASSPHRASE,
+                "Alice <alice@work.example.com>");
+        mProviderHelper.saveKeyRing(changed);
+
+        long masterKeyId = mAlice.getPublicKey().getKeyID();
+        Uri keysUri = Keys.buildKeysUri(id(mAlice));
+        for (Uri uri : mProvider.getWrites()) {
+            assertFalse("keys didn't change: " + uri, uri.equals(keysUri));
+        }
+        assertTrue(mProvider.getWrites().contains(UserIds.buildUserIdsUri(id(mAlice))));
+        assertEquals(2, mProvider.getUserIds(masterKeyId).size());
+        assertEquals(2, mProvider.getCerts(masterKeyId).size());
+        assertEquals(2, mProvider.getKeys(masterKeyId).size());
+    }
+
+    @Test
+    public void testSaveSecretKeyRingMarksItsKeys() throws Exception {
+        long masterKeyId = mAlice.getPublicKey().getKeyID();
+        mProviderHelper.saveKeyRing(mAlice);
+
+        mProviderHelper.saveKeyRing(sAliceSecret);
+
+        assertArrayEquals(sAliceSecret.getEncoded(), mProvider.getSecretKeyRing(masterKeyId));
+        for (ContentValues key : mProvider.getKeys(masterKeyId)) {
+            assertEquals(1, (int) key.getAsInteger(Keys.HAS_SECRET));
+            assertEquals(Keys.PROTECTION_PASSPHRASE,
+                    (int) key.getAsInteger(Keys.SECRET_PROTECTION));
+        }
+        assertTrue(mProviderHelper.hasSecretSubkey(masterKeyId));
+    }
+
+    private List<ProviderHelper.VerifiedKeyRing> verify(PGPPublicKeyRing... keyRings) {
+        PgpCertificationVerifier verifier = mProviderHelper.createCertificationVerifier();
+        List<ProviderHelper.VerifiedKeyRing> result =
+                new ArrayList<ProviderHelper.VerifiedKeyRing>();
+        for (PGPPublicKeyRing keyRing : keyRings) {
+            result.add(mProviderHelper.verifyKeyRing(keyRing, null, false, verifier));
+        }
+        return result;
+    }
+
+    @Test
+    public void testSaveKeyRingsUsesOneBatch() throws Exception {
+        assertTrue(mProviderHelper.saveKeyRings(verify(mAlice, mBob)));
+
+        assertEquals(1, mProvider.getBatches());
+        assertEquals(1, mProvider.getUserIds(mAlice.getPublicKey().getKeyID()).size());
+        assertEquals(1, mProvider.getUserIds(mBob.getPublicKey().getKeyID()).size());
+        assertEquals(mBob.getPublicKey().getKeyID(),
+                mProviderHelper.getMasterKeyIdBySubkey(mBob.getPublicKey().getKeyID()));
+    }
+
+    @Test
+    public void testSaveKeyRingsSplitsBatchOnRepeatedKeyRing() throws Exception {
+        PGPPublicKeyRing changed = TestKeyRings.addUserId(mAlice, sAliceSecret, PASSPHRASE,
+                "Alice <alice@work.example.com>");
+
+        // the second version of Alice's key ring has to be diffed against the first one
+        assertTrue(mProviderHelper.saveKeyRings(verify(mAlice, mBob, changed)));
+
+        assertEquals(2, mProvider.getBatches());
+        assertEquals(0, mProvider.getFailedBatches());
+        long masterKeyId = mAlice.getPublicKey().getKeyID();
+        assertArrayEquals(changed.getEncoded(), mProvider.getPublicKeyRing(masterKeyId));
+        assertEquals(2, mProvider.getUserIds(masterKeyId).size());
+    }
+
+    @Test
+    public void testSaveKeyRingsOfUnchangedKeyRingsWritesNothing() throws Exception {
+        mProviderHelper.saveKeyRings(verify(mAlice, mBob));
+        mProvider.clearWrites();
+
+        assertTrue(mProviderHelper.saveKeyRings(verify(mBob, mAlice)));
+
+        assertEquals(new ArrayList<Uri>(), mProvider.getWrites());
+        assertEquals(1, mProvider.getBatches());
+    }
+
+    @Test
+    public void testConcurrentSavesOfTheSameKeyRing() throws Exception {
+        final PGPPublicKeyRing[] versions = new PGPPublicKeyRing[]{
+                mAlice,
+                TestKeyRings.addUserId(mAlice, sAliceSecret, PASSPHRASE,
+                        "Alice <alice@work.example.com>")
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        final Exception[] errors = new Exception[versions.length];
+        Thread[] threads = new Thread[versions.length];
+        for (int i = 0; i < versions.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        new ProviderHelper(Robolectric.application).saveKeyRing(versions[index]);
+                    } catch (Exception e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Exception e : errors) {
+            if (e != null) {
+                throw e;
+            }
+        }
+        // without serialization both saves diff against the missing key ring, and the second
+        // batch fails on inserting it again
+        assertEquals(0, mProvider.getFailedBatches());
+        long masterKeyId = mAlice.getPublicKey().getKeyID();
+        PGPPublicKeyRing stored = (PGPPublicKeyRing) mProviderHelper.getPGPKeyRing(
+                KeyRingData.buildPublicKeyRingUri(id(mAlice)));
+        int userIds = 0;
+        for (String userId : new IterableIterator<String>(stored.getPublicKey().getUserIDs())) {
+            ++userIds;
+        }
+        assertEquals(userIds, mProvider.getUserIds(masterKeyId).size());
+        assertEquals(userIds, mProvider.getCerts(masterKeyId).size());
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.provider.ApgContract.Keys;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class SubkeyIndexTest {
+
+    private KeysProvider mProvider;
+    private SubkeyIndex mIndex;
+
+    /**
+     * Serves the keys table from a list, rows ordered by master key id and rank
+     */
+    private static class KeysProvider extends ContentProvider {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final List<Uri> queries = new ArrayList<Uri>();
+
+        void addKey(long masterKeyId, long keyId, boolean hasSecret, Integer protection) {
+            rows.add(new Object[]{masterKeyId, keyId, hasSecret ? 1 : 0, protection});
+        }
+
+        void removeKeyRing(long masterKeyId) {
+            for (int i = rows.size() - 1; i >= 0; --i) {
+                if (rows.get(i)[0].equals(masterKeyId)) {
+                    rows.remove(i);
+                }
+            }
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+            queries.add(uri);
+            // key_rings/keys or key_rings/<masterKeyId>/keys
+            List<String> segments = uri.getPathSegments();
+            Long masterKeyId = segments.size() == 3 ? Long.parseLong(segments.get(1)) : null;
+            MatrixCursor cursor = new MatrixCursor(new String[]{
+                    Keys.MASTER_KEY_ID, Keys.KEY_ID, Keys.HAS_SECRET, Keys.SECRET_PROTECTION});
+            for (Object[] row : rows) {
+                if (masterKeyId == null || masterKeyId.equals(row[0])) {
+                    cursor.addRow(row);
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return a key id whose slot in the index is the same for every n, as long as the index
+     * holds less than 2^31 slots
+     */
+    private static long collidingKeyId(int hash, int n) {
+        return ((long) n << 32) | (hash ^ n);
+    }
+
+    @Before
+    public void setUp() {
+        mProvider = new KeysProvider();
+        ShadowContentResolver.registerProvider(ApgContract.CONTENT_AUTHORITY, mProvider);
+        mIndex = new SubkeyIndex(Robolectric.application.getContentResolver());
+    }
+
+    @Test
+    public void testLoadsAllKeysWithOneQuery() {
+        mProvider.addKey(1, 1, true, Keys.PROTECTION_PASSPHRASE);
+        mProvider.addKey(1, 11, false, null);
+        mProvider.addKey(2, 2, false, null);
+        mProvider.addKey(2, 21, false, null);
+        mProvider.addKey(2, 22, false, null);
+
+        assertEquals(1, mIndex.getMasterKeyId(11));
+        assertEquals(2, mIndex.getMasterKeyId(22));
+        assertEquals(2, mIndex.getMasterKeyId(2));
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(3));
+        assertEquals(5, mIndex.size());
+        assertEquals(1, mProvider.queries.size());
+    }
+
+    @Test
+    public void testSecretKeys() {
+        mProvider.addKey(1, 1, true, Keys.PROTECTION_PASSPHRASE);
+        mProvider.addKey(1, 11, true, Keys.PROTECTION_NONE);
+        mProvider.addKey(1, 12, false, null);
+        mProvider.addKey(2, 2, false, null);
+
+        assertTrue(mIndex.hasSecret(1));
+        assertTrue(mIndex.hasSecret(11));
+        assertFalse(mIndex.hasSecret(12));
+        assertFalse(mIndex.hasSecret(2));
+        assertFalse(mIndex.hasSecret(3));
+        assertArrayEquals(new long[]{Constants.key.none, 1, Constants.key.none, 1},
+                mIndex.getSecretMasterKeyIds(new long[]{2, 11, 3, 1}));
+        assertEquals(Keys.PROTECTION_PASSPHRASE, mIndex.getSecretProtection(1));
+        assertEquals(Keys.PROTECTION_NONE, mIndex.getSecretProtection(11));
+        assertEquals(Keys.PROTECTION_UNKNOWN, mIndex.getSecretProtection(12));
+        assertEquals(Keys.PROTECTION_UNKNOWN, mIndex.getSecretProtection(2));
+        assertEquals(Keys.PROTECTION_UNKNOWN, mIndex.getSecretProtection(3));
+    }
+
+    @Test
+    public void testSecretProtectionOfStrippedMasterKey() {
+        mProvider.addKey(1, 1, false, null);
+        mProvider.addKey(1, 11, false, null);
+        mProvider.addKey(1, 12, true, Keys.PROTECTION_PASSPHRASE);
+        mProvider.addKey(1, 13, true, Keys.PROTECTION_NONE);
+
+        // the master key falls back to the first available secret key, subkeys never do
+        assertEquals(Keys.PROTECTION_PASSPHRASE, mIndex.getSecretProtection(1));
+        assertEquals(Keys.PROTECTION_UNKNOWN, mIndex.getSecretProtection(11));
+        assertEquals(Keys.PROTECTION_PASSPHRASE, mIndex.getSecretProtection(12));
+        assertEquals(Keys.PROTECTION_NONE, mIndex.getSecretProtection(13));
+    }
+
+    @Test
+    public void testPutKeyRingGrowsTheIndex() {
+        // loads the (empty) index, puts are ignored before that
+        assertEquals(0, mIndex.size());
+        for (int i = 1; i <= 1000; ++i) {
+            mIndex.putKeyRing(i, new long[]{i, 100000 + i, collidingKeyId(0, i)});
+        }
+
+        assertEquals(3000, mIndex.size());
+        for (int i = 1; i <= 1000; ++i) {
+            assertEquals(i, mIndex.getMasterKeyId(i));
+            assertEquals(i, mIndex.getMasterKeyId(100000 + i));
+            assertEquals(i, mIndex.getMasterKeyId(collidingKeyId(0, i)));
+            assertFalse(mIndex.hasSecret(i));
+        }
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(1001));
+        assertEquals(1, mProvider.queries.size());
+    }
+
+    @Test
+    public void testPutKeyRingReplacesItsKeys() {
+        mProvider.addKey(1, 1, true, Keys.PROTECTION_PASSPHRASE);
+        mProvider.addKey(1, 11, true, Keys.PROTECTION_PASSPHRASE);
+        assertEquals(2, mIndex.size());
+
+        mIndex.putKeyRing(1, new long[]{1, 12});
+
+        assertEquals(2, mIndex.size());
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(11));
+        assertEquals(1, mIndex.getMasterKeyId(12));
+        assertFalse(mIndex.hasSecret(1));
+    }
+
+    @Test
+    public void testRemoveKeepsCollidingKeysReachable() {
+        assertEquals(0, mIndex.size());
+        // a cluster wrapping around the end of the initial 64 slots, with an entry whose own
+        // slot is at its start in between
+        for (int n = 0; n < 5; ++n) {
+            mIndex.putKeyRing(collidingKeyId(62, n), new long[]{collidingKeyId(62, n)});
+        }
+        mIndex.putKeyRing(collidingKeyId(0, 7), new long[]{collidingKeyId(0, 7)});
+        mIndex.putKeyRing(collidingKeyId(63, 7), new long[]{collidingKeyId(63, 7)});
+
+        mIndex.removeKeyRing(collidingKeyId(62, 0));
+        mIndex.removeKeyRing(collidingKeyId(62, 3));
+
+        assertEquals(5, mIndex.size());
+        for (int n : new int[]{1, 2, 4}) {
+            assertEquals(collidingKeyId(62, n), mIndex.getMasterKeyId(collidingKeyId(62, n)));
+        }
+        assertEquals(collidingKeyId(0, 7), mIndex.getMasterKeyId(collidingKeyId(0, 7)));
+        assertEquals(collidingKeyId(63, 7), mIndex.getMasterKeyId(collidingKeyId(63, 7)));
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(collidingKeyId(62, 0)));
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(collidingKeyId(62, 3)));
+
+        // the freed slots are used again
+        for (int n = 0; n < 5; ++n) {
+            mIndex.removeKeyRing(collidingKeyId(62, n));
+        }
+        mIndex.removeKeyRing(collidingKeyId(63, 7));
+        assertEquals(1, mIndex.size());
+        assertEquals(collidingKeyId(0, 7), mIndex.getMasterKeyId(collidingKeyId(0, 7)));
+    }
+
+    @Test
+    public void testSetSecretKeyIdsOnlyTouchesItsKeyRing() {
+        mProvider.addKey(1, 1, true, Keys.PROTECTION_PASSPHRASE);
+        mProvider.addKey(1, 11, false, null);
+        mProvider.addKey(2, 2, true, Keys.PROTECTION_NONE);
+        assertEquals(3, mIndex.size());
+
+        // key 2 belongs to another key ring
+        mIndex.setSecretKeyIds(1, new long[]{11, 2},
+                new int[]{Keys.PROTECTION_NONE, Keys.PROTECTION_PASSPHRASE});
+
+        assertFalse(mIndex.hasSecret(1));
+        assertTrue(mIndex.hasSecret(11));
+        assertTrue(mIndex.hasSecret(2));
+        assertEquals(Keys.PROTECTION_NONE, mIndex.getSecretProtection(2));
+    }
+
+    @Test
+    public void testStaleKeyRingsAreReloaded() {
+        mProvider.addKey(1, 1, false, null);
+        mProvider.addKey(1, 11, false, null);
+        mProvider.addKey(2, 2, false, null);
+        assertEquals(3, mIndex.size());
+
+        // key ring 1 is changed by another process
+        mProvider.removeKeyRing(1);
+        mProvider.addKey(1, 1, false, null);
+        mProvider.addKey(1, 12, true, Keys.PROTECTION_NONE);
+        mIndex.invalidate(1);
+
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(11));
+        assertEquals(1, mIndex.getMasterKeyId(12));
+        assertTrue(mIndex.hasSecret(12));
+        assertEquals(2, mIndex.getMasterKeyId(2));
+        assertEquals(2, mProvider.queries.size());
+        assertEquals(Keys.buildKeysUri("1"), mProvider.queries.get(1));
+    }
+
+    @Test
+    public void testManyStaleKeyRingsReloadEverything() {
+        for (int i = 1; i <= 40; ++i) {
+            mProvider.addKey(i, i, false, null);
+        }
+        assertEquals(40, mIndex.size());
+
+        mProvider.removeKeyRing(40);
+        for (int i = 1; i <= 40; ++i) {
+            mIndex.invalidate(i);
+        }
+
+        assertEquals(Constants.key.none, mIndex.getMasterKeyId(40));
+        assertEquals(39, mIndex.size());
+        assertEquals(2, mProvider.queries.size());
+        assertEquals(Keys.buildKeysUri(), mProvider.queries.get(1));
+    }
+}
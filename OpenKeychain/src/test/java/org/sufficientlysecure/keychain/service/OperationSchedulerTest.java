@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class OperationSchedulerTest {
+
+    private OperationScheduler mScheduler;
+    private AtomicInteger mIdleCalls;
+    private CountDownLatch mIdle;
+
+    @Before
+    public void setUp() {
+        mIdleCalls = new AtomicInteger();
+        mIdle = new CountDownLatch(1);
+        mScheduler = new OperationScheduler(new Runnable() {
+            @Override
+            public void run() {
+                mIdleCalls.incrementAndGet();
+                mIdle.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    /**
+     * Blocks until released, e.g. a key being saved
+     */
+    private static class BlockingOperation implements Runnable {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final AtomicBoolean mFinished = new AtomicBoolean();
+
+        @Override
+        public void run() {
+            mStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            mFinished.set(true);
+        }
+    }
+
+    @Test
+    public void testCancelWhileRunning() throws Exception {
+        BlockingOperation running = new BlockingOperation();
+        OperationScheduler.Operation operation = mScheduler.schedule(OperationScheduler.POOL_IO,
+                OperationScheduler.PRIORITY_NORMAL, "tag", running);
+        assertTrue(running.mStarted.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, mScheduler.cancel("tag"));
+
+        // still running, so the service must not be stopped yet
+        assertTrue(operation.isCanceled());
+        assertFalse(mScheduler.isIdle());
+        assertEquals(0, mIdleCalls.get());
+
+        running.mRelease.countDown();
+        assertTrue(mIdle.await(10, TimeUnit.SECONDS));
+        assertTrue(running.mFinished.get());
+        assertTrue(mScheduler.isIdle());
+        assertEquals(1, mIdleCalls.get());
+    }
+
+    @Test
+    public void testCancelWhileQueued() throws Exception {
+        // occupy both io threads
+        BlockingOperation first = new BlockingOperation();
+        BlockingOperation second = new BlockingOperation();
+        mScheduler.schedule(OperationScheduler.POOL_IO, OperationScheduler.PRIORITY_NORMAL,
+                "first", first);
+        mScheduler.schedule(OperationScheduler.POOL_IO, OperationScheduler.PRIORITY_NORMAL,
+                "second", second);
+        assertTrue(first.mStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(second.mStarted.await(10, TimeUnit.SECONDS));
+
+        BlockingOperation queued = new BlockingOperation();
+        mScheduler.schedule(OperationScheduler.POOL_IO, OperationScheduler.PRIORITY_NORMAL,
+                "queued", queued);
+        assertEquals(1, mScheduler.cancel("queued"));
+        assertFalse(mScheduler.isIdle());
+
+        first.mRelease.countDown();
+        second.mRelease.countDown();
+        assertTrue(mIdle.await(10, TimeUnit.SECONDS));
+        assertTrue(mScheduler.isIdle());
+        assertEquals(1, mIdleCalls.get());
+        assertEquals(1, queued.mStarted.getCount());
+    }
+}